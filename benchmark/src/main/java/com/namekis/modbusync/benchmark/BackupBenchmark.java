@@ -0,0 +1,80 @@
+package com.namekis.modbusync.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusyncApp;
+import com.namekis.modbusync.ModbusyncConfig;
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+import com.namekis.modbusync.ParamIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.raisercostin.jedio.Locations;
+
+/**
+ * End to end backup of 2000 addresses of each type from the simulator to a csv: planning, reading, decoding and
+ * writing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BackupBenchmark {
+  private static final int COUNT = 2000;
+
+  /**Response latency of the simulated device.*/
+  @Param({ "0", "2000" })
+  public long latencyMicros;
+  @Param({ "1", "4" })
+  public int pipeline;
+
+  private ModbusSimulator simulator;
+  private ModbusyncApp app;
+  private Path output;
+
+  @Setup
+  public void setup() throws IOException {
+    ModbusyncApp.disableJ2ModLog();
+    ModbusyncApp.disableJ2ModLog("com.namekis.modbusync", ch.qos.logback.classic.Level.WARN);
+    simulator = new ModbusSimulator().withLatency(latencyMicros, latencyMicros / 10).withRandomValues(1).start();
+    output = Files.createTempFile("modbusync-backup", ".csv");
+    ModbusyncConfig config = ModbusyncConfig.tcp(simulator.host(), simulator.port(), 1)
+      .withReads(
+        new ModbusRead(ModbusType.holding, 0, COUNT),
+        new ModbusRead(ModbusType.input, 0, COUNT),
+        new ModbusRead(ModbusType.coil, 0, COUNT),
+        new ModbusRead(ModbusType.discrete, 0, COUNT))
+      .withPath(Locations.path(output));
+    config.force = true;
+    config.transport.tcp.withPipeline(pipeline);
+    app = new ModbusyncApp(config);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    app.close();
+    simulator.close();
+    Files.deleteIfExists(output);
+  }
+
+  @Benchmark
+  public long backup() {
+    app.execute(ParamIndex.empty());
+    return simulator.requests();
+  }
+}
@@ -0,0 +1,75 @@
+package com.namekis.modbusync.benchmark;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.namekis.modbusync.ModbusParam;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.impl.CsvRowWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing a backup csv in batches of 125 rows, each batch flushed as during a backup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CsvExportBenchmark {
+  private static final int BATCH = 125;
+
+  @Param({ "1000", "65536" })
+  public int rows;
+
+  private final List<List<ModbusParam>> batches = new ArrayList<>();
+  private Path output;
+
+  @Setup
+  public void setup() throws IOException {
+    output = Files.createTempFile("modbusync-export", ".csv");
+    List<ModbusParam> batch = new ArrayList<>();
+    for (int i = 0; i < rows; i++) {
+      ModbusParam param = ModbusParam.create().withType(ModbusType.holding).withAddress(i).withName("param " + i);
+      param.scale = new BigDecimal("0.1");
+      batch.add(param.setModbusValue(i % 1000));
+      if (batch.size() == BATCH) {
+        batches.add(batch);
+        batch = new ArrayList<>();
+      }
+    }
+    if (!batch.isEmpty()) {
+      batches.add(batch);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(output);
+  }
+
+  @Benchmark
+  public long export() {
+    try (CsvRowWriter<ModbusParam> writer = CsvRowWriter.open(output, ModbusParam.class)) {
+      batches.forEach(writer::write);
+      return writer.count();
+    }
+  }
+}
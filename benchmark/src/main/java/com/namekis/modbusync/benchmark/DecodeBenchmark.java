@@ -0,0 +1,71 @@
+package com.namekis.modbusync.benchmark;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.namekis.modbusync.DecodeTable;
+import com.namekis.modbusync.ModbusParam;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+import com.namekis.modbusync.RegisterImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding a register image of scaled params with the primitive DecodeTable and as ModbusParam objects.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+  @Param({ "125", "2000" })
+  public int registers;
+
+  private RegisterImage image;
+  private DecodeTable table;
+  private double[] values;
+
+  @Setup
+  public void setup() {
+    ModbusRead read = new ModbusRead(ModbusType.holding, 0, registers);
+    image = new RegisterImage(read);
+    Random random = new Random(1);
+    int[] raw = random.ints(registers, -1000, 1000).toArray();
+    image.update(ModbusType.holding, 0, raw, 0, registers);
+    String[] scales = { "1", "0.1", "0.5", "0.01" };
+    List<ModbusParam> params = new ArrayList<>();
+    for (int i = 0; i < registers; i++) {
+      ModbusParam param = ModbusParam.create().withType(ModbusType.holding).withAddress(i);
+      param.scale = new BigDecimal(scales[i % scales.length]);
+      param.precision = i % 3 == 0 ? 1 : null;
+      params.add(param);
+    }
+    table = DecodeTable.compile(params);
+    values = new double[table.size()];
+  }
+
+  @Benchmark
+  public double[] decodeTable() {
+    return table.decode(image, values);
+  }
+
+  @Benchmark
+  public List<ModbusParam> decodeParams() {
+    return table.toParams(image);
+  }
+}
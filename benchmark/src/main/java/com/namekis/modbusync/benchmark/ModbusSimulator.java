@@ -0,0 +1,248 @@
+package com.namekis.modbusync.benchmark;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.impl.ModbusTcpServer;
+
+/**
+ * In-process Modbus/TCP slave backed by a register image of the full 65536 address range of each type, served by
+ * ModbusTcpServer. Supports F01-F06, F15 and F16 for any unit id. Like a device the requests are answered one at a
+ * time in the order received, each one after the configured latency plus a random jitter. A read bigger than the max
+ * frame is rejected with an illegal address exception as most small devices do. Errors are injected randomly as a
+ * device failure exception or as a request left without answer.
+ */
+public class ModbusSimulator implements AutoCloseable {
+  private static final int ADDRESSES = 65536;
+  private static final int ILLEGAL_FUNCTION = 1;
+  private static final int ILLEGAL_ADDRESS = 2;
+  private static final int ILLEGAL_VALUE = 3;
+  private static final int DEVICE_FAILURE = 4;
+
+  private final short[] holding = new short[ADDRESSES];
+  private final short[] input = new short[ADDRESSES];
+  private final BitSet coils = new BitSet(ADDRESSES);
+  private final BitSet discretes = new BitSet(ADDRESSES);
+  private long latencyNanos;
+  private long jitterNanos;
+  private int maxRegisters = 125;
+  private int maxBits = 2000;
+  private double errorRate;
+  private double dropRate;
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  /**When the device is done with the requests received so far. Touched only by the server thread.*/
+  private long busyUntil;
+  private ModbusTcpServer server;
+  private ScheduledExecutorService replies;
+
+  public ModbusSimulator withLatency(long latencyMicros, long jitterMicros) {
+    this.latencyNanos = latencyMicros * 1_000;
+    this.jitterNanos = jitterMicros * 1_000;
+    return this;
+  }
+
+  /**Max number of registers and bits that are read in one request.*/
+  public ModbusSimulator withMaxFrame(int maxRegisters, int maxBits) {
+    this.maxRegisters = maxRegisters;
+    this.maxBits = maxBits;
+    return this;
+  }
+
+  /**
+   * @param errorRate fraction of the requests answered with a device failure exception
+   * @param dropRate fraction of the requests never answered
+   */
+  public ModbusSimulator withErrors(double errorRate, double dropRate) {
+    Preconditions.checkArgument(errorRate + dropRate <= 1, "Error and drop rates should be at most 1 together.");
+    this.errorRate = errorRate;
+    this.dropRate = dropRate;
+    return this;
+  }
+
+  /**Fills all the addresses with random values.*/
+  public ModbusSimulator withRandomValues(long seed) {
+    Random random = new Random(seed);
+    for (int i = 0; i < ADDRESSES; i++) {
+      holding[i] = (short) random.nextInt();
+      input[i] = (short) random.nextInt();
+      coils.set(i, random.nextBoolean());
+      discretes.set(i, random.nextBoolean());
+    }
+    return this;
+  }
+
+  public synchronized void set(ModbusType type, int address, int value) {
+    switch (type) {
+      case coil -> coils.set(address, value != 0);
+      case discrete -> discretes.set(address, value != 0);
+      case holding -> holding[address] = (short) value;
+      case input -> input[address] = (short) value;
+    }
+  }
+
+  public synchronized int get(ModbusType type, int address) {
+    return switch (type) {
+      case coil -> coils.get(address) ? 1 : 0;
+      case discrete -> discretes.get(address) ? 1 : 0;
+      case holding -> holding[address];
+      case input -> input[address];
+    };
+  }
+
+  /**Listens on a free port of the loopback interface.*/
+  public ModbusSimulator start() {
+    replies = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "modbus-simulator-replies");
+      thread.setDaemon(true);
+      return thread;
+    });
+    server = new ModbusTcpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), this::serve).start();
+    return this;
+  }
+
+  public String host() {
+    return InetAddress.getLoopbackAddress().getHostAddress();
+  }
+
+  public int port() {
+    return server.port();
+  }
+
+  public long requests() {
+    return requests.get();
+  }
+
+  public long errors() {
+    return errors.get();
+  }
+
+  @Override
+  public void close() {
+    server.close();
+    replies.shutdownNow();
+  }
+
+  /**Called on the server thread: the response is computed at once and sent when the device would be done with it.*/
+  private byte[] serve(ModbusTcpServer.Exchange exchange, byte[] pdu) {
+    requests.incrementAndGet();
+    double dice = ThreadLocalRandom.current().nextDouble();
+    byte[] response;
+    if (dice < dropRate) {
+      errors.incrementAndGet();
+      response = null;
+    } else if (dice < dropRate + errorRate) {
+      errors.incrementAndGet();
+      response = exception(pdu[0], DEVICE_FAILURE);
+    } else {
+      response = handle(pdu);
+    }
+    long nanos = latencyNanos + (jitterNanos > 0 ? ThreadLocalRandom.current().nextLong(jitterNanos) : 0);
+    if (nanos == 0) {
+      //a dropped request is deferred and never replied
+      return response;
+    }
+    long now = System.nanoTime();
+    busyUntil = Math.max(busyUntil, now) + nanos;
+    if (response != null) {
+      replies.schedule(() -> exchange.reply(response), busyUntil - now, TimeUnit.NANOSECONDS);
+    }
+    return null;
+  }
+
+  private synchronized byte[] handle(byte[] pdu) {
+    int function = pdu[0] & 0xff;
+    if (pdu.length < 5) {
+      return exception(pdu[0], ILLEGAL_VALUE);
+    }
+    int address = u16(pdu, 1);
+    int countOrValue = u16(pdu, 3);
+    switch (function) {
+      case 1, 2 -> {
+        if (countOrValue < 1 || countOrValue > maxBits || address + countOrValue > ADDRESSES) {
+          return exception(pdu[0], ILLEGAL_ADDRESS);
+        }
+        BitSet bits = function == 1 ? coils : discretes;
+        int bytes = (countOrValue + 7) / 8;
+        byte[] res = new byte[2 + bytes];
+        res[0] = (byte) function;
+        res[1] = (byte) bytes;
+        for (int i = 0; i < bytes; i++) {
+          int packed = 0;
+          for (int j = 0; j < 8 && i * 8 + j < countOrValue; j++) {
+            if (bits.get(address + i * 8 + j)) {
+              packed |= 1 << j;
+            }
+          }
+          res[2 + i] = (byte) packed;
+        }
+        return res;
+      }
+      case 3, 4 -> {
+        if (countOrValue < 1 || countOrValue > maxRegisters || address + countOrValue > ADDRESSES) {
+          return exception(pdu[0], ILLEGAL_ADDRESS);
+        }
+        short[] registers = function == 3 ? holding : input;
+        byte[] res = new byte[2 + countOrValue * 2];
+        res[0] = (byte) function;
+        res[1] = (byte) (countOrValue * 2);
+        for (int i = 0; i < countOrValue; i++) {
+          short value = registers[address + i];
+          res[2 + i * 2] = (byte) (value >> 8);
+          res[3 + i * 2] = (byte) value;
+        }
+        return res;
+      }
+      case 5 -> {
+        coils.set(address, countOrValue == 0xff00);
+        return echo(pdu);
+      }
+      case 6 -> {
+        holding[address] = (short) countOrValue;
+        return echo(pdu);
+      }
+      case 15, 16 -> {
+        int bytes = pdu.length > 5 ? pdu[5] & 0xff : -1;
+        int expected = function == 15 ? (countOrValue + 7) / 8 : countOrValue * 2;
+        if (countOrValue < 1 || bytes != expected || pdu.length < 6 + bytes || address + countOrValue > ADDRESSES) {
+          return exception(pdu[0], ILLEGAL_VALUE);
+        }
+        for (int i = 0; i < countOrValue; i++) {
+          if (function == 15) {
+            coils.set(address + i, (pdu[6 + i / 8] >> (i % 8) & 1) != 0);
+          } else {
+            holding[address + i] = (short) u16(pdu, 6 + i * 2);
+          }
+        }
+        return echo(pdu);
+      }
+      default -> {
+        return exception(pdu[0], ILLEGAL_FUNCTION);
+      }
+    }
+  }
+
+  /**The function, address and value or count of the request, the response of the writes.*/
+  private static byte[] echo(byte[] pdu) {
+    byte[] res = new byte[5];
+    System.arraycopy(pdu, 0, res, 0, 5);
+    return res;
+  }
+
+  private static byte[] exception(byte function, int code) {
+    return new byte[] { (byte) (function | 0x80), (byte) code };
+  }
+
+  private static int u16(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff) << 8 | bytes[offset + 1] & 0xff;
+  }
+}
@@ -0,0 +1,84 @@
+package com.namekis.modbusync.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.ghgande.j2mod.modbus.procimg.InputRegister;
+import com.ghgande.j2mod.modbus.procimg.SimpleInputRegister;
+import com.ghgande.j2mod.modbus.util.BitVector;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.impl.PduCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding a response of 125 registers and one of 2000 coils into int[] with PduCodec and through j2mod's registers and
+ * BitVector, the way the responses were decoded before. Run with -prof gc to see the allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PduDecodeBenchmark {
+  private static final int REGISTERS = 125;
+  private static final int COILS = 2000;
+
+  private final byte[] registerPdu = new byte[2 + 2 * REGISTERS];
+  private final byte[] coilPdu = new byte[2 + COILS / 8];
+  private final ByteBuffer registerView = ByteBuffer.wrap(registerPdu);
+  private final ByteBuffer coilView = ByteBuffer.wrap(coilPdu);
+  private final int[] registerValues = new int[REGISTERS];
+  private final int[] coilValues = new int[COILS];
+
+  @Setup
+  public void setup() {
+    Random random = new Random(1);
+    random.nextBytes(registerPdu);
+    random.nextBytes(coilPdu);
+  }
+
+  @Benchmark
+  public int[] registersPduCodec() {
+    PduCodec.decodeRead(registerView, ModbusType.holding, REGISTERS, registerValues, 0);
+    return registerValues;
+  }
+
+  @Benchmark
+  public int[] registersJ2mod() {
+    InputRegister[] registers = new InputRegister[REGISTERS];
+    for (int i = 0; i < REGISTERS; i++) {
+      registers[i] = new SimpleInputRegister(registerPdu[2 + 2 * i], registerPdu[3 + 2 * i]);
+    }
+    for (int i = 0; i < REGISTERS; i++) {
+      registerValues[i] = registers[i].toShort();
+    }
+    return registerValues;
+  }
+
+  @Benchmark
+  public int[] coilsPduCodec() {
+    PduCodec.decodeRead(coilView, ModbusType.coil, COILS, coilValues, 0);
+    return coilValues;
+  }
+
+  @Benchmark
+  public int[] coilsJ2mod() {
+    BitVector bits = BitVector.createBitVector(Arrays.copyOfRange(coilPdu, 2, coilPdu.length), COILS);
+    for (int i = 0; i < COILS; i++) {
+      coilValues[i] = bits.getBit(i) ? 1 : 0;
+    }
+    return coilValues;
+  }
+}
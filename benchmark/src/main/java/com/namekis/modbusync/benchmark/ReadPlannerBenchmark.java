@@ -0,0 +1,50 @@
+package com.namekis.modbusync.benchmark;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ReadPlanner;
+import com.namekis.modbusync.ReadPlanner.ReadBatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Planning the batches of a mapping sheet that uses a fraction of the 65536 holding registers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadPlannerBenchmark {
+  /**Percent of the addresses that are used.*/
+  @Param({ "1", "10", "100" })
+  public int density;
+
+  private final ReadPlanner planner = new ReadPlanner();
+  private int[] addresses;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(1);
+    addresses = IntStream.range(0, 65536).filter(x -> random.nextInt(100) < density).toArray();
+  }
+
+  @Benchmark
+  public List<ReadBatch> plan() {
+    return planner.plan(ModbusType.holding, addresses, 125);
+  }
+}
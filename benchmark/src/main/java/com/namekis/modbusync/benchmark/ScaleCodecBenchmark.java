@@ -0,0 +1,76 @@
+package com.namekis.modbusync.benchmark;
+
+import java.math.BigDecimal;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.namekis.modbusync.ScaleCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Scaling 1024 register values with the BigDecimal arithmetic ModbusParam used before and with the compiled codecs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScaleCodecBenchmark {
+  @Param({ "1", "0.1", "0.01" })
+  public String scale;
+  @Param({ "", "-40" })
+  public String offset;
+
+  private BigDecimal scaleDecimal;
+  private BigDecimal offsetDecimal;
+  private ScaleCodec codec;
+  private final int[] values = new int[1024];
+
+  @Setup
+  public void setup() {
+    scaleDecimal = new BigDecimal(scale);
+    offsetDecimal = offset.isEmpty() ? null : new BigDecimal(offset);
+    codec = ScaleCodec.of(scaleDecimal, offsetDecimal);
+    Random random = new Random(1);
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextInt(1000) - 200;
+    }
+  }
+
+  @Benchmark
+  public void bigDecimal(Blackhole blackhole) {
+    for (int value : values) {
+      BigDecimal res = new BigDecimal(value).multiply(scaleDecimal);
+      if (offsetDecimal != null) {
+        res = res.add(offsetDecimal);
+      }
+      blackhole.consume(res.stripTrailingZeros().scale() <= 0 ? (Number) res.intValueExact() : res);
+    }
+  }
+
+  @Benchmark
+  public void codec(Blackhole blackhole) {
+    for (int value : values) {
+      blackhole.consume(codec.scale(value));
+    }
+  }
+
+  @Benchmark
+  public void codecToDouble(Blackhole blackhole) {
+    for (int value : values) {
+      blackhole.consume(codec.toDouble(value));
+    }
+  }
+}
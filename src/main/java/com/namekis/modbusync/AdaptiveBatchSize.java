@@ -0,0 +1,59 @@
+package com.namekis.modbusync;
+
+import java.util.HashMap;
+
+import com.namekis.modbusync.ModbusParam.ModbusType;
+
+/**
+ * Learns, per unit id and type, the largest batch a device accepts.
+ * After a rejected batch the next sizes are probed between the largest accepted and the smallest rejected one until
+ * they meet.
+ */
+public class AdaptiveBatchSize {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(AdaptiveBatchSize.class);
+
+  private static class Limit {
+    int accepted = 0;
+    int rejected = Integer.MAX_VALUE;
+  }
+
+  private final HashMap<Integer, Limit[]> limits = new HashMap<>();
+
+  public synchronized int batchSize(int unitId, ModbusType type, int maxCount) {
+    Limit limit = limit(unitId, type);
+    if (limit.rejected > maxCount) {
+      return maxCount;
+    }
+    if (limit.accepted + 1 >= limit.rejected) {
+      return Math.max(1, limit.accepted);
+    }
+    return Math.max(1, (limit.accepted + limit.rejected) / 2);
+  }
+
+  public synchronized void accepted(int unitId, ModbusType type, int count) {
+    Limit limit = limit(unitId, type);
+    if (count > limit.accepted) {
+      limit.accepted = count;
+      if (limit.accepted + 1 == limit.rejected) {
+        log.info("unit {} accepts at most {} {}s in one batch", unitId, limit.accepted, type);
+      }
+    }
+  }
+
+  public synchronized void rejected(int unitId, ModbusType type, int count) {
+    Limit limit = limit(unitId, type);
+    limit.rejected = Math.min(limit.rejected, count);
+    limit.accepted = Math.min(limit.accepted, count - 1);
+  }
+
+  private Limit limit(int unitId, ModbusType type) {
+    Limit[] byType = limits.computeIfAbsent(unitId, x -> {
+      Limit[] all = new Limit[ModbusType.values().length];
+      for (int i = 0; i < all.length; i++) {
+        all[i] = new Limit();
+      }
+      return all;
+    });
+    return byType[type.ordinal()];
+  }
+}
@@ -0,0 +1,109 @@
+package com.namekis.modbusync;
+
+import com.google.common.base.Preconditions;
+import com.namekis.modbusync.ModbusParam.ModbusDataType;
+import com.namekis.modbusync.ModbusParam.ModbusWordOrder;
+
+/**
+ * Converts between the registers of a value and its modbusValue according to the data type and the word order.
+ * The registers are ints as read by ModbusClient, the 16 bits of a register sign extended. The registers of a value
+ * are first assembled in the low bits of a long, most significant word first, so a value is decoded with shifts and
+ * without a temporary buffer. The long is then read as the data type: unsigned types are masked, not sign extended.
+ */
+public class DataTypeCodec {
+  private DataTypeCodec() {
+  }
+
+  /**The modbusValue of the registers of a value found at registers[index].*/
+  public static Number decode(ModbusDataType dataType, ModbusWordOrder order, int[] registers, int index) {
+    return toNumber(dataType, bits(registers, index, registers(dataType), order));
+  }
+
+  /**The same value as decode, as a double for fast math.*/
+  public static double decodeDouble(ModbusDataType dataType, ModbusWordOrder order, int[] registers, int index) {
+    return toDouble(dataType, bits(registers, index, registers(dataType), order));
+  }
+
+  /**Writes the registers of modbusValue at registers[index].*/
+  public static void encode(ModbusDataType dataType, ModbusWordOrder order, Number modbusValue, int[] registers,
+      int index) {
+    toRegisters(toBits(dataType, modbusValue), registers, index, registers(dataType), order);
+  }
+
+  public static int registers(ModbusDataType dataType) {
+    return dataType == null ? 1 : dataType.registers;
+  }
+
+  /**The count registers from registers[index] as one value.*/
+  public static long bits(int[] registers, int index, int count, ModbusWordOrder order) {
+    long res = 0;
+    for (int i = 0; i < count; i++) {
+      res = (res << 16) | word(registers[index + register(order, i, count)], order);
+    }
+    return res;
+  }
+
+  /**The low count * 16 bits of a value as count registers from registers[index], the inverse of bits.*/
+  public static void toRegisters(long bits, int[] registers, int index, int count, ModbusWordOrder order) {
+    for (int i = count - 1; i >= 0; i--) {
+      registers[index + register(order, i, count)] = (short) word((int) bits, order);
+      bits >>>= 16;
+    }
+  }
+
+  /**A register as an unsigned word in the most significant byte first order.*/
+  public static int word(int register, ModbusWordOrder order) {
+    int word = register & 0xFFFF;
+    return order != null && order.swapBytes ? (word & 0xFF) << 8 | word >>> 8 : word;
+  }
+
+  public static int register(ModbusWordOrder order, int i, int count) {
+    return order == null ? i : order.register(i, count);
+  }
+
+  /**The value of the bits read by bits. A null or unknown data type is a signed register.*/
+  public static Number toNumber(ModbusDataType dataType, long bits) {
+    if (dataType == null) {
+      return (int) (short) bits;
+    }
+    return switch (dataType) {
+      case bool, uint16, int32 -> (int) bits;
+      case int16, unknown -> (int) (short) bits;
+      case uint32, int64 -> ScaleCodec.narrow(bits);
+      case float32 -> (double) Float.intBitsToFloat((int) bits);
+      case float64 -> Double.longBitsToDouble(bits);
+    };
+  }
+
+  /**The same value as toNumber without boxing.*/
+  public static double toDouble(ModbusDataType dataType, long bits) {
+    if (dataType == null) {
+      return (short) bits;
+    }
+    return switch (dataType) {
+      case bool, uint16, int32 -> (int) bits;
+      case int16, unknown -> (short) bits;
+      case uint32, int64 -> bits;
+      case float32 -> Float.intBitsToFloat((int) bits);
+      case float64 -> Double.longBitsToDouble(bits);
+    };
+  }
+
+  /**The bits of a modbusValue, the inverse of toNumber. An integer must fit the data type as signed or unsigned.*/
+  public static long toBits(ModbusDataType dataType, Number modbusValue) {
+    Preconditions.checkArgument(modbusValue != null, "No modbusValue to encode as %s.", dataType);
+    if (dataType == ModbusDataType.float32) {
+      return Float.floatToIntBits(modbusValue.floatValue()) & 0xFFFFFFFFL;
+    }
+    if (dataType == ModbusDataType.float64) {
+      return Double.doubleToLongBits(modbusValue.doubleValue());
+    }
+    long value = modbusValue.longValue();
+    int size = 16 * registers(dataType);
+    if (size < 64) {
+      Preconditions.checkArgument(value >= -(1L << size - 1) && value < 1L << size,
+        "Value %s does not fit in %s bits.", modbusValue, size);
+    }
+    return value;
+  }
+}
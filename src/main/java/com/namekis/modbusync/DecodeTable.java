@@ -0,0 +1,150 @@
+package com.namekis.modbusync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.namekis.modbusync.ModbusParam.ModbusDataType;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusParam.ModbusWordOrder;
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+
+/**
+ * Scale, offset and data type of each param compiled in arrays, so the values of a register image are decoded without
+ * creating an object per param. A ModbusParam is created only when a report or a csv needs it. The registers of a
+ * multi-register param are assembled from the image in its word order. A decoded value is the double of the value
+ * written in the csv: it is not rounded to the precision of the param.
+ */
+public class DecodeTable {
+  private final ModbusParam[] params;
+  private final ModbusType[] types;
+  private final int[] addresses;
+  private final ScaleCodec[] codecs;
+  private final ModbusDataType[] dataTypes;
+  private final ModbusWordOrder[] orders;
+  private final int[] registers;
+  /**For a table laid out over reads, the index of the first param of each read and the size after the last read.*/
+  private final int[] firsts;
+
+  private DecodeTable(List<ModbusParam> all, int[] firsts) {
+    this.firsts = firsts;
+    int size = all.size();
+    this.params = all.toArray(new ModbusParam[size]);
+    this.types = new ModbusType[size];
+    this.addresses = new int[size];
+    this.codecs = new ScaleCodec[size];
+    this.dataTypes = new ModbusDataType[size];
+    this.orders = new ModbusWordOrder[size];
+    this.registers = new int[size];
+    for (int i = 0; i < size; i++) {
+      ModbusParam param = params[i];
+      types[i] = param.type;
+      addresses[i] = param.address;
+      codecs[i] = param.codec();
+      dataTypes[i] = param.dataType;
+      orders[i] = param.wordOrder;
+      registers[i] = param.registers();
+    }
+  }
+
+  public static DecodeTable compile(Iterable<ModbusParam> params) {
+    List<ModbusParam> all = new ArrayList<>();
+    params.forEach(all::add);
+    return new DecodeTable(all, new int[] { 0, all.size() });
+  }
+
+  /**
+   * The rows of the reads in order: the param at each address, or a bare register where there is none or where a
+   * multi-register param does not fit in its read.
+   */
+  public static DecodeTable compile(ParamIndex all, ModbusRead... reads) {
+    List<ModbusParam> rows = new ArrayList<>();
+    int[] firsts = new int[reads.length + 1];
+    for (int r = 0; r < reads.length; r++) {
+      firsts[r] = rows.size();
+      ModbusRead read = reads[r];
+      int end = read.start() + read.count();
+      for (int address = read.start(); address < end;) {
+        ModbusParam param = all.getOrCreate(read.type(), address);
+        if (address + param.registers() > end) {
+          param = ModbusParam.create().withType(read.type()).withAddress(address);
+        }
+        rows.add(param);
+        address += param.registers();
+      }
+    }
+    firsts[reads.length] = rows.size();
+    return new DecodeTable(rows, firsts);
+  }
+
+  public int size() {
+    return params.length;
+  }
+
+  public ModbusParam param(int i) {
+    return params[i];
+  }
+
+  public int address(int i) {
+    return addresses[i];
+  }
+
+  /**The index of the first param of read r of a table compiled over reads. first(r + 1) is the end of read r.*/
+  public int first(int read) {
+    return firsts[read];
+  }
+
+  /**The index of the param of read r covering address.*/
+  public int covering(int read, int address) {
+    int i = Arrays.binarySearch(addresses, firsts[read], firsts[read + 1], address);
+    return i >= 0 ? i : -i - 2;
+  }
+
+  /**value = modbusValue * scale + offset, as the double of ModbusParam.value*/
+  public double decode(int i, RegisterImage image) {
+    long bits = bits(i, image);
+    switch (dataTypes[i] == null ? ModbusDataType.int16 : dataTypes[i]) {
+      case float32, float64:
+        return codecs[i].toDouble(DataTypeCodec.toDouble(dataTypes[i], bits));
+      case uint32, int64:
+        if (bits != (int) bits) {
+          //exact like the csv, rare enough to allocate
+          return codecs[i].scale(Long.valueOf(bits)).doubleValue();
+        }
+        return codecs[i].toDouble((int) bits);
+      default:
+        return codecs[i].toDouble((int) DataTypeCodec.toDouble(dataTypes[i], bits));
+    }
+  }
+
+  /**Decodes all the params in values that is reused between calls.*/
+  public double[] decode(RegisterImage image, double[] values) {
+    for (int i = 0; i < params.length; i++) {
+      values[i] = decode(i, image);
+    }
+    return values;
+  }
+
+  public ModbusParam toParam(int i, RegisterImage image) {
+    return params[i].setModbusValue(DataTypeCodec.toNumber(dataTypes[i], bits(i, image)));
+  }
+
+  /**The registers of param i as read by DataTypeCodec.bits.*/
+  private long bits(int i, RegisterImage image) {
+    int count = registers[i];
+    long res = 0;
+    for (int j = 0; j < count; j++) {
+      int register = image.get(types[i], addresses[i] + DataTypeCodec.register(orders[i], j, count));
+      res = (res << 16) | DataTypeCodec.word(register, orders[i]);
+    }
+    return res;
+  }
+
+  public List<ModbusParam> toParams(RegisterImage image) {
+    List<ModbusParam> res = new ArrayList<>(params.length);
+    for (int i = 0; i < params.length; i++) {
+      res.add(toParam(i, image));
+    }
+    return res;
+  }
+}
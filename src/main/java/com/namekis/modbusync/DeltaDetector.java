@@ -0,0 +1,159 @@
+package com.namekis.modbusync;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+
+/**
+ * Finds the addresses whose value changed since the last reported one.
+ * The last reported values of each type are kept in an int array spanning the addresses of its reads. A new batch is
+ * compared with Arrays.mismatch, that the JIT compiles to a vectorized comparison, so an unchanged range costs a few
+ * instructions per 8 or 16 registers. Only at a mismatch the address is checked against its deadband: the change in
+ * modbus units needed to report a new value, computed once from the step or precision and the scale of the param. A
+ * change smaller than the deadband is not reported and not remembered, so a slow drift is reported once it adds up.
+ */
+public class DeltaDetector {
+  /**The changed addresses of a type with their new values.*/
+  public record Delta(ModbusType type, int[] addresses, int[] values) {
+    public int size() {
+      return addresses.length;
+    }
+  }
+
+  private static final int TYPES = ModbusType.values().length;
+  private final int[] start = new int[TYPES];
+  private final int[][] last = new int[TYPES][];
+  /**Min absolute change in modbus units for each address, 1 when any change is reported.*/
+  private final int[][] deadbands = new int[TYPES][];
+  /**The read addresses not reported yet. Everything is reported by the first update.*/
+  private final boolean[][] unknown = new boolean[TYPES][];
+  private final int[] unknownCount = new int[TYPES];
+  /**Reused between updates since few addresses change.*/
+  private int[] changedAddresses = new int[16];
+  private int[] changedValues = new int[16];
+
+  public DeltaDetector(ParamIndex params, ModbusRead... reads) {
+    int[] end = new int[TYPES];
+    Arrays.fill(start, Integer.MAX_VALUE);
+    for (ModbusRead read : reads) {
+      int type = read.type().ordinal();
+      start[type] = Math.min(start[type], read.start());
+      end[type] = Math.max(end[type], read.start() + read.count());
+    }
+    for (ModbusType type : ModbusType.values()) {
+      int i = type.ordinal();
+      if (start[i] == Integer.MAX_VALUE) {
+        start[i] = 0;
+        continue;
+      }
+      int size = end[i] - start[i];
+      last[i] = new int[size];
+      unknown[i] = new boolean[size];
+      deadbands[i] = new int[size];
+      for (int j = 0; j < size; j++) {
+        deadbands[i][j] = deadband(params.get(type, start[i] + j));
+      }
+    }
+    //the gaps between reads are never updated so they must not wait to be reported
+    for (ModbusRead read : reads) {
+      int t = read.type().ordinal();
+      for (int j = read.start() - start[t]; j < read.start() - start[t] + read.count(); j++) {
+        if (!unknown[t][j]) {
+          unknown[t][j] = true;
+          unknownCount[t]++;
+        }
+      }
+    }
+  }
+
+  /**
+   * The change in modbus units that is worth reporting: the step, or one unit of the last decimal given by the
+   * precision, divided by the scale. Bits, multi-register params and params without step and precision report any
+   * change.
+   */
+  static int deadband(ModbusParam param) {
+    if (param == null || param.type == null || param.type.bits == 1 || param.registers() > 1) {
+      return 1;
+    }
+    BigDecimal band = parseStep(param.step);
+    if (band == null && param.precision != null) {
+      band = BigDecimal.ONE.movePointLeft(param.precision);
+    }
+    if (band == null || band.signum() <= 0) {
+      return 1;
+    }
+    if (param.scale != null && param.scale.signum() != 0) {
+      band = band.divide(param.scale.abs(), 0, RoundingMode.CEILING);
+    }
+    return band.compareTo(BigDecimal.ONE) <= 0 ? 1 : band.min(BigDecimal.valueOf(Integer.MAX_VALUE)).intValue();
+  }
+
+  private static BigDecimal parseStep(String step) {
+    if (step == null || step.isBlank()) {
+      return null;
+    }
+    try {
+      return new BigDecimal(step.trim());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Compares count values from values[index], starting with address, with the last reported ones.
+   * @return the changes, remembered as the last reported values, or null if nothing changed
+   */
+  public Delta update(ModbusType type, int address, int[] values, int index, int count) {
+    int t = type.ordinal();
+    int offset = address - start[t];
+    Preconditions.checkArgument(last[t] != null && offset >= 0 && offset + count <= last[t].length,
+      "%s %ss at %s are outside of the detector.", count, type, address);
+    int changed = 0;
+    if (unknownCount[t] > 0) {
+      for (int i = 0; i < count; i++) {
+        changed = check(t, offset + i, values[index + i], changed);
+      }
+    } else {
+      int i = 0;
+      while (i < count) {
+        int mismatch = Arrays.mismatch(last[t], offset + i, offset + count, values, index + i, index + count);
+        if (mismatch < 0) {
+          break;
+        }
+        i += mismatch;
+        changed = check(t, offset + i, values[index + i], changed);
+        i++;
+      }
+    }
+    if (changed == 0) {
+      return null;
+    }
+    return new Delta(type, Arrays.copyOf(changedAddresses, changed), Arrays.copyOf(changedValues, changed));
+  }
+
+  /**Remembers and adds the value at index j of the type to the changes if it is new or moved out of the deadband.*/
+  private int check(int t, int j, int value, int changed) {
+    if (unknown[t][j]) {
+      unknown[t][j] = false;
+      unknownCount[t]--;
+    } else if (Math.abs((long) value - last[t][j]) < deadbands[t][j]) {
+      return changed;
+    }
+    last[t][j] = value;
+    return add(changed, start[t] + j, value);
+  }
+
+  private int add(int changed, int address, int value) {
+    if (changed == changedAddresses.length) {
+      changedAddresses = Arrays.copyOf(changedAddresses, changed * 2);
+      changedValues = Arrays.copyOf(changedValues, changed * 2);
+    }
+    changedAddresses[changed] = address;
+    changedValues[changed] = value;
+    return changed + 1;
+  }
+}
@@ -0,0 +1,82 @@
+package com.namekis.modbusync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+import com.namekis.modbusync.ModbusyncConfig.LocationConverter;
+import com.namekis.modbusync.impl.CsvRowReader;
+import com.namekis.modbusync.impl.CsvRowWriter;
+import com.namekis.modbusync.impl.ExternalSort.SortedRows;
+import org.raisercostin.jedio.path.PathLocation;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Parameters;
+import picocli.CommandLine.ParentCommand;
+
+@Command(name = "diff", mixinStandardHelpOptions = true,
+    description = "Compares two backups, or a backup with the live values of the device given by the transport. "
+        + "Writes the added, removed and changed params as csv to --output. Exit code 1 if they differ.")
+public class DiffSubcommand implements Callable<Integer> {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(DiffSubcommand.class);
+  /**Params read from the device with one readAll.*/
+  private static final int LIVE_CHUNK = 1000;
+  private static final int ROWS_PER_WRITE = 1000;
+
+  @ParentCommand
+  ModbusyncConfig parent;
+
+  @Parameters(index = "0", description = "Backup csv.", converter = LocationConverter.class)
+  PathLocation left;
+
+  @Parameters(index = "1", arity = "0..1",
+      description = "Backup csv to compare with. Without it the params of the first backup are read from the device.",
+      converter = LocationConverter.class)
+  PathLocation right;
+
+  @Override
+  public Integer call() throws Exception {
+    ModbusyncApp.configureLog(parent);
+    if (right == null && parent.transport == null) {
+      throw new RuntimeException("A second backup or a transport (-tcp or -serial) is needed for a diff");
+    }
+    long differences;
+    try (CsvRowReader<ModbusParam> leftRows = open(left);
+        SortedRows<ModbusParam> leftSorted = ParamDiff.sorted(leftRows);
+        CsvRowWriter<ParamDiff.Row> writer = ModbusyncApp.openOutput(parent.path, parent.force,
+          ParamDiff.Row.class)) {
+      if (right != null) {
+        try (CsvRowReader<ModbusParam> rightRows = open(right);
+            SortedRows<ModbusParam> rightSorted = ParamDiff.sorted(rightRows)) {
+          differences = write(writer, sink -> ParamDiff.diff(leftSorted, rightSorted, sink));
+        }
+      } else {
+        try (ModbusyncApp app = new ModbusyncApp(parent)) {
+          differences = write(writer, sink -> ParamDiff.diffLive(app, leftSorted, LIVE_CHUNK, sink));
+        }
+      }
+    }
+    log.info("{} differences between {} and {}", differences, left.toExternalForm(),
+      right != null ? right.toExternalForm() : "the device");
+    return differences == 0 ? 0 : 1;
+  }
+
+  private static CsvRowReader<ModbusParam> open(PathLocation backup) {
+    return CsvRowReader.open(backup.toPath(), ModbusParam.class, ModbusParam.rowMapper);
+  }
+
+  /**Runs the diff writing its rows ROWS_PER_WRITE at a time.*/
+  private static long write(CsvRowWriter<ParamDiff.Row> writer, ToLongFunction<Consumer<ParamDiff.Row>> diff) {
+    List<ParamDiff.Row> rows = new ArrayList<>(ROWS_PER_WRITE);
+    long res = diff.applyAsLong(row -> {
+      rows.add(row);
+      if (rows.size() == ROWS_PER_WRITE) {
+        writer.write(rows);
+        rows.clear();
+      }
+    });
+    writer.write(rows);
+    return res;
+  }
+}
@@ -0,0 +1,165 @@
+package com.namekis.modbusync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import com.namekis.modbusync.ModbusyncConfig.Target;
+import com.namekis.modbusync.impl.CsvRowWriter;
+import com.namekis.modbusync.impl.SessionScope;
+import org.raisercostin.jedio.Locations;
+import org.raisercostin.jedio.path.PathLocation;
+
+/**
+ * Backup of several devices.
+ * Devices behind the same gateway (host and port) are read one after the other since most serial gateways cannot
+ * handle concurrent requests. Different gateways are read in parallel, each session on a virtual thread on Java 21+
+ * or on a bounded pool of platform threads otherwise (see SessionScope).
+ * Each device is written to its own file, derived from the output, or with --combined to one output with a device
+ * column. Devices are never written to stdout together, their rows would be interleaved.
+ */
+public class FleetBackup {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(FleetBackup.class);
+
+  /**A row of the combined output.*/
+  @JsonPropertyOrder({ "device" })
+  public static class DeviceParam {
+    public final String device;
+    @JsonUnwrapped
+    public final ModbusParam param;
+
+    public DeviceParam(String device, ModbusParam param) {
+      this.device = device;
+      this.param = param;
+    }
+  }
+
+  /**Backs up one device into sink, a batch of rows at a time.*/
+  public interface DeviceBackup {
+    void backup(ModbusyncConfig device, ParamIndex all, Consumer<List<ModbusParam>> sink) throws Exception;
+  }
+
+  /**Reads the device over Modbus.*/
+  public static final DeviceBackup modbus = (device, all, sink) -> {
+    try (ModbusyncApp app = new ModbusyncApp(device)) {
+      app.backup(all, sink);
+    }
+  };
+
+  private record DeviceResult(Target target, Exception error) {
+  }
+
+  private final ModbusyncConfig config;
+  private final DeviceBackup devices;
+
+  public FleetBackup(ModbusyncConfig config) {
+    this(config, modbus);
+  }
+
+  public FleetBackup(ModbusyncConfig config, DeviceBackup devices) {
+    this.config = config;
+    this.devices = devices;
+  }
+
+  public void execute() {
+    if (!config.combined && config.path == null && config.targets.length > 1) {
+      throw new RuntimeException("Backup of %s targets needs --output for a file per device, or --combined."
+        .formatted(config.targets.length));
+    }
+    ModbusyncApp.configureLog(config);
+    try (CsvRowWriter<DeviceParam> combined = config.combined
+        ? ModbusyncApp.openOutput(config.path, config.force, DeviceParam.class)
+        : null) {
+      execute(combined);
+    }
+  }
+
+  /**@param combined the writer shared by all devices, or null for a file per device*/
+  private void execute(CsvRowWriter<DeviceParam> combined) {
+    ParamIndex all = ModbusyncApp.loadParams(config.config);
+    LinkedHashMap<String, List<Target>> gateways = Arrays.stream(config.targets)
+      .collect(Collectors.groupingBy(Target::gateway, LinkedHashMap::new, Collectors.toList()));
+    Queue<DeviceResult> done = new ConcurrentLinkedQueue<>();
+    try (SessionScope<Void> scope = new SessionScope<>(config.threads, config.parallel, gateways.size(),
+      "modbusync-gateway")) {
+      log.info("backup of {} devices behind {} gateways, {} in parallel on {} threads", config.targets.length,
+        gateways.size(), config.parallel, scope.virtual ? "virtual" : "platform");
+      for (List<Target> targets : gateways.values()) {
+        scope.fork(() -> {
+          backupGateway(targets, all, combined, done);
+          return null;
+        });
+      }
+      scope.join(config.sessionTimeoutSeconds * 1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    List<DeviceResult> results = new ArrayList<>(done);
+    Set<Target> finished = results.stream().map(DeviceResult::target).collect(Collectors.toSet());
+    for (Target target : config.targets) {
+      if (!finished.contains(target)) {
+        results.add(new DeviceResult(target, new TimeoutException(
+          "not finished within --session-timeout=%ss".formatted(config.sessionTimeoutSeconds))));
+      }
+    }
+    List<DeviceResult> failed = results.stream().filter(x -> x.error() != null).toList();
+    if (!failed.isEmpty()) {
+      throw new RuntimeException("Backup failed for %s of %s devices: %s".formatted(failed.size(), results.size(),
+        failed.stream().map(x -> x.target() + " " + x.error().getMessage()).collect(Collectors.joining(", "))));
+    }
+  }
+
+  /**Adds to results the outcome of each device, stopping at the first one not started when interrupted.*/
+  private void backupGateway(List<Target> targets, ParamIndex all, CsvRowWriter<DeviceParam> combined,
+      Queue<DeviceResult> results) {
+    for (Target target : targets) {
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      try {
+        if (combined != null) {
+          String device = target.toString();
+          devices.backup(config.forTarget(target, null), all,
+            batch -> combined.write(batch.stream().map(x -> new DeviceParam(device, x)).toList()));
+        } else {
+          PathLocation path = devicePath(target);
+          try (CsvRowWriter<ModbusParam> writer = ModbusyncApp.openOutput(path, config.force, ModbusParam.class)) {
+            devices.backup(config.forTarget(target, path), all, writer::write);
+            log.info("backup of {} params to {}", writer.count(), path == null ? "stdout" : path.toExternalForm());
+          }
+        }
+        results.add(new DeviceResult(target, null));
+        log.info("backup of {} done", target);
+      } catch (Exception e) {
+        if (Thread.currentThread().isInterrupted()) {
+          log.warn("backup of {} interrupted", target);
+          return;
+        }
+        log.error("backup of {} failed", target, e);
+        results.add(new DeviceResult(target, e));
+      }
+    }
+  }
+
+  /**export.csv becomes export-host-port-unitId.csv*/
+  private PathLocation devicePath(Target target) {
+    if (config.path == null) {
+      return null;
+    }
+    String name = config.path.toPath().getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    String deviceName = dot < 0 ? name + "-" + target.name()
+        : name.substring(0, dot) + "-" + target.name() + name.substring(dot);
+    return Locations.path(config.path.toPath().resolveSibling(deviceName));
+  }
+}
@@ -0,0 +1,183 @@
+package com.namekis.modbusync;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.namekis.modbusync.impl.LatencyHistogram;
+
+/**
+ * The default MetricsRegistry: a LatencyHistogram per timer and a LongAdder per counter. They can be seen with
+ * dump(), periodically with startDump(), or in JMX (jconsole, VisualVM) under com.namekis.modbusync:type=Metrics.
+ */
+public class Metrics implements MetricsRegistry {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Metrics.class);
+  public static final String JMX_NAME = "com.namekis.modbusync:type=Metrics";
+  /**Used by all clients unless told otherwise.*/
+  public static final Metrics global = new Metrics();
+
+  private static class Count implements Counter {
+    private final LongAdder value = new LongAdder();
+
+    @Override
+    public void add(long value) {
+      this.value.add(value);
+    }
+  }
+
+  private final Map<String, LatencyHistogram> timers = new ConcurrentHashMap<>();
+  private final Map<String, Count> counters = new ConcurrentHashMap<>();
+
+  @Override
+  public LatencyHistogram timer(String name) {
+    return timers.computeIfAbsent(name, x -> new LatencyHistogram());
+  }
+
+  @Override
+  public Counter counter(String name) {
+    return counters.computeIfAbsent(name, x -> new Count());
+  }
+
+  public long count(String name) {
+    Count res = counters.get(name);
+    return res == null ? 0 : res.value.sum();
+  }
+
+  /**All timers and counters sorted by name, one per line. Latencies are in milliseconds.*/
+  public String dump() {
+    StringBuilder res = new StringBuilder();
+    new TreeMap<>(timers).forEach((name, timer) -> {
+      LatencyHistogram.Snapshot x = timer.snapshot();
+      res.append("%s count=%s mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms%n".formatted(name, x.count(),
+        x.mean() / 1e6, x.p50() / 1e6, x.p90() / 1e6, x.p99() / 1e6, x.max() / 1e6));
+    });
+    new TreeMap<>(counters).forEach((name, counter) -> res.append("%s %s%n".formatted(name, counter.value.sum())));
+    return res.toString();
+  }
+
+  /**Passes dump() to sink every period until the returned handle is closed.*/
+  public AutoCloseable startDump(long periodMillis, Consumer<String> sink) {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "modbusync-metrics");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleAtFixedRate(() -> sink.accept(dump()), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    return scheduler::shutdownNow;
+  }
+
+  /**Registers the metrics in the platform MBean server, replacing a previous registration.*/
+  public void registerJmx() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(JMX_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(new View(), name);
+      log.debug("metrics registered in jmx as {}", JMX_NAME);
+    } catch (JMException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * The attributes are read-only and computed on each read: count, meanMillis, p50Millis, p90Millis, p99Millis and
+   * maxMillis for each timer, and the value of each counter.
+   */
+  private class View implements DynamicMBean {
+    private static final String[] STATS = { "count", "meanMillis", "p50Millis", "p90Millis", "p99Millis",
+        "maxMillis" };
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      Count counter = counters.get(attribute);
+      if (counter != null) {
+        return counter.value.sum();
+      }
+      int dot = attribute.lastIndexOf('.');
+      LatencyHistogram timer = dot < 0 ? null : timers.get(attribute.substring(0, dot));
+      if (timer == null) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      LatencyHistogram.Snapshot x = timer.snapshot();
+      switch (attribute.substring(dot + 1)) {
+        case "count":
+          return x.count();
+        case "meanMillis":
+          return x.mean() / 1e6;
+        case "p50Millis":
+          return x.p50() / 1e6;
+        case "p90Millis":
+          return x.p90() / 1e6;
+        case "p99Millis":
+          return x.p99() / 1e6;
+        case "maxMillis":
+          return x.max() / 1e6;
+        default:
+          throw new AttributeNotFoundException(attribute);
+      }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      AttributeList res = new AttributeList();
+      for (String attribute : attributes) {
+        try {
+          res.add(new Attribute(attribute, getAttribute(attribute)));
+        } catch (AttributeNotFoundException e) {
+          log.debug("no metric {}", attribute);
+        }
+      }
+      return res;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+      throw new UnsupportedOperationException("Metrics are read-only.");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+      throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      Map<String, MBeanAttributeInfo> attributes = new TreeMap<>();
+      for (String timer : timers.keySet()) {
+        for (String stat : STATS) {
+          String name = timer + "." + stat;
+          attributes.put(name, new MBeanAttributeInfo(name, stat.equals("count") ? "long" : "double", name, true,
+            false, false));
+        }
+      }
+      for (String counter : counters.keySet()) {
+        attributes.put(counter, new MBeanAttributeInfo(counter, "long", counter, true, false, false));
+      }
+      return new MBeanInfo(Metrics.class.getName(), "modbusync latencies and counters",
+        attributes.values().toArray(MBeanAttributeInfo[]::new), null, null, null);
+    }
+  }
+}
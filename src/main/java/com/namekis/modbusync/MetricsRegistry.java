@@ -0,0 +1,43 @@
+package com.namekis.modbusync;
+
+/**
+ * Where ModbusClient records its latencies and counters. Timers and counters are resolved by name once and then
+ * recorded on the hot path, so an implementation should make recording cheap and allocation free.
+ */
+public interface MetricsRegistry {
+  interface Timer {
+    void record(long nanos);
+  }
+
+  interface Counter {
+    void add(long value);
+
+    default void increment() {
+      add(1);
+    }
+  }
+
+  /**Drops everything.*/
+  MetricsRegistry NOOP = new MetricsRegistry() {
+    private final Timer timer = nanos -> {
+    };
+    private final Counter counter = value -> {
+    };
+
+    @Override
+    public Timer timer(String name) {
+      return timer;
+    }
+
+    @Override
+    public Counter counter(String name) {
+      return counter;
+    }
+  };
+
+  /**The same instance for the same name.*/
+  Timer timer(String name);
+
+  /**The same instance for the same name.*/
+  Counter counter(String name);
+}
@@ -1,52 +1,74 @@
 package com.namekis.modbusync;
 
+import java.io.PrintWriter;
 import java.util.concurrent.Callable;
-
+import java.util.stream.IntStream;
+
+import com.google.common.base.Preconditions;
+import com.namekis.modbusync.ModbusParam.ModbusDataType;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusParam.ModbusWordOrder;
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+import com.namekis.modbusync.ModbusyncConfig.Transport;
 import picocli.CommandLine;
 import picocli.CommandLine.ArgGroup;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
+import picocli.CommandLine.Spec;
 
 @Command(name = "modpoll", mixinStandardHelpOptions = true, version = "modpoll 1.0",
     description = "Communicates with MODBUS slave devices.")
 public class ModPollSubcommand implements Callable<Integer> {
+  /**Runs modpoll alone, the same as `modbusync modpoll`.*/
   public static void main(String[] args) throws Exception {
-    ModPollSubcommand modPollOptions = new ModPollSubcommand();
-    int exitCode = new CommandLine(modPollOptions).execute("192.168.1.112".split("\s+"));
-    System.exit(exitCode);
-    //
-    //    // ModPoll.main(new String[] {});
-    //    // ModPoll.main("-a 1 -m2 tcp -p 8899 -t 1 -r 1 -c 125 -1 192.168.1.112".split("\s+"));
-    //    read("--tcp 192.168.1.112 --tcp-port 8899 --config chofu3.csv".split("\s+"));
-    //    List<String[]> config = readAllLines();
+    System.exit(new CommandLine(new ModPollSubcommand()).execute(args));
   }
 
+  /**The protocols of modpoll that are implemented. Picocli rejects the others.*/
   enum Protocol {
     ascii,
     rtu,
-    tcp,
-    udp,
-    enc
+    tcp
   }
 
   enum DataType {
-    discrete_input("1"),
-    input_register("3"),
-    input_register_hex("3:hex"),
-    input_register_int("3:int"),
-    input_register_mod("3:mod"),
-    input_register_float("3:float"),
-    holding_register("4"),
-    holding_register_hex("4:hex"),
-    holding_register_int("4:int"),
-    holding_register_mod("4:mod"),
-    holding_register_float("4:float");
+    coil("0", ModbusType.coil),
+    discrete_input("1", ModbusType.discrete),
+    input_register("3", ModbusType.input),
+    input_register_hex("3:hex", ModbusType.input),
+    input_register_int("3:int", ModbusType.input),
+    input_register_mod("3:mod", ModbusType.input),
+    input_register_float("3:float", ModbusType.input),
+    holding_register("4", ModbusType.holding),
+    holding_register_hex("4:hex", ModbusType.holding),
+    holding_register_int("4:int", ModbusType.holding),
+    holding_register_mod("4:mod", ModbusType.holding),
+    holding_register_float("4:float", ModbusType.holding);
 
     private final String code;
+    private final ModbusType type;
 
-    DataType(String code) {
+    DataType(String code, ModbusType type) {
       this.code = code;
+      this.type = type;
+    }
+
+    boolean isHex() {
+      return code.endsWith(":hex");
+    }
+
+    boolean isMultiRegister() {
+      return code.endsWith(":int") || code.endsWith(":mod") || code.endsWith(":float");
+    }
+
+    boolean isFloat() {
+      return code.endsWith(":float");
+    }
+
+    boolean isMod() {
+      return code.endsWith(":mod");
     }
 
     @Override
@@ -124,8 +146,91 @@ public class ModPollSubcommand implements Callable<Integer> {
   @Option(names = "-o", description = "Time-out in seconds (0.01 - 10.0). Default: ${DEFAULT-VALUE}.")
   private double timeout = 1.0;
 
+  @Spec
+  CommandSpec spec;
+
   @Override
   public Integer call() throws Exception {
-    throw new RuntimeException("Not implemented yet!!!");
+    Preconditions.checkArgument(timeout >= 0.01 && timeout <= 10, "Time-out %s should be between 0.01 and 10.0.",
+      timeout);
+    Preconditions.checkArgument(numberOfValues >= 1 && numberOfValues <= 125,
+      "Number of values %s should be between 1 and 125.", numberOfValues);
+    Preconditions.checkArgument(startReference >= 1 && startReference <= 65536,
+      "Start reference %s should be between 1 and 65536.", startReference);
+    Transport transport;
+    if (protocol == Protocol.rtu || protocol == Protocol.ascii
+        || protocolDetails != null && protocolDetails.serial != null) {
+      ProtocolDetails.Serial serial = protocolDetails != null && protocolDetails.serial != null
+          ? protocolDetails.serial
+          : new ProtocolDetails.Serial();
+      transport = new Transport(null, new Transport.Serial(serialPortOrHost, serial.baudrate, serial.databits,
+        serial.stopbits, serial.parity).withAscii(protocol == Protocol.ascii));
+    } else {
+      int port = protocolDetails != null && protocolDetails.tcp != null ? protocolDetails.tcp.port : 502;
+      transport = new Transport(new Transport.TcpUdp(serialPortOrHost, port), null);
+    }
+    PrintWriter out = spec.commandLine().getOut();
+    PrintWriter err = spec.commandLine().getErr();
+    //like modpoll a 32-bit value is two registers, low word first unless -i or -f
+    int registers = dataType.isMultiRegister() ? 2 : 1;
+    Preconditions.checkArgument(startReference - 1 + numberOfValues * registers <= 65536,
+      "%s values of %s from reference %s go past reference 65536.", numberOfValues, dataType, startReference);
+    ModbusWordOrder order = (dataType.isFloat() ? bigEndianFloats : bigEndianIntegers) ? ModbusWordOrder.ABCD
+        : ModbusWordOrder.CDAB;
+    ParamIndex params = ParamIndex.of(IntStream.range(0, numberOfValues)
+      .mapToObj(i -> ModbusParam.create()
+        .withType(dataType.type)
+        .withAddress(startReference - 1 + i * registers)
+        .withDataType(registers == 2 ? ModbusDataType.uint32 : null))
+      .toList());
+    try (ModbusClient client = new ModbusClient(transport, slaveAddress, (int) (timeout * 1000))) {
+      Poller poller = new Poller(client, new ReadPlanner(), pollRate, params,
+        new ModbusRead(dataType.type, startReference - 1, numberOfValues * registers));
+      if (!pollOnce) {
+        out.println("-- Polling slave... (Ctrl-C to stop)");
+      }
+      poller.run(pollOnce ? 1 : 0, new Poller.Listener()
+        {
+          @Override
+          public void onCycle(long cycle, int[][] values) {
+            int[] all = values[0];
+            for (int i = 0; i < all.length; i += registers) {
+              out.printf("[%d]: %s%n", startReference + i, format(all, i, order));
+            }
+            out.flush();
+          }
+
+          @Override
+          public void onOverrun(long cycle, long durationNanos, long skippedCycles) {
+            err.printf("Overrun: poll %d took %dms, longer than the poll rate of %dms. Skipped %d polls.%n", cycle,
+              durationNanos / 1_000_000, pollRate, skippedCycles);
+            err.flush();
+          }
+
+          @Override
+          public void onError(long cycle, RuntimeException e) {
+            err.println("Poll " + cycle + " failed: " + (e.getCause() != null ? e.getCause() : e).getMessage());
+            err.flush();
+          }
+        });
+    }
+    return 0;
+  }
+
+  private String format(int[] registers, int index, ModbusWordOrder order) {
+    if (dataType.isHex()) {
+      return "0x%04X".formatted(registers[index] & 0xFFFF);
+    }
+    if (!dataType.isMultiRegister()) {
+      return Integer.toString(registers[index]);
+    }
+    long bits = DataTypeCodec.bits(registers, index, 2, order);
+    if (dataType.isMod()) {
+      return Long.toString((bits >>> 16) * 10000 + (bits & 0xFFFF));
+    }
+    if (dataType.isFloat()) {
+      return Float.toString(Float.intBitsToFloat((int) bits));
+    }
+    return Integer.toString((int) bits);
   }
 }
@@ -4,17 +4,21 @@ import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.function.Supplier;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusException;
-import com.ghgande.j2mod.modbus.facade.ModbusTCPMaster;
-import com.ghgande.j2mod.modbus.procimg.InputRegister;
-import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
-import com.ghgande.j2mod.modbus.util.BitVector;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
 import com.google.common.base.Preconditions;
 import com.namekis.modbusync.ModbusParam.ModbusFunction;
 import com.namekis.modbusync.ModbusParam.ModbusType;
 import com.namekis.modbusync.ModbusyncConfig.Transport;
+import com.namekis.modbusync.ReadPlanner.ReadBatch;
+import com.namekis.modbusync.impl.JSerialCommLine;
+import com.namekis.modbusync.impl.PipelinedTcpTransport;
+import com.namekis.modbusync.impl.ResponseTimeoutException;
+import com.namekis.modbusync.impl.SerialTransport;
 import com.opencsv.CSVReader;
 import com.serotonin.modbus4j.code.DataType;
 import com.serotonin.modbus4j.exception.ErrorResponseException;
@@ -30,12 +34,47 @@ public class ModbusClient implements AutoCloseable {
     int code();
   }
 
-  public final ModbusTCPMaster j2mod;
+  /**A call on a leased tcp connection.*/
+  private interface TcpCall<T> {
+    T call(PipelinedTcpTransport tcp) throws ModbusException;
+  }
+
+  /**A call on the serial transport.*/
+  private interface SerialCall<T> {
+    T call(SerialTransport serial) throws ModbusException;
+  }
+
+  private final ModbusConnections connections;
+  private final String host;
+  private final int port;
+  private final int timeout;
+  /**Max tcp read requests in flight.*/
+  private final int depth;
+  /**Used instead of the tcp connections for RTU and ASCII.*/
+  private final SerialTransport serial;
   public final int unitId;
+  /**Shrink batches rejected by the device and remember the largest accepted size.*/
+  public boolean adaptiveBatch = false;
+  private final AdaptiveBatchSize batchSizes = new AdaptiveBatchSize();
+  /**Latency of each request and counters of retries, timeouts, exceptions and bytes.*/
+  private ModbusMetrics metrics;
 
   public ModbusClient(Transport transport, int unitId) {
-    String address = transport.tcp.host;
-    int port = transport.tcp.port;
+    this(transport, unitId, Modbus.DEFAULT_TIMEOUT * 2);
+  }
+
+  /**@param timeout response timeout in milliseconds*/
+  public ModbusClient(Transport transport, int unitId, int timeout) {
+    this(transport, unitId, timeout, ModbusConnections.shared);
+  }
+
+  /**
+   * @param timeout response timeout in milliseconds
+   * @param connections where the tcp connection is leased from for each read or write
+   */
+  public ModbusClient(Transport transport, int unitId, int timeout, ModbusConnections connections) {
+    Preconditions.checkArgument(transport != null && (transport.tcp != null || transport.serial != null),
+      "A tcp or serial transport is needed.");
     //Presupunând utilizarea bibliotecii Modbus4J
     //    ModbusFactory factory = new ModbusFactory();
     //    SerialPortWrapper params = new SerialPortWrapper();
@@ -57,95 +96,296 @@ public class ModbusClient implements AutoCloseable {
     //      throw new RuntimeException(e);
     //    }
 
-    try {
-      int timeout = Modbus.DEFAULT_TIMEOUT * 2;
-      boolean reconnect = false;
-      boolean useRtuOverTcp = false;
-      j2mod = new ModbusTCPMaster(address, port, timeout, reconnect, useRtuOverTcp);
-      j2mod.connect();
-      j2mod.setRetries(10);
-      j2mod.setCheckingValidity(true);
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+    this.connections = connections;
+    this.timeout = timeout;
+    if (transport.tcp == null) {
+      Transport.Serial settings = transport.serial;
+      this.host = settings.serialPort;
+      this.port = 0;
+      this.depth = 1;
+      this.serial = new SerialTransport(
+        new JSerialCommLine(settings.serialPort, settings.baudrate, settings.databits, settings.stopbits,
+          settings.parity),
+        settings.baudrate, settings.databits, settings.stopbits, settings.parity, settings.ascii, timeout);
+      withMetrics(Metrics.global);
+      return;
     }
+    this.host = transport.tcp.host;
+    this.port = transport.tcp.port;
+    this.serial = null;
+    this.depth = Math.max(1, transport.tcp.pipeline);
+    withMetrics(Metrics.global);
+    //fail fast if the device is not reachable
+    tcp(x -> {
+      x.open();
+      return null;
+    });
   }
 
-  public int write(ModbusParam param) {
-    try {
-      switch (param.type.writeOne) {
-        case F05_WRITE_COIL:
-          return j2mod.writeCoil(unitId, param.address, param.modbusValue != 0) ? 1 : 0;
-        case F06_WRITE_HOLDING_REGISTER:
-          return j2mod.writeSingleRegister(unitId, param.address, new SimpleRegister(param.modbusValue));
-        //        case F15_WRITE_COILS:
-        //          break;
-        //        case F16_WRITE_HOLDING_REGISTERS:
-        //          break;
-        default:
-          throw new RuntimeException("Cannot write %s".formatted(param));
+  /**
+   * Runs the call on a leased tcp connection, shared with the other clients of the gateway. If the connection broke,
+   * the call is run once more on a new connection. A response timeout is not retried: a new connection would not make
+   * a slow device or a frame it ignores answer sooner.
+   */
+  private <T> T tcp(TcpCall<T> call) {
+    for (int attempt = 1;; attempt++) {
+      try (ModbusConnections.Lease lease = connections.acquire(host, port, timeout, depth)) {
+        try {
+          return call.call(lease.transport.withMetrics(metrics));
+        } catch (ResponseTimeoutException e) {
+          lease.invalidate();
+          throw new RuntimeException(e);
+        } catch (ModbusIOException e) {
+          lease.invalidate();
+          if (attempt >= 2) {
+            throw new RuntimeException(e);
+          }
+          metrics.retry();
+          log.warn("connection to {} failed: {}. Reconnecting.", lease.key, e.getMessage());
+        } catch (ModbusException e) {
+          throw new RuntimeException(e);
+        }
       }
+    }
+  }
+
+  /**Runs the call on the serial line. Serial lines are not shared so there is nothing to reconnect.*/
+  private <T> T serial(SerialCall<T> call) {
+    try {
+      return call.call(serial);
     } catch (ModbusException e) {
       throw new RuntimeException(e);
     }
   }
 
+  public ModbusClient withAdaptiveBatch(boolean adaptiveBatch) {
+    this.adaptiveBatch = adaptiveBatch;
+    return this;
+  }
+
+  /**The name of the device in metrics and caches: host:port:unitId (serialPort:unitId for serial).*/
+  public String device() {
+    return serial != null ? "%s:%s".formatted(host, unitId) : "%s:%s:%s".formatted(host, port, unitId);
+  }
+
+  /**Records the requests in registry under the name of the device.*/
+  public ModbusClient withMetrics(MetricsRegistry registry) {
+    this.metrics = new ModbusMetrics(registry, device(), serial == null ? ModbusMetrics.Framing.tcp
+        : serial.ascii ? ModbusMetrics.Framing.ascii : ModbusMetrics.Framing.rtu);
+    return this;
+  }
+
+  public ModbusMetrics metrics() {
+    return metrics;
+  }
+
+  /**Runs the request and records its latency and bytes, or why it failed.*/
+  private <T> T timed(ModbusFunction function, int count, int requestPdu, int responsePdu, Supplier<T> request) {
+    int code = function == null ? 0 : function.code;
+    long start = System.nanoTime();
+    try {
+      T res = request.get();
+      metrics.transaction(code, count, System.nanoTime() - start, requestPdu, responsePdu);
+      return res;
+    } catch (RuntimeException e) {
+      metrics.failure(code, count, System.nanoTime() - start, requestPdu, e);
+      throw e;
+    }
+  }
+
+  public int write(ModbusParam param) {
+    return timed(param.type.writeOne, 1, 5, 5, () -> writeUntimed(param));
+  }
+
+  private int writeUntimed(ModbusParam param) {
+    Preconditions.checkArgument(param.registers() == 1, "Param %s spans %s registers and is written with writeMany.",
+      param, param.registers());
+    int value = param.modbusValue.intValue();
+    if (param.type.writeOne == null) {
+      throw new RuntimeException("Cannot write %s".formatted(param));
+    }
+    if (serial != null) {
+      return serial(x -> x.writeOne(unitId, param.type, param.address, value));
+    }
+    return tcp(x -> x.writeOne(unitId, param.type, param.address, value));
+  }
+
+  /**
+   * Writes count consecutive values from values[index] starting with address in one F15 or F16 request.
+   */
+  public void writeMany(ModbusType type, int address, int[] values, int index, int count) {
+    Preconditions.checkArgument(type.writeMany != null, "Cannot write %ss.", type);
+    int maxCount = maxWriteCount(type);
+    Preconditions.checkArgument(count <= maxCount, "Cannot write %s %ss . Maximum allowed is %s %ss.", count, type,
+      maxCount, type);
+    timed(type.writeMany, count, 6 + (count * type.bits + 7) / 8, 5, () -> {
+      writeManyUntimed(type, address, values, index, count);
+      return null;
+    });
+  }
+
+  private void writeManyUntimed(ModbusType type, int address, int[] values, int index, int count) {
+    if (serial != null) {
+      serial(x -> {
+        x.writeMany(unitId, type, address, values, index, count);
+        return null;
+      });
+      return;
+    }
+    tcp(x -> {
+      x.writeMany(unitId, type, address, values, index, count);
+      return null;
+    });
+  }
+
+  /**Max number of addresses written by one F15 (1968 coils) or F16 (123 registers) request.*/
+  public int maxWriteCount(ModbusType type) {
+    int maxByteCount = Modbus.MAX_MESSAGE_LENGTH - 10;
+    return maxByteCount * 8 / type.bits;
+  }
+
   public int maxCount(ModbusType type) {
     int maxByteCount = Modbus.MAX_MESSAGE_LENGTH - 4;
     int maxCount = maxByteCount * 8 / type.bits;
     return maxCount;
   }
 
+  /**
+   * Max number of addresses read in one batch: the protocol maximum, capped by maxBatch and, in adaptive mode, by the
+   * size learned for this unit id.
+   */
+  public int batchSize(ModbusType type, Integer maxBatch) {
+    int max = maxBatch == null ? maxCount(type) : Math.min(maxBatch, maxCount(type));
+    return adaptiveBatch ? batchSizes.batchSize(unitId, type, max) : max;
+  }
+
   public int[] read(ModbusType type, int address, int count) {
+    return read(type, address, count, null);
+  }
+
+  public int[] read(ModbusType type, int address, int count, Integer maxBatch) {
     int[] buffer = new int[count];
-    int step = maxCount(type);
-    Iterator.rangeBy(address, address + count, step).forEachWithIndex((x, index) -> {
-      int end = Math.min(address + count, x + step);
-      log.info("reading batch {}: {}->{}", type, x, end - 1);
-      readOnce(buffer, index * step, type, x, end - x);
-    });
-    return buffer;
+    int step = batchSize(type, maxBatch);
+    List<ReadBatch> batches = Iterator.rangeBy(address, address + count, step)
+      .map(x -> new ReadBatch(type, x, Math.min(address + count, x + step) - x))
+      .toJavaList();
+    return readBatches(batches, buffer, address);
   }
 
-  public int[] readOnce(int[] buffer, int index, ModbusType type, int address, int count) {
-    int maxCount = maxCount(type);
-    Preconditions.checkArgument(count <= maxCount,
-      "Cannot read %s %ss . Maximum allowed is %s %ss (%s bits each, and max %s bytes allowed by modbus).",
-      count, type, maxCount, type, type.bits, Modbus.MAX_MESSAGE_LENGTH - 6);
-    try {
-      switch (type.readMultiple) {
-        case F01_READ_COILS:
-          return toArray(buffer, index, j2mod.readCoils(unitId, address, count));
-        case F02_READ_DISCRETE_INPUTS:
-          return toArray(buffer, index, j2mod.readInputDiscretes(unitId, address, count));
-        case F03_READ_HOLDING_REGISTER:
-          return toArray(buffer, index, j2mod.readMultipleRegisters(unitId, address, count));
-        case F04_READ_INPUT_REGISTERS:
-          return toArray(buffer, index, j2mod.readInputRegisters(unitId, address, count));
-        default:
-          throw new RuntimeException("Cannot read %s@%s".formatted(type, address));
+  /**
+   * Reads all batches, pipelined if the transport allows it. The value of an address is stored in
+   * buffer[address - baseAddress].
+   */
+  public int[] readBatches(List<ReadBatch> batches, int[] buffer, int baseAddress) {
+    if (serial == null && depth > 1 && batches.size() > 1) {
+      try {
+        log.debug("reading {} batches with {} in flight", batches.size(), depth);
+        tcp(x -> {
+          x.read(unitId, batches, buffer, baseAddress);
+          return null;
+        });
+        if (adaptiveBatch) {
+          for (ReadBatch batch : batches) {
+            batchSizes.accepted(unitId, batch.type(), batch.count());
+          }
+        }
+        return buffer;
+      } catch (RuntimeException e) {
+        if (!adaptiveBatch || !isFrameRejected(e.getCause())) {
+          throw e;
+        }
+        log.warn("unit {} rejected a pipelined batch: {}. Reading batches one by one.", unitId,
+          e.getCause().getMessage());
+        metrics.retry();
       }
-    } catch (ModbusException e) {
-      throw new RuntimeException(e);
     }
+    for (ReadBatch batch : batches) {
+      log.debug("reading batch {}: {}->{}", batch.type(), batch.address(), batch.end() - 1);
+      readBatch(buffer, batch.address() - baseAddress, batch.type(), batch.address(), batch.count());
+    }
+    return buffer;
   }
 
-  private int[] toArray(int[] buffer, int index, BitVector bits) {
-    for (int i = 0; i < bits.size(); i++) {
-      buffer[index + i] = bits.getBit(i) ? 1 : 0;
+  /**
+   * Reads a batch. In adaptive mode a batch rejected with illegal data address or a timeout is read again in frames
+   * half as big. The rejected size is learned only once a smaller frame at the same address is accepted: an address
+   * missing on the device is rejected at any size and must not shrink the batches of the other reads.
+   */
+  public int[] readBatch(int[] buffer, int index, ModbusType type, int address, int count) {
+    int done = 0;
+    //the size rejected at address + done, not learned yet
+    int rejected = 0;
+    while (done < count) {
+      int size = adaptiveBatch ? Math.min(count - done, batchSize(type, null)) : count - done;
+      if (rejected > 0) {
+        size = Math.min(size, rejected / 2);
+      }
+      try {
+        readOnce(buffer, index + done, type, address + done, size);
+      } catch (RuntimeException e) {
+        if (!adaptiveBatch || size == 1 || !isFrameRejected(e.getCause())) {
+          throw e;
+        }
+        rejected = size;
+        metrics.retry();
+        log.warn("unit {} rejected {} {}s at {}: {}. Retrying with {}.", unitId, size, type, address + done,
+          e.getCause().getMessage(), size / 2);
+        continue;
+      }
+      if (adaptiveBatch) {
+        if (rejected > 0) {
+          batchSizes.rejected(unitId, type, rejected);
+          rejected = 0;
+        }
+        batchSizes.accepted(unitId, type, size);
+      }
+      done += size;
     }
     return buffer;
   }
 
-  private int[] toArray(int[] buffer, int index, InputRegister[] registers) {
-    for (int i = 0; i < registers.length; i++) {
-      buffer[index + i] = registers[i].toShort();
+  /**
+   * Whether the device refused the size of a frame: an illegal data address or no response in time. A failure to
+   * connect or a broken connection says nothing about the frame, so it does not lower the learned batch size.
+   */
+  static boolean isFrameRejected(Throwable e) {
+    if (e instanceof ModbusSlaveException slave) {
+      return slave.isType(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
     }
-    return buffer;
+    return e instanceof ResponseTimeoutException;
   }
 
+  public int[] readOnce(int[] buffer, int index, ModbusType type, int address, int count) {
+    int maxCount = maxCount(type);
+    Preconditions.checkArgument(count <= maxCount,
+      "Cannot read %s %ss . Maximum allowed is %s %ss (%s bits each, and max %s bytes allowed by modbus).",
+      count, type, maxCount, type, type.bits, Modbus.MAX_MESSAGE_LENGTH - 6);
+    return timed(type.readMultiple, count, 5, 2 + (count * type.bits + 7) / 8,
+      () -> readOnceUntimed(buffer, index, type, address, count));
+  }
+
+  private int[] readOnceUntimed(int[] buffer, int index, ModbusType type, int address, int count) {
+    if (serial != null) {
+      return serial(x -> {
+        x.read(unitId, type, address, count, buffer, index);
+        return buffer;
+      });
+    }
+    return tcp(x -> {
+      x.read(unitId, type, address, count, buffer, index);
+      return buffer;
+    });
+  }
+
+  /**
+   * A serial port is closed. The tcp connection stays warm in the pool for the next client of the gateway and is
+   * closed by the pool when idle.
+   */
   @Override
   public void close() throws Exception {
-    j2mod.disconnect();
+    if (serial != null) {
+      serial.close();
+    }
   }
 
   public static List<String[]> readAllLines(Path filePath) throws Exception {
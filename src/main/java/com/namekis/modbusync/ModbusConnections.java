@@ -0,0 +1,327 @@
+package com.namekis.modbusync;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Preconditions;
+import com.namekis.modbusync.impl.PipelinedTcpTransport;
+
+/**
+ * Warm connections kept per gateway (host and port) and leased to one reader or writer at a time, so the reads and
+ * writes of all the clients of a gateway share its one or two connections. The timeout and pipeline depth of the
+ * client are applied to the connection on each lease.
+ * An idle connection is probed before being leased again if it was not used for a while. Idle connections are
+ * closed after maxIdleMillis by a background sweep, also for gateways nobody leases from anymore, and the shared
+ * connections are closed when the JVM exits. Connecting is retried with an exponential backoff shared by all the
+ * clients of a gateway, so a dead gateway is not hammered.
+ * The state is guarded by a ReentrantLock instead of synchronized so a virtual thread waiting for a connection does
+ * not pin its carrier, and a released connection wakes only the clients of its gateway. After close no lease is given.
+ */
+public class ModbusConnections implements AutoCloseable {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ModbusConnections.class);
+  private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "modbus-connections-evictor");
+    thread.setDaemon(true);
+    return thread;
+  });
+  /**Cheap gateways accept only one or two connections.*/
+  public static final ModbusConnections shared = new ModbusConnections(1, 60_000, 5);
+
+  static {
+    //a gateway frees the slot of a closed connection now instead of after its own idle timeout
+    Runtime.getRuntime().addShutdownHook(new Thread(shared::close, "modbus-connections-close"));
+  }
+
+  private static final long VALIDATE_AFTER_MILLIS = 1_000;
+  private static final long MIN_BACKOFF_MILLIS = 100;
+  private static final long MAX_BACKOFF_MILLIS = 5_000;
+
+  public interface TransportFactory {
+    PipelinedTcpTransport create() throws Exception;
+  }
+
+  private static class Connection {
+    final PipelinedTcpTransport transport;
+    long lastUsed = System.currentTimeMillis();
+
+    Connection(PipelinedTcpTransport transport) {
+      this.transport = transport;
+    }
+  }
+
+  private static class Gateway {
+    final ArrayDeque<Connection> idle = new ArrayDeque<>();
+    /**Signalled when a connection of the gateway is released or the connections are closed.*/
+    final Condition free;
+    int leased;
+    int failures;
+    long retryAt;
+
+    Gateway(Condition free) {
+      this.free = free;
+    }
+  }
+
+  public final class Lease implements AutoCloseable {
+    public final String key;
+    public final PipelinedTcpTransport transport;
+    private final Gateway gateway;
+    private final Connection connection;
+    private boolean broken;
+    private boolean released;
+
+    private Lease(String key, Gateway gateway, Connection connection) {
+      this.key = key;
+      this.gateway = gateway;
+      this.connection = connection;
+      this.transport = connection.transport;
+    }
+
+    /**The connection is closed on release instead of being reused.*/
+    public void invalidate() {
+      broken = true;
+    }
+
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        release(gateway, connection, broken);
+      }
+    }
+  }
+
+  private final int maxPerGateway;
+  private final long maxIdleMillis;
+  private final int maxConnectAttempts;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final HashMap<String, Gateway> gateways = new HashMap<>();
+  private final ScheduledFuture<?> eviction;
+  private boolean closed;
+
+  public ModbusConnections(int maxPerGateway, long maxIdleMillis, int maxConnectAttempts) {
+    Preconditions.checkArgument(maxPerGateway >= 1, "Max connections per gateway should be at least 1 but was %s.",
+      maxPerGateway);
+    Preconditions.checkArgument(maxIdleMillis > 0, "Max idle millis should be positive but was %s.", maxIdleMillis);
+    this.maxPerGateway = maxPerGateway;
+    this.maxIdleMillis = maxIdleMillis;
+    this.maxConnectAttempts = maxConnectAttempts;
+    long period = Math.max(1, maxIdleMillis / 2);
+    this.eviction = evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param timeout response timeout in milliseconds
+   * @param depth max read requests in flight
+   */
+  public Lease acquire(String host, int port, int timeout, int depth) {
+    Lease lease = acquire(host + ":" + port, () -> new PipelinedTcpTransport(host, port, timeout, depth));
+    lease.transport.configure(timeout, depth);
+    return lease;
+  }
+
+  /**
+   * Waits for a free connection of the gateway identified by key, connecting a new one if none is idle.
+   * @throws IllegalStateException if the connections are closed, also while waiting
+   */
+  public Lease acquire(String key, TransportFactory factory) {
+    Gateway gateway;
+    Connection connection;
+    List<Connection> expired = new ArrayList<>();
+    lock.lock();
+    try {
+      Preconditions.checkState(!closed, "Connections are closed, cannot connect to %s.", key);
+      gateway = gateways.computeIfAbsent(key, x -> new Gateway(lock.newCondition()));
+      while (gateway.idle.isEmpty() && gateway.leased >= maxPerGateway) {
+        try {
+          gateway.free.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException("Interrupted while waiting for a connection to " + key, e);
+        }
+        Preconditions.checkState(!closed, "Connections are closed, cannot connect to %s.", key);
+      }
+      long now = System.currentTimeMillis();
+      connection = gateway.idle.pollLast();
+      while (connection != null && now - connection.lastUsed > maxIdleMillis) {
+        expired.add(connection);
+        connection = gateway.idle.pollLast();
+      }
+      gateway.leased++;
+    } finally {
+      lock.unlock();
+    }
+    expired.forEach(this::disconnect);
+    try {
+      if (connection != null && !isHealthy(connection)) {
+        log.info("connection to {} is not healthy, reconnecting", key);
+        disconnect(connection);
+        connection = null;
+      }
+      if (connection == null) {
+        connection = connect(key, gateway, factory);
+      }
+      return new Lease(key, gateway, connection);
+    } catch (RuntimeException e) {
+      lock.lock();
+      try {
+        gateway.leased--;
+        gateway.free.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      throw e;
+    }
+  }
+
+  private boolean isHealthy(Connection connection) {
+    if (System.currentTimeMillis() - connection.lastUsed < VALIDATE_AFTER_MILLIS) {
+      return true;
+    }
+    return connection.transport.isHealthy();
+  }
+
+  private Connection connect(String key, Gateway gateway, TransportFactory factory) {
+    for (int attempt = 1;; attempt++) {
+      long wait;
+      lock.lock();
+      try {
+        wait = gateway.retryAt - System.currentTimeMillis();
+      } finally {
+        lock.unlock();
+      }
+      if (wait > 0) {
+        sleep(key, wait);
+      }
+      try {
+        PipelinedTcpTransport transport = factory.create();
+        try {
+          transport.open();
+        } catch (Exception e) {
+          transport.close();
+          throw e;
+        }
+        lock.lock();
+        try {
+          gateway.failures = 0;
+          gateway.retryAt = 0;
+        } finally {
+          lock.unlock();
+        }
+        log.debug("connected to {}", key);
+        return new Connection(transport);
+      } catch (Exception e) {
+        long backoff;
+        lock.lock();
+        try {
+          gateway.failures++;
+          backoff = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(gateway.failures - 1, 16));
+          gateway.retryAt = System.currentTimeMillis() + backoff;
+        } finally {
+          lock.unlock();
+        }
+        if (attempt >= maxConnectAttempts) {
+          throw new RuntimeException("Cannot connect to %s after %s attempts".formatted(key, attempt), e);
+        }
+        log.warn("cannot connect to {}: {}. Retrying in {}ms.", key, e.getMessage(), backoff);
+      }
+    }
+  }
+
+  private void release(Gateway gateway, Connection connection, boolean broken) {
+    boolean keep;
+    lock.lock();
+    try {
+      gateway.leased--;
+      keep = !broken && !closed;
+      if (keep) {
+        connection.lastUsed = System.currentTimeMillis();
+        gateway.idle.addLast(connection);
+      }
+      gateway.free.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    if (!keep) {
+      disconnect(connection);
+    }
+  }
+
+  /**Closes the connections idle for more than maxIdleMillis.*/
+  public void evictIdle() {
+    List<Connection> expired = new ArrayList<>();
+    lock.lock();
+    try {
+      long now = System.currentTimeMillis();
+      for (Gateway gateway : gateways.values()) {
+        //released at the end, so the oldest are first
+        while (!gateway.idle.isEmpty() && now - gateway.idle.peekFirst().lastUsed > maxIdleMillis) {
+          expired.add(gateway.idle.pollFirst());
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (!expired.isEmpty()) {
+      log.debug("closing {} idle connections", expired.size());
+    }
+    expired.forEach(this::disconnect);
+  }
+
+  /**Closes all the idle connections.*/
+  public void closeIdle() {
+    List<Connection> idle = new ArrayList<>();
+    lock.lock();
+    try {
+      gateways.values().forEach(x -> {
+        idle.addAll(x.idle);
+        x.idle.clear();
+      });
+    } finally {
+      lock.unlock();
+    }
+    idle.forEach(this::disconnect);
+  }
+
+  /**
+   * Stops the sweep and closes the idle connections. The leased ones are closed when released and the clients waiting
+   * for a connection fail.
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      gateways.values().forEach(x -> x.free.signalAll());
+    } finally {
+      lock.unlock();
+    }
+    eviction.cancel(false);
+    closeIdle();
+  }
+
+  private void disconnect(Connection connection) {
+    try {
+      connection.transport.close();
+    } catch (RuntimeException e) {
+      log.debug("ignoring disconnect failure", e);
+    }
+  }
+
+  private static void sleep(String key, long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting to reconnect to " + key, e);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package com.namekis.modbusync;
+
+import java.net.SocketTimeoutException;
+
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.namekis.modbusync.MetricsRegistry.Counter;
+import com.namekis.modbusync.MetricsRegistry.Timer;
+import com.namekis.modbusync.impl.ResponseTimeoutException;
+
+/**
+ * The timers and counters of one device, resolved from the registry on first use and then kept in arrays, so a
+ * transaction is recorded without lookups or allocations.
+ * Names:
+ * <ul>
+ * <li>modbus.latency.function.F03, modbus.latency.size.64-127 and modbus.latency.device.host:port:unit - latency of
+ * each transaction by function code, by number of addresses and by device</li>
+ * <li>modbus.{requests,retries,timeouts,errors,bytesSent,bytesReceived}.device.host:port:unit</li>
+ * <li>modbus.exceptions.device.host:port:unit.code2 - exception responses by exception code</li>
+ * </ul>
+ * Bytes are counted on the wire: the pdu plus the MBAP header for tcp, address and crc for RTU, and the hex encoded
+ * frame for ASCII.
+ */
+public class ModbusMetrics {
+  /**1, 2-3, 4-7, ... 1024-2047 addresses. Coils can be read up to 2000 at once.*/
+  private static final int SIZE_BUCKETS = 12;
+
+  public enum Framing {
+    tcp,
+    rtu,
+    ascii;
+
+    int wireBytes(int pduBytes) {
+      switch (this) {
+        case tcp:
+          return 7 + pduBytes;
+        case rtu:
+          return 1 + pduBytes + 2;
+        default:
+          return 1 + 2 * (1 + pduBytes + 1) + 2;
+      }
+    }
+  }
+
+  private final MetricsRegistry registry;
+  public final String device;
+  private final Framing framing;
+  private final Timer latency;
+  private final Counter requests;
+  private final Counter retries;
+  private final Counter timeouts;
+  private final Counter errors;
+  private final Counter bytesSent;
+  private final Counter bytesReceived;
+  private final Timer[] byFunction = new Timer[128];
+  private final Timer[] bySize = new Timer[SIZE_BUCKETS];
+  private final Counter[] exceptions = new Counter[256];
+
+  public ModbusMetrics(MetricsRegistry registry, String device, Framing framing) {
+    this.registry = registry;
+    this.device = device;
+    this.framing = framing;
+    this.latency = registry.timer("modbus.latency.device." + device);
+    this.requests = counter("requests");
+    this.retries = counter("retries");
+    this.timeouts = counter("timeouts");
+    this.errors = counter("errors");
+    this.bytesSent = counter("bytesSent");
+    this.bytesReceived = counter("bytesReceived");
+  }
+
+  private Counter counter(String name) {
+    return registry.counter("modbus.%s.device.%s".formatted(name, device));
+  }
+
+  /**
+   * A request answered by the device.
+   * @param count addresses read or written
+   * @param requestPdu bytes of the request pdu: function code and data
+   * @param responsePdu bytes of the response pdu
+   */
+  public void transaction(int function, int count, long nanos, int requestPdu, int responsePdu) {
+    latency.record(nanos);
+    function(function).record(nanos);
+    size(count).record(nanos);
+    requests.increment();
+    bytesSent.add(framing.wireBytes(requestPdu));
+    bytesReceived.add(framing.wireBytes(responsePdu));
+  }
+
+  /**
+   * A request that failed. An exception response is a transaction with a 2 bytes response pdu, counted by exception
+   * code. A timeout has no response.
+   */
+  public void failure(int function, int count, long nanos, int requestPdu, Throwable e) {
+    Throwable cause = e instanceof RuntimeException && e.getCause() != null ? e.getCause() : e;
+    if (cause instanceof ModbusSlaveException slave) {
+      transaction(function, count, nanos, requestPdu, 2);
+      exception(slave.getType()).increment();
+      return;
+    }
+    requests.increment();
+    bytesSent.add(framing.wireBytes(requestPdu));
+    if (isTimeout(cause)) {
+      timeouts.increment();
+    } else {
+      errors.increment();
+    }
+  }
+
+  /**A request sent again, like after a reconnect or with a smaller batch.*/
+  public void retry() {
+    retries.increment();
+  }
+
+  /**No response in time: a ResponseTimeoutException of the transports or a SocketTimeoutException in the causes.*/
+  private static boolean isTimeout(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof ResponseTimeoutException || cause instanceof SocketTimeoutException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Timer function(int function) {
+    int code = function & 0x7F;
+    Timer res = byFunction[code];
+    if (res == null) {
+      res = registry.timer("modbus.latency.function.F%02d".formatted(code));
+      byFunction[code] = res;
+    }
+    return res;
+  }
+
+  private Timer size(int count) {
+    int bucket = Math.min(SIZE_BUCKETS - 1, 31 - Integer.numberOfLeadingZeros(Math.max(count, 1)));
+    Timer res = bySize[bucket];
+    if (res == null) {
+      int from = 1 << bucket;
+      String name = bucket == 0 ? "1" : bucket == SIZE_BUCKETS - 1 ? from + "+" : from + "-" + (2 * from - 1);
+      res = registry.timer("modbus.latency.size." + name);
+      bySize[bucket] = res;
+    }
+    return res;
+  }
+
+  private Counter exception(int code) {
+    Counter res = exceptions[code & 0xFF];
+    if (res == null) {
+      res = registry.counter("modbus.exceptions.device.%s.code%s".formatted(device, code & 0xFF));
+      exceptions[code & 0xFF] = res;
+    }
+    return res;
+  }
+}
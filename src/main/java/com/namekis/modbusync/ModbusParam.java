@@ -10,25 +10,33 @@ import java.math.BigDecimal;
 
 import com.fasterxml.jackson.annotation.JsonAnySetter;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.BeanProperty;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.fasterxml.jackson.databind.cfg.CoercionAction;
 import com.fasterxml.jackson.databind.cfg.CoercionInputShape;
 import com.fasterxml.jackson.databind.deser.ContextualDeserializer;
 import com.fasterxml.jackson.databind.deser.DeserializationProblemHandler;
 import com.fasterxml.jackson.databind.type.LogicalType;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvParser;
 import com.google.common.base.Preconditions;
 import com.namekis.modbusync.ModbusClient.FunctionCodeExtension;
-import com.namekis.modbusync.impl.PostConstructConverter;
+import com.namekis.modbusync.impl.CodeTable;
 import com.namekis.modbusync.impl.PostConstructConverter.PostConstruct;
-import com.namekis.modbusync.impl.RichEnum;
-import io.vavr.collection.Map;
+import com.namekis.modbusync.impl.PostConstructModule;
+import io.vavr.collection.Iterator;
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.NoArgsConstructor;
 import lombok.ToString;
@@ -46,64 +54,82 @@ import org.raisercostin.nodes.impl.CsvNodes;
 @NoArgsConstructor
 @Slf4j
 @ToString
-@JsonDeserialize(converter = ModbusParam.PostConstructor2.class)
 public class ModbusParam {
   public static final CsvNodes csvMapper = createMapper();
+  /**The same settings as csvMapper for the rows streamed by CsvRowReader.*/
+  public static final CsvMapper rowMapper = configureMapper(new CsvMapper())
+    .enable(CsvParser.Feature.EMPTY_STRING_AS_NULL);
 
   @Retention(RetentionPolicy.RUNTIME)
   @Target(ElementType.FIELD) // Enum constants are considered fields
   public @interface UnknownValue {}
 
-  //Sub-class of PostConstructConverter to parameterise it with Example
-  private static class PostConstructor2 extends PostConstructConverter<ModbusParam> {
-
-  }
-
   public interface CodeEnum {
     Object getCode();
   }
 
+  /**
+   * Resolved once per enum class: the codes are matched on the parser buffer with a CodeTable. A String is created
+   * only for the error of an unknown code.
+   */
   public static class CodeEnumDeserializer<E extends Enum<E> & CodeEnum> extends JsonDeserializer<E>
       implements ContextualDeserializer {
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static final ClassValue<CodeEnumDeserializer<?>> resolved = new ClassValue<>()
+      {
+        @Override
+        protected CodeEnumDeserializer<?> computeValue(Class<?> enumClass) {
+          return new CodeEnumDeserializer(enumClass);
+        }
+      };
+
     private final Class<E> enumClass;
-    private final Map<Object, E> BY_CODES;
+    private final CodeTable<E> byCodes;
     private final E unknown;
 
     public CodeEnumDeserializer() {
       this.enumClass = null;
-      this.BY_CODES = null;
+      this.byCodes = null;
       this.unknown = null;
     }
 
     public CodeEnumDeserializer(Class<E> enumClass) {
       this.enumClass = enumClass;
-      this.BY_CODES = RichEnum.cacheByIds(enumClass, x -> x.getCode());
-      this.unknown = this.BY_CODES.find(x -> {
+      this.byCodes = new CodeTable<>(enumClass, x -> x.getCode());
+      this.unknown = Iterator.of(enumClass.getEnumConstants()).find(x -> {
         try {
-          Field field = enumClass.getField(x._2().name());
+          Field field = enumClass.getField(x.name());
           UnknownValue annotation = field.getAnnotation(UnknownValue.class);
           return annotation != null;
         } catch (NoSuchFieldException | SecurityException e) {
           throw new RuntimeException(e);
         }
-      }).map(x -> x._2).getOrNull();
+      }).getOrNull();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <E extends Enum<E> & CodeEnum> CodeEnumDeserializer<E> of(Class<E> enumClass) {
+      return (CodeEnumDeserializer<E>) resolved.get(enumClass);
     }
 
     @Override
     public JsonDeserializer<?> createContextual(DeserializationContext ctxt, BeanProperty property)
         throws JsonMappingException {
-      Class<E> enumClass2 = (Class<E>) ctxt.getContextualType().getRawClass();
-      return new CodeEnumDeserializer(enumClass2);
+      return resolved.get(ctxt.getContextualType().getRawClass());
     }
 
     @Override
     public E deserialize(JsonParser p, DeserializationContext ctxt) throws IOException, JsonProcessingException {
-      Object code = p.getText();
-      return fromCode(code);
+      char[] chars = p.getTextCharacters();
+      if (chars == null) {
+        return fromCode(p.getText());
+      }
+      E res = byCodes.get(chars, p.getTextOffset(), p.getTextLength());
+      return res != null ? res : fromCode(p.getText());
     }
 
-    private E fromCode(Object code) {
-      E res = BY_CODES.get(code).getOrNull();
+    public E fromCode(String code) {
+      E res = byCodes.get(code);
       if (res != null) {
         return res;
       }
@@ -116,6 +142,15 @@ public class ModbusParam {
     }
   }
 
+  /**Writes the code read by CodeEnumDeserializer instead of the enum name.*/
+  public static class CodeEnumSerializer extends JsonSerializer<CodeEnum> {
+    @Override
+    public void serialize(CodeEnum value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+      gen.writeString(String.valueOf(value.getCode()));
+    }
+  }
+
+  @JsonSerialize(using = CodeEnumSerializer.class)
   @JsonDeserialize(using = CodeEnumDeserializer.class)
   public enum Level implements CodeEnum {
     @UnknownValue
@@ -254,12 +289,34 @@ public class ModbusParam {
     }
   }
 
+  /**
+   * How the registers of a param are read. A param without data type is a signed 16 bits register. The multi-register
+   * types are in consecutive registers starting with address, ordered by the word order of the param.
+   */
+  @JsonSerialize(using = CodeEnumSerializer.class)
   @JsonDeserialize(using = CodeEnumDeserializer.class) // Link the custom deserializer
   public enum ModbusDataType implements CodeEnum {
-    bool,
-    uint16,
+    bool(1, false),
+    int16(1, false),
+    uint16(1, false),
+    int32(2, false),
+    uint32(2, false),
+    /**IEEE 754 single precision.*/
+    float32(2, true),
+    int64(4, false),
+    /**IEEE 754 double precision.*/
+    float64(4, true),
     @UnknownValue
-    unknown;
+    unknown(1, false);
+
+    /**Consecutive registers holding a value.*/
+    public final int registers;
+    public final boolean floating;
+
+    ModbusDataType(int registers, boolean floating) {
+      this.registers = registers;
+      this.floating = floating;
+    }
 
     @Override
     public Object getCode() {
@@ -267,28 +324,62 @@ public class ModbusParam {
     }
   }
 
+  /**
+   * The order of the bytes of a multi-register value, A being the most significant byte of a 32 bits value. A 64 bits
+   * value follows the same pattern over its four registers. The default is ABCD.
+   */
+  public enum ModbusWordOrder {
+    /**Big endian, the modbus order: most significant register first.*/
+    ABCD(false, false),
+    /**Word swap: least significant register first, common in energy meters and the modpoll default.*/
+    CDAB(true, false),
+    /**Byte swap inside each register.*/
+    BADC(false, true),
+    /**Little endian.*/
+    DCBA(true, true);
+
+    public final boolean lowWordFirst;
+    public final boolean swapBytes;
+
+    ModbusWordOrder(boolean lowWordFirst, boolean swapBytes) {
+      this.lowWordFirst = lowWordFirst;
+      this.swapBytes = swapBytes;
+    }
+
+    /**The register holding the i-th most significant word of a value of count registers.*/
+    public int register(int i, int count) {
+      return lowWordFirst ? count - 1 - i : i;
+    }
+  }
+
   public static ModbusParam create() {
     return new ModbusParam();
   }
 
   private static CsvNodes createMapper() {
-    CsvNodes mapper = Nodes.csv
-      .withMapper(x -> {
-        x.enable(MapperFeature.ACCEPT_CASE_INSENSITIVE_PROPERTIES)
-          .addHandler(
-            new DeserializationProblemHandler()
-              {
-                @Override
-                public Object handleWeirdStringValue(DeserializationContext ctxt, Class<?> targetType,
-                    String valueToConvert, String failureMsg) {
-                  return null;
-                }
-              });
-        x.coercionConfigFor(LogicalType.Enum)
-          .setCoercion(CoercionInputShape.EmptyString, CoercionAction.AsNull);
-        return x;
-      });
-    return mapper;
+    return Nodes.csv.withMapper(x -> configureMapper(x));
+  }
+
+  /**
+   * The settings of every mapper of ModbusParam: csvMapper and the rowMapper that streams the rows of big files.
+   * Registers PostConstructModule, without which postConstruct is not called and CsvRowReader refuses the mapper.
+   */
+  public static <M extends ObjectMapper> M configureMapper(M x) {
+    //calls postConstruct after each row without a converter
+    x.registerModule(new PostConstructModule());
+    x.enable(MapperFeature.ACCEPT_CASE_INSENSITIVE_PROPERTIES)
+      .addHandler(
+        new DeserializationProblemHandler()
+          {
+            @Override
+            public Object handleWeirdStringValue(DeserializationContext ctxt, Class<?> targetType,
+                String valueToConvert, String failureMsg) {
+              return null;
+            }
+          });
+    x.coercionConfigFor(LogicalType.Enum)
+      .setCoercion(CoercionInputShape.EmptyString, CoercionAction.AsNull);
+    return x;
   }
 
   /**
@@ -371,9 +462,19 @@ public class ModbusParam {
   @JsonProperty(index = 2)
   public int address;
   public ModbusDataType dataType;
+  public ModbusWordOrder wordOrder;
+  /**
+   * The raw value: an Integer for the 16 bits types and int32, a Long for the int64 and uint32 values that do not fit
+   * in an int, a Double for the float types.
+   */
   @ToString.Include(rank = 7)
   @JsonProperty(index = 3)
-  public Integer modbusValue;
+  public Number modbusValue;
+  /**Poll interval of this param in ms. Wins over the --poll-every rules.*/
+  public Long pollMillis;
+  @ToString.Exclude
+  @With(AccessLevel.NONE)
+  private ScaleCodec codec;
 
   @PostConstruct
   private void postConstruct() {
@@ -401,8 +502,11 @@ public class ModbusParam {
     return copy().setValueInternal(value);
   }
 
+  /**A single copy, the fields in declaration order as expected by the lombok constructor.*/
   private ModbusParam copy() {
-    return withAddress(address + 1).withAddress(address);
+    return new ModbusParam(param, group, level, name, description, values, defaultValue, minValue, maxValue, remarks,
+      unit, step, precision, offset, scale, value, type, address, dataType, wordOrder, modbusValue, pollMillis,
+      codec);
   }
 
   private ModbusParam setValueInternal(Number value) {
@@ -419,30 +523,46 @@ public class ModbusParam {
     return this2;
   }
 
-  private Integer unscale(Number value) {
-    if (value == null) {
-      return null;
-    }
-    BigDecimal res = new BigDecimal(value.toString());
-    if (offset != null) {
-      res = res.subtract(offset);
-    }
-    if (scale != null) {
-      res = res.divide(scale);
+  /**Sets directly in modbus terminology a modbusValue of any data type.*/
+  public ModbusParam setModbusValue(Number modbusValue) {
+    ModbusParam this2 = copy();
+    this2.modbusValue = modbusValue;
+    this2.value = codec().scale(modbusValue);
+    return this2;
+  }
+
+  /**Sets the modbusValue decoded from the registers of this param found at registers[index].*/
+  public ModbusParam decode(int[] registers, int index) {
+    return setModbusValue(DataTypeCodec.decode(dataType, wordOrder, registers, index));
+  }
+
+  /**Writes the registers of modbusValue at registers[index].*/
+  public void encode(int[] registers, int index) {
+    DataTypeCodec.encode(dataType, wordOrder, modbusValue, registers, index);
+  }
+
+  /**Number of consecutive registers holding the value.*/
+  public int registers() {
+    return dataType == null ? 1 : dataType.registers;
+  }
+
+  private Number unscale(Number value) {
+    if (dataType != null && dataType.floating) {
+      return codec().unscaleDouble(value);
     }
-    return res.intValueExact();
+    return registers() > 1 ? codec().unscaleLong(value) : codec().unscale(value);
   }
 
   private Number scale(int value) {
-    BigDecimal res = new BigDecimal(value);
-    if (scale != null) {
-      res = res.multiply(scale);
-    }
-    if (offset != null) {
-      res = res.add(offset);
-    }
-    if (res.stripTrailingZeros().scale() <= 0) {
-      return res.intValueExact();
+    return codec().scale(value);
+  }
+
+  /**The codec compiled for the current scale and offset. Copies share it until one of them changes.*/
+  public ScaleCodec codec() {
+    ScaleCodec res = codec;
+    if (res == null || !res.isFor(scale, offset)) {
+      res = ScaleCodec.of(scale, offset);
+      codec = res;
     }
     return res;
   }
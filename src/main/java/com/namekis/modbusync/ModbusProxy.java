@@ -0,0 +1,246 @@
+package com.namekis.modbusync;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+import com.namekis.modbusync.impl.ModbusTcpServer;
+import com.namekis.modbusync.impl.ModbusTcpServer.Exchange;
+
+/**
+ * Modbus/TCP server in front of a device, so many clients share the one or two connections a cheap gateway accepts.
+ * F01-F04 are answered on the server thread from a RegisterImage refreshed by one Poller session. Only the addresses
+ * of the --read ranges are served, the gaps between them are illegal addresses. Writes (F05, F06, F15, F16) are
+ * forwarded to the device one at a time in the order they were received, over the pooled connection of the polls, and
+ * the image is updated with the written values. A poll cycle running during a write does not overwrite the written
+ * addresses with what it read before, and the requests of a client following its own write wait for it, so the client
+ * reads what it wrote.
+ * Any unit id is answered as the device.
+ */
+public class ModbusProxy implements AutoCloseable {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ModbusProxy.class);
+  private static final int ILLEGAL_FUNCTION = 1;
+  private static final int ILLEGAL_ADDRESS = 2;
+  private static final int ILLEGAL_VALUE = 3;
+  private static final int DEVICE_BUSY = 6;
+  private static final int TARGET_FAILED = 11;
+  private static final int TYPES = ModbusType.values().length;
+
+  private final ModbusClient client;
+  private final Poller poller;
+  private final ModbusTcpServer server;
+  private final RegisterImage image;
+  /**Addresses of the image written since the end of the last cycle, by type.*/
+  private final BitSet[] written = new BitSet[TYPES];
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final ExecutorService writes = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "modbus-proxy-writes");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private volatile boolean ready;
+
+  public ModbusProxy(ModbusClient client, ReadPlanner planner, PollSchedule schedule, InetSocketAddress address) {
+    this.client = client;
+    this.poller = new Poller(client, planner, schedule);
+    this.server = new ModbusTcpServer(address, this::handle);
+    this.image = new RegisterImage(schedule.reads());
+    for (int i = 0; i < TYPES; i++) {
+      written[i] = new BitSet();
+    }
+  }
+
+  /**Serves while polling on this thread until stopped or until maxCycles cycles were run.*/
+  public void serve(long maxCycles) {
+    server.start();
+    poller.run(maxCycles, new Poller.Listener() {
+      @Override
+      public void onCycle(long cycle, int[][] values) {
+        update(values);
+      }
+
+      @Override
+      public void onError(long cycle, RuntimeException e) {
+        log.warn("cycle {} failed: {}. Serving the values of the last cycle.", cycle, e.getMessage());
+      }
+    });
+  }
+
+  /**The server port, useful when bound to port 0.*/
+  public int port() {
+    return server.port();
+  }
+
+  public void stop() {
+    poller.stop();
+  }
+
+  /**Copies the values read by the cycle, except the ones written meanwhile that the cycle may have read before.*/
+  private void update(int[][] values) {
+    ModbusRead[] reads = poller.reads();
+    lock.writeLock().lock();
+    try {
+      for (int i = 0; i < reads.length; i++) {
+        ModbusType type = reads[i].type();
+        BitSet skip = written[type.ordinal()];
+        int offset = reads[i].start() - image.start(type);
+        int run = -1;
+        for (int j = 0; j <= values[i].length; j++) {
+          boolean copy = j < values[i].length && poller.wasRead(i, j) && !skip.get(offset + j);
+          if (copy && run < 0) {
+            run = j;
+          } else if (!copy && run >= 0) {
+            image.update(type, reads[i].start() + run, values[i], run, j - run);
+            run = -1;
+          }
+        }
+      }
+      for (BitSet bits : written) {
+        bits.clear();
+      }
+      ready = true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private byte[] handle(Exchange exchange, byte[] pdu) {
+    int function = pdu[0] & 0xFF;
+    switch (function) {
+      case 1, 2, 3, 4:
+        if (exchange.deferred() == 0) {
+          return read(pdu);
+        }
+        //after a write of the same client still running
+        writes.execute(() -> exchange.reply(read(pdu)));
+        return null;
+      case 5, 6, 15, 16:
+        writes.execute(() -> exchange.reply(write(pdu)));
+        return null;
+      default:
+        return exception(function, ILLEGAL_FUNCTION);
+    }
+  }
+
+  private byte[] read(byte[] pdu) {
+    int function = pdu[0] & 0xFF;
+    ModbusType type = ModbusType.values()[function - 1];
+    if (pdu.length != 5) {
+      return exception(function, ILLEGAL_VALUE);
+    }
+    int address = word(pdu, 1);
+    int count = word(pdu, 3);
+    if (count < 1 || count > (type.bits == 1 ? 2000 : 125)) {
+      return exception(function, ILLEGAL_VALUE);
+    }
+    if (!ready) {
+      return exception(function, DEVICE_BUSY);
+    }
+    if (!image.contains(type, address, count)) {
+      return exception(function, ILLEGAL_ADDRESS);
+    }
+    int byteCount = (count * type.bits + 7) / 8;
+    byte[] res = new byte[2 + byteCount];
+    res[0] = (byte) function;
+    res[1] = (byte) byteCount;
+    lock.readLock().lock();
+    try {
+      for (int i = 0; i < count; i++) {
+        int value = image.get(type, address + i);
+        if (type.bits == 1) {
+          res[2 + (i >> 3)] |= (byte) (value << (i & 7));
+        } else {
+          res[2 + 2 * i] = (byte) (value >> 8);
+          res[3 + 2 * i] = (byte) value;
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return res;
+  }
+
+  /**Runs on the writes thread, so the device gets the writes in the order they were received.*/
+  private byte[] write(byte[] pdu) {
+    int function = pdu[0] & 0xFF;
+    ModbusType type = function == 5 || function == 15 ? ModbusType.coil : ModbusType.holding;
+    if (pdu.length < 5) {
+      return exception(function, ILLEGAL_VALUE);
+    }
+    int address = word(pdu, 1);
+    int[] values;
+    if (function == 5 || function == 6) {
+      int value = word(pdu, 3);
+      if (pdu.length != 5 || function == 5 && value != 0xFF00 && value != 0) {
+        return exception(function, ILLEGAL_VALUE);
+      }
+      values = new int[] { function == 5 ? value >> 15 : (short) value };
+    } else {
+      int count = word(pdu, 3);
+      if (pdu.length < 6 || count < 1 || pdu.length != 6 + (pdu[5] & 0xFF)
+          || (pdu[5] & 0xFF) != (count * type.bits + 7) / 8) {
+        return exception(function, ILLEGAL_VALUE);
+      }
+      values = new int[count];
+      ByteBuffer data = ByteBuffer.wrap(pdu);
+      for (int i = 0; i < count; i++) {
+        values[i] = type.bits == 1 ? (pdu[6 + (i >> 3)] >> (i & 7)) & 1 : data.getShort(6 + 2 * i);
+      }
+    }
+    try {
+      if (values.length == 1 && function < 15) {
+        client.write(ModbusParam.create().withType(type).withAddress(address).withModbusValue(values[0]));
+      } else {
+        client.writeMany(type, address, values, 0, values.length);
+      }
+    } catch (IllegalArgumentException e) {
+      return exception(function, ILLEGAL_VALUE);
+    } catch (RuntimeException e) {
+      log.warn("forwarding write of {} {}s at {} failed: {}", values.length, type, address, e.getMessage());
+      int code = e.getCause() instanceof ModbusSlaveException slave ? slave.getType() : TARGET_FAILED;
+      return exception(function, code);
+    }
+    lock.writeLock().lock();
+    try {
+      for (int i = 0; i < values.length; i++) {
+        if (image.contains(type, address + i)) {
+          image.update(type, address + i, values, i, 1);
+          written[type.ordinal()].set(address + i - image.start(type));
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    log.debug("forwarded write of {} {}s at {}", values.length, type, address);
+    //the echo of F05/F06 and the address and count of F15/F16
+    return Arrays.copyOf(pdu, 5);
+  }
+
+  private static int word(byte[] pdu, int index) {
+    return (pdu[index] & 0xFF) << 8 | pdu[index + 1] & 0xFF;
+  }
+
+  private static byte[] exception(int function, int code) {
+    return new byte[] { (byte) (function | 0x80), (byte) code };
+  }
+
+  @Override
+  public void close() {
+    poller.stop();
+    server.close();
+    writes.shutdown();
+    try {
+      writes.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -1,22 +1,39 @@
 package com.namekis.modbusync;
 
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 import ch.qos.logback.classic.Level;
-import com.google.common.base.Splitter;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import com.namekis.modbusync.DeltaDetector.Delta;
 import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+import com.namekis.modbusync.ReadPlanner.ReadBatch;
+import com.namekis.modbusync.TimeSeriesRecorder.Series;
+import com.namekis.modbusync.impl.CsvRowReader;
+import com.namekis.modbusync.impl.CsvRowWriter;
 import io.vavr.collection.Iterator;
 import io.vavr.collection.Map;
 import io.vavr.collection.Traversable;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.text.StringTokenizer;
-import org.raisercostin.nodes.Nodes;
+import org.raisercostin.jedio.path.PathLocation;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
 import picocli.CommandLine.IExecutionExceptionHandler;
 
 @Slf4j
 public class ModbusyncApp implements AutoCloseable {
+  /**Batches read together by backup, so a pipelined transport has requests to keep in flight.*/
+  private static final int BACKUP_WINDOW = 16;
+
   public static class Test {
     public static void main(String[] args) throws Exception {
       //    int exitCode = cmd.execute(
@@ -31,7 +48,8 @@ public class ModbusyncApp implements AutoCloseable {
 
   public static void main(String[] args) throws Exception {
     IExecutionExceptionHandler errorHandler = (ex, cmd, parseResult) -> {
-      ModbusyncConfig config = cmd.getCommand();
+      //--debug is an option of modbusync, also when a subcommand failed
+      ModbusyncConfig config = (ModbusyncConfig) cmd.getCommandSpec().root().userObject();
       if (config.others != null && config.others.debug) {
         ex.printStackTrace(cmd.getErr()); // Print stack trace to the error stream
       } else {
@@ -59,28 +77,68 @@ public class ModbusyncApp implements AutoCloseable {
     return tokenizer.getTokenArray();
   }
 
+  /**A row of the poll output.*/
+  @JsonPropertyOrder({ "time" })
+  public static class PolledParam {
+    public final String time;
+    @JsonUnwrapped
+    public final ModbusParam param;
+
+    public PolledParam(String time, ModbusParam param) {
+      this.time = time;
+      this.param = param;
+    }
+  }
+
   private ModbusyncConfig config;
   private ModbusClient client;
+  private final ReadPlanner planner = new ReadPlanner();
+  /**Writes only the changed addresses so no gap is allowed.*/
+  private final ReadPlanner writePlanner = new ReadPlanner(0);
+  private RegisterCache cache;
 
   public ModbusyncApp(ModbusyncConfig config) {
     this.config = config;
-    this.client = new ModbusClient(config.transport, config.unitId);
+    this.client = new ModbusClient(config.transport, config.unitId).withAdaptiveBatch(config.adaptiveBatch);
+  }
+
+  /**Single params are read through cache, which can be shared by the apps of many devices. Null reads the device.*/
+  public ModbusyncApp withCache(RegisterCache cache) {
+    this.cache = cache;
+    return this;
   }
 
   public ModbusParam read(ModbusParam param) {
-    int value = client.read(param.type, param.address, 1)[0];
-    ModbusParam res = param.setModbusValue(value);
+    int[] registers = cache == null ? client.read(param.type, param.address, param.registers())
+        : cache.read(client, param.type, param.address, param.registers());
+    ModbusParam res = param.decode(registers, 0);
     log.info("read {}", res);
     return res;
   }
 
+  /**A multi-register param is written with one F16 request and read back.*/
   public ModbusParam write(ModbusParam param) {
-    int readValue = client.write(param);
-    ModbusParam res = param.setModbusValue(readValue);
-    log.info("write {} => {}", param, readValue);
+    ModbusParam res;
+    if (param.registers() > 1) {
+      int[] registers = new int[param.registers()];
+      param.encode(registers, 0);
+      client.writeMany(param.type, param.address, registers, 0, registers.length);
+      invalidate(param.type, param.address, registers.length);
+      res = read(param);
+    } else {
+      res = param.decode(new int[] { client.write(param) }, 0);
+      invalidate(param.type, param.address, 1);
+    }
+    log.info("write {} => {}", param, res.modbusValue);
     return res;
   }
 
+  private void invalidate(ModbusType type, int address, int count) {
+    if (cache != null) {
+      cache.invalidate(client.device(), type, address, count);
+    }
+  }
+
   public List<ModbusParam> readAll(ModbusParam... all) {
     return readAll(Iterator.of(all));
   }
@@ -90,16 +148,101 @@ public class ModbusyncApp implements AutoCloseable {
   }
 
   public List<ModbusParam> readAll(Traversable<ModbusParam> all) {
+    return readAll(all, null);
+  }
+
+  /**
+   * Reads all params grouped by type with as few requests as possible.
+   * @param maxBatch max number of addresses read in one batch or null for the protocol maximum
+   */
+  public List<ModbusParam> readAll(Traversable<ModbusParam> all, Integer maxBatch) {
     Map<ModbusType, ? extends Traversable<ModbusParam>> allGrouped = all.toList().groupBy(x -> x.type);
     return allGrouped.flatMap(params -> {
-      ModbusParam min = params._2.minBy(x -> x.address).get();
-      ModbusParam max = params._2.maxBy(x -> x.address).get();
-      log.info("reading all {}: {}->{}", params._1, min.address, max.address);
-      int[] values = client.read(params._1, min.address, max.address - min.address + 1);
-      return params._2.map(p -> p.setModbusValue(values[p.address - min.address]));
+      ModbusType type = params._1;
+      int[] addresses = params._2.toJavaStream().mapToInt(x -> x.address).distinct().sorted().toArray();
+      int[] ends = new int[addresses.length];
+      params._2.forEach(p -> {
+        int i = Arrays.binarySearch(addresses, p.address);
+        ends[i] = Math.max(ends[i], p.address + p.registers());
+      });
+      int min = addresses[0];
+      int end = Arrays.stream(ends).max().getAsInt();
+      int maxCount = client.batchSize(type, maxBatch);
+      List<ReadBatch> batches = planner.plan(type, addresses, ends, maxCount);
+      log.info("reading all {}: {}->{} in {} batches", type, min, end - 1, batches.size());
+      int[] values = client.readBatches(batches, new int[end - min], min);
+      return params._2.map(p -> p.decode(values, p.address - min));
     }).toJavaList();
   }
 
+  /**
+   * Writes the params of the backup whose value differs from the live one. Neighbour changed addresses of the same
+   * type are written with one F15/F16 request. Values are compared as registers, so a float whose csv value does not
+   * convert back exactly to the same modbusValue is not written again.
+   * @return the written params as read back from the device
+   */
+  public List<ModbusParam> restore(Iterable<ModbusParam> backup) {
+    List<ModbusParam> wanted = Iterator.ofAll(backup)
+      .filter(x -> x.type != null && x.isWritable() && x.modbusValue != null)
+      .toJavaList();
+    if (wanted.isEmpty()) {
+      return wanted;
+    }
+    ParamIndex live = ParamIndex.of(readAll(wanted));
+    Map<ModbusType, TreeMap<Integer, ModbusParam>> changed = Iterator.ofAll(wanted)
+      .filter(x -> differs(x, live.get(x.type, x.address)))
+      .groupBy(x -> x.type)
+      .mapValues(params -> {
+        TreeMap<Integer, ModbusParam> byAddress = new TreeMap<>();
+        params.forEach(x -> byAddress.put(x.address, x));
+        return byAddress;
+      });
+    List<ModbusParam> written = new ArrayList<>();
+    changed.forEach((type, byAddress) -> {
+      int[] addresses = byAddress.keySet().stream().mapToInt(x -> x).toArray();
+      int[] ends = byAddress.values().stream().mapToInt(x -> x.address + x.registers()).toArray();
+      for (ReadBatch batch : writePlanner.plan(type, addresses, ends, client.maxWriteCount(type))) {
+        List<ModbusParam> params = new ArrayList<>(byAddress.subMap(batch.address(), batch.end()).values());
+        log.info("restoring {} {}s: {}->{}", batch.count(), type, batch.address(), batch.end() - 1);
+        if (batch.count() == 1) {
+          client.write(params.get(0));
+        } else {
+          int[] values = new int[batch.count()];
+          params.forEach(x -> x.encode(values, x.address - batch.address()));
+          client.writeMany(type, batch.address(), values, 0, values.length);
+        }
+        invalidate(type, batch.address(), batch.count());
+        written.addAll(params);
+      }
+    });
+    log.info("restored {} of {} params, {} were already up to date", written.size(), wanted.size(),
+      wanted.size() - written.size());
+    List<ModbusParam> readBack = written.isEmpty() ? written : readAll(written);
+    readBack.stream()
+      .filter(x -> changed.get(x.type).map(y -> differs(y.get(x.address), x)).getOrElse(false))
+      .forEach(x -> log.warn("restored {} but the device reports {}", changed.get(x.type).get().get(x.address), x));
+    return readBack;
+  }
+
+  private static boolean differs(ModbusParam wanted, ModbusParam live) {
+    if (live == null || live.modbusValue == null) {
+      return true;
+    }
+    int[] left = new int[wanted.registers()];
+    int[] right = new int[live.registers()];
+    wanted.encode(left, 0);
+    live.encode(right, 0);
+    return !Arrays.equals(left, right);
+  }
+
+  /**The rows of the backup are streamed, so only the writable params with a value are kept in memory.*/
+  public List<ModbusParam> restore(PathLocation backup) {
+    try (CsvRowReader<ModbusParam> rows = CsvRowReader.open(backup.toPath(), ModbusParam.class,
+      ModbusParam.rowMapper)) {
+      return restore(() -> rows);
+    }
+  }
+
   @Override
   public void close() throws Exception {
     try {
@@ -109,51 +252,207 @@ public class ModbusyncApp implements AutoCloseable {
     }
   }
 
-  public Iterator<ModbusParam> backup(Map<String, ModbusParam> all) {
-    return Iterator.of(config.reads).flatMap(read -> {
-      Iterator<ModbusParam> params = Iterator.range(read.start(), read.start() + read.count())
-        .map(
-          x -> all.get(key(read.type(), x)).getOrElse(() -> ModbusParam.create().withType(read.type()).withAddress(x)));
-      return readAll(params);
+  /**
+   * Reads the configured ranges in windows of BACKUP_WINDOW batches, pipelined if the transport allows it, and passes
+   * the params of each batch to sink as soon as its window is read, so the memory used does not grow with the number
+   * of addresses. A multi-register param is one row.
+   */
+  public void backup(ParamIndex all, Consumer<List<ModbusParam>> sink) {
+    for (ModbusRead read : config.reads) {
+      ModbusType type = read.type();
+      int end = read.start() + read.count();
+      int[] addresses = IntStream.range(read.start(), end).toArray();
+      int maxCount = client.batchSize(type, read.max());
+      List<ReadBatch> batches = planner.plan(type, addresses, all.ends(type, addresses, end), maxCount);
+      int[] values = new int[maxCount * BACKUP_WINDOW];
+      for (int from = 0; from < batches.size();) {
+        int first = batches.get(from).address();
+        int to = from + 1;
+        while (to < batches.size() && to - from < BACKUP_WINDOW && batches.get(to).end() - first <= values.length) {
+          to++;
+        }
+        List<ReadBatch> window = batches.subList(from, to);
+        client.readBatches(window, values, first);
+        for (ReadBatch batch : window) {
+          List<ModbusParam> params = new ArrayList<>(batch.count());
+          for (int i = 0; i < batch.count(); i += params.get(params.size() - 1).registers()) {
+            params.add(decode(all, type, batch.address() + i, values, first, batch.end() - first));
+          }
+          sink.accept(params);
+        }
+        from = to;
+      }
+    }
+  }
+
+  /**
+   * The param at address decoded from values holding count registers from first. A multi-register param that does not
+   * fit in values is returned as a bare register.
+   */
+  private static ModbusParam decode(ParamIndex all, ModbusType type, int address, int[] values, int first,
+      int count) {
+    ModbusParam param = all.getOrCreate(type, address);
+    if (address + param.registers() > first + count) {
+      param = ModbusParam.create().withType(type).withAddress(address);
+    }
+    return param.decode(values, address - first);
+  }
+
+  /**
+   * Polls the configured ranges every config.pollMillis and passes to sink the params read by each cycle, the ones with
+   * a slower poll interval only in their cycles. In delta mode only the params whose value changed more than their
+   * deadband are passed, all of them in the first cycle.
+   * @param maxCycles max number of cycles or 0 to poll until stopped
+   */
+  public void poll(ParamIndex all, long maxCycles, Consumer<List<PolledParam>> sink) {
+    ModbusRead[] reads = config.reads;
+    Poller poller = new Poller(client, planner, schedule(all));
+    RegisterImage image = poller.image();
+    DecodeTable table = DecodeTable.compile(all, reads);
+    DeltaDetector detector = config.delta ? new DeltaDetector(all, reads) : null;
+    poller.run(maxCycles, (cycle, values) -> {
+      String time = Instant.now().toString();
+      List<PolledParam> rows = new ArrayList<>();
+      for (int r = 0; r < reads.length; r++) {
+        ModbusRead read = reads[r];
+        if (detector == null) {
+          for (int i = table.first(r); i < table.first(r + 1); i++) {
+            if (poller.wasRead(r, table.address(i) - read.start())) {
+              rows.add(new PolledParam(time, table.toParam(i, image)));
+            }
+          }
+          continue;
+        }
+        Delta delta = detector.update(read.type(), read.start(), values[r], 0, read.count());
+        //a change in any register of a multi-register param reports the param once
+        int reported = table.first(r);
+        for (int j = 0; delta != null && j < delta.size(); j++) {
+          int i = table.covering(r, delta.addresses()[j]);
+          if (i >= reported) {
+            rows.add(new PolledParam(time, table.toParam(i, image)));
+            reported = i + 1;
+          }
+        }
+      }
+      if (!rows.isEmpty()) {
+        sink.accept(rows);
+      }
     });
   }
 
-  private String key(ModbusType type, Integer address) {
-    return "%s%s".formatted(type, address);
+  /**
+   * Polls the configured ranges every config.pollMillis and appends each cycle to the recorder. Between its reads a
+   * param with a slower poll interval is recorded with its last read value.
+   * @param maxCycles max number of cycles or 0 to poll until stopped
+   */
+  public void record(ParamIndex all, long maxCycles, TimeSeriesRecorder recorder) {
+    Poller poller = new Poller(client, planner, schedule(all));
+    poller.run(maxCycles, (cycle, values) -> recorder.append(System.currentTimeMillis(), values));
+  }
+
+  /**
+   * Polls the configured ranges every config.pollMillis and answers the Modbus TCP clients of address from the polled
+   * values, forwarding their writes to the device.
+   * @param maxCycles max number of cycles or 0 to serve until stopped
+   */
+  public void serve(ParamIndex all, long maxCycles, InetSocketAddress address) {
+    try (ModbusProxy proxy = new ModbusProxy(client, planner, schedule(all), address)) {
+      proxy.serve(maxCycles);
+    }
+  }
+
+  private PollSchedule schedule(ParamIndex all) {
+    List<PollSchedule.Rule> rules = config.pollRules == null ? List.of() : List.of(config.pollRules);
+    return new PollSchedule(all, config.pollMillis, rules, config.reads);
   }
 
   public void execute() {
-    if (config.others != null && config.others.verbosity != null) {
-      disableJ2ModLog("com.ghgande.j2mod", config.others.verbosity.logbackLevel);
+    configureLog(config);
+    ParamIndex all = loadParams(config.config);
+    if (config.pollMillis > 0 && config.servePort > 0) {
+      serve(all, config.cycles, new InetSocketAddress(config.servePort));
+    } else if (config.pollMillis > 0 && config.record != null) {
+      try (TimeSeriesRecorder recorder = new TimeSeriesRecorder(config.record.toPath(), config.reads)) {
+        record(all, config.cycles, recorder);
+      }
+    } else if (config.pollMillis > 0) {
+      pollToFile(all);
+    } else {
+      backupToFile(all);
     }
-    // before anything try to write to file
-    writeToFile("started", false);
-    Map<String, ModbusParam> all = ModbusParam.csvMapper
-      .toIterator(dropLines(config.config.readContent(), 2), ModbusParam.class)
-      .toMap(x -> key(x.type, x.address), x -> x);
-    //tojavalist since vavr Iterator else iterable is consumed on iteration
-    String content = Nodes.csv.toString(backup(all).toJavaList());
-    log.info("\n---\n{}", content);
-    writeToFile(content, true);
-  }
-
-  private void writeToFile(String content, boolean forceWrite) {
-    if (config.path != null) {
-      if (!config.path.exists()) {
-        config.path.write(content);
-      } else {
-        if (config.force || forceWrite) {
-          config.path.write(content);
-        } else {
-          throw new RuntimeException(
-            "Output " + config.path.toExternalForm() + " already exits. To overwrite use --force option.");
+  }
+
+  private void pollToFile(ParamIndex all) {
+    try (CsvRowWriter<PolledParam> writer = openOutput(config.path, config.force, PolledParam.class)) {
+      poll(all, config.cycles, writer::write);
+      log.info("polled {} rows to {}", writer.count(), config.path == null ? "stdout" : config.path.toExternalForm());
+    }
+  }
+
+  /**Backup with params details already loaded. Used when the same details are shared by several devices.*/
+  public void execute(ParamIndex all) {
+    backupToFile(all);
+  }
+
+  /**Rows are flushed after each batch so a backup interrupted in the middle keeps what was read.*/
+  private void backupToFile(ParamIndex all) {
+    try (CsvRowWriter<ModbusParam> writer = openOutput(config.path, config.force, ModbusParam.class)) {
+      backup(all, writer::write);
+      log.info("backup of {} params to {}", writer.count(),
+        config.path == null ? "stdout" : config.path.toExternalForm());
+    }
+  }
+
+  /**Writes the recorded values of config.query between config.from and config.to as csv.*/
+  public static void queryToFile(ModbusyncConfig config) {
+    ParamIndex all = loadParams(config.config);
+    long from = config.from == null ? Long.MIN_VALUE : Instant.parse(config.from).toEpochMilli();
+    long to = config.to == null ? Long.MAX_VALUE : Instant.parse(config.to).toEpochMilli();
+    Series series = TimeSeriesRecorder.query(config.record.toPath(), all, config.query, from, to);
+    ModbusParam param = all.getOrCreate(series.type(), series.address());
+    //the registers of a multi-register param, recorded in the same cycles
+    int[][] words = series.columns();
+    int[] registers = new int[words.length];
+    try (CsvRowWriter<PolledParam> writer = openOutput(config.path, config.force, PolledParam.class)) {
+      List<PolledParam> rows = new ArrayList<>();
+      for (int i = 0; i < series.size(); i++) {
+        String time = Instant.ofEpochMilli(series.times()[i]).toString();
+        for (int k = 0; k < words.length; k++) {
+          registers[k] = words[k][i];
+        }
+        rows.add(new PolledParam(time, param.decode(registers, 0)));
+        if (rows.size() == 1000 || i == series.size() - 1) {
+          writer.write(rows);
+          rows.clear();
         }
       }
+      log.info("{} values of {} between {} and {}", series.size(), config.query, config.from, config.to);
+    }
+  }
+
+  /**
+   * Fails before reading anything if the output exists and force is not set. Without output the rows go to stdout.
+   * Written with ModbusParam.rowMapper, so a backup is read back by diff and restore as it was written.
+   */
+  public static <T> CsvRowWriter<T> openOutput(PathLocation path, boolean force, Class<T> type) {
+    if (path == null) {
+      return CsvRowWriter.toStdout(type, ModbusParam.rowMapper);
+    }
+    if (path.exists() && !force) {
+      throw new RuntimeException(
+        "Output " + path.toExternalForm() + " already exits. To overwrite use --force option.");
+    }
+    return CsvRowWriter.open(path.toPath(), type, ModbusParam.rowMapper);
+  }
+
+  public static void configureLog(ModbusyncConfig config) {
+    if (config.others != null && config.others.verbosity != null) {
+      disableJ2ModLog("com.ghgande.j2mod", config.others.verbosity.logbackLevel);
     }
   }
 
-  private String dropLines(String content, int lines) {
-    return Iterator.ofAll(Splitter.on('\n').splitToStream(content).iterator()).drop(lines).mkString("\n");
+  public static ParamIndex loadParams(PathLocation config) {
+    return ParamIndex.load(config);
   }
 
   public static void disableJ2ModLog() {
@@ -7,6 +7,7 @@ import java.util.concurrent.Callable;
 import ch.qos.logback.classic.Level;
 import com.namekis.modbusync.ModbusParam.ModbusType;
 import com.namekis.modbusync.impl.RichEnum;
+import com.namekis.modbusync.impl.SessionScope;
 import io.vavr.collection.Iterator;
 import io.vavr.collection.Map;
 import org.raisercostin.jedio.Location;
@@ -21,13 +22,19 @@ import picocli.CommandLine.Option;
 import picocli.CommandLine.TypeConversionException;
 
 @Command(name = "modbusync", mixinStandardHelpOptions = true, version = "modbusync 0.1",
-    description = "Synchornize backup/restore MODBUS devices.", subcommands = GenerateCompletion.class)
+    description = "Synchornize backup/restore MODBUS devices.",
+    subcommands = { GenerateCompletion.class, DiffSubcommand.class, ModPollSubcommand.class })
 public class ModbusyncConfig implements Callable<Integer> {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ModbusyncConfig.class);
 
   public static ModbusyncConfig tcp(String host, int port, int unitId) {
     return new ModbusyncConfig(new Transport(new Transport.TcpUdp(host, port), null), unitId);
   }
 
+  public static ModbusyncConfig serial(String serialPort, int baudrate, int unitId) {
+    return new ModbusyncConfig(new Transport(null, new Transport.Serial(serialPort, baudrate, 8, 1, "none")), unitId);
+  }
+
   public static class Transport {
 
     public static class TcpUdp {
@@ -39,6 +46,11 @@ public class ModbusyncConfig implements Callable<Integer> {
           defaultValue = "502")
       public int port = 502;
 
+      @Option(order = 3, names = "-pipeline",
+          description = "Max number of read requests in flight on the connection. 1 disables pipelining. Default: ${DEFAULT-VALUE}.",
+          defaultValue = "1")
+      public int pipeline = 1;
+
       public TcpUdp() {
       }
 
@@ -46,6 +58,11 @@ public class ModbusyncConfig implements Callable<Integer> {
         this.host = host;
         this.port = port;
       }
+
+      public TcpUdp withPipeline(int pipeline) {
+        this.pipeline = pipeline;
+        return this;
+      }
     }
 
     public static class Serial {
@@ -69,6 +86,12 @@ public class ModbusyncConfig implements Callable<Integer> {
           defaultValue = "none")
       public String parity = "none";
 
+      @Option(names = "-ascii", description = "Use Modbus ASCII instead of RTU.")
+      public boolean ascii = false;
+
+      public Serial() {
+      }
+
       public Serial(String serialPort, int baudrate, int databits, int stopbits, String parity) {
         this.serialPort = serialPort;
         this.baudrate = baudrate;
@@ -76,6 +99,11 @@ public class ModbusyncConfig implements Callable<Integer> {
         this.stopbits = stopbits;
         this.parity = parity;
       }
+
+      public Serial withAscii(boolean ascii) {
+        this.ascii = ascii;
+        return this;
+      }
     }
 
     @ArgGroup(heading = "\nTransport: Tcp\n", exclusive = false)
@@ -93,7 +121,7 @@ public class ModbusyncConfig implements Callable<Integer> {
     }
   }
 
-  @ArgGroup(exclusive = true, multiplicity = "1")
+  @ArgGroup(exclusive = true, multiplicity = "0..1")
   public Transport transport;
   @Option(names = { "-u", "-unitid" }, description = "Unit id or slave id", showDefaultValue = Visibility.ALWAYS)
   public int unitId = 1;
@@ -115,6 +143,9 @@ public class ModbusyncConfig implements Callable<Integer> {
       int start = Integer.parseInt(parts[1]);
       int count = Integer.parseInt(parts[2]);
       Integer max = parts.length == 4 ? Integer.parseInt(parts[3]) : null;
+      if (max != null && max < 1) {
+        throw new TypeConversionException("MaxBatch [%s] must be at least 1.".formatted(parts[3]));
+      }
       return new ModbusRead(type, start, count, max);
     }
   }
@@ -126,7 +157,6 @@ public class ModbusyncConfig implements Callable<Integer> {
   }
 
   @Option(names = { "-r", "--read" },
-      required = true,
       description = """
           Read operations in the format Type,Start,Count,MaxBatch. Example: COIL,0,10[,130] .
             Type - coil,discrete,holding,input
@@ -140,6 +170,123 @@ public class ModbusyncConfig implements Callable<Integer> {
           """,
       converter = ModbusReadConverter.class)
   public ModbusRead[] reads;
+  public static class TargetConverter implements CommandLine.ITypeConverter<Target> {
+    @Override
+    public Target convert(String value) throws Exception {
+      String[] parts = value.split(":");
+      if (parts.length < 1 || parts.length > 3 || parts[0].isBlank()) {
+        throw new TypeConversionException("Target [%s] must be in the format Host[:Port[:UnitId]]".formatted(value));
+      }
+      int port = parts.length >= 2 ? Integer.parseInt(parts[1]) : 502;
+      int unitId = parts.length == 3 ? Integer.parseInt(parts[2]) : 1;
+      return new Target(parts[0], port, unitId);
+    }
+  }
+
+  public static class PollRuleConverter implements CommandLine.ITypeConverter<PollSchedule.Rule> {
+    @Override
+    public PollSchedule.Rule convert(String value) throws Exception {
+      int colon = value.indexOf(':');
+      int equals = value.indexOf('=', colon + 1);
+      if (colon < 1 || equals < 0) {
+        throw new TypeConversionException("Poll rule [%s] must be in the format Millis:Field=Value".formatted(value));
+      }
+      String field = value.substring(colon + 1, equals).trim();
+      PollSchedule.Field parsed = Iterator.of(PollSchedule.Field.values())
+        .find(x -> x.name().equalsIgnoreCase(field))
+        .getOrElseThrow(() -> new TypeConversionException("Field [%s] is not one of %s.".formatted(field,
+          Iterator.of(PollSchedule.Field.values()).mkString(","))));
+      long millis = Long.parseLong(value.substring(0, colon).trim());
+      if (millis < 1) {
+        throw new TypeConversionException("Millis [%s] must be at least 1.".formatted(millis));
+      }
+      return new PollSchedule.Rule(millis, parsed, value.substring(equals + 1));
+    }
+  }
+
+  public record Target(String host, int port, int unitId) {
+    /**Devices behind the same gateway share it and must be accessed one at a time.*/
+    public String gateway() {
+      return host + ":" + port;
+    }
+
+    public String name() {
+      return "%s-%s-%s".formatted(host, port, unitId);
+    }
+
+    @Override
+    public String toString() {
+      return "%s:%s:%s".formatted(host, port, unitId);
+    }
+  }
+
+  @Option(names = { "--restore" },
+      description = "Backup csv to restore. Only the params whose live value differs are written, neighbour addresses with one F15/F16 request.",
+      converter = LocationConverter.class)
+  public PathLocation restore;
+  @Option(names = { "--target" },
+      description = """
+          Backup several devices instead of the one given by the transport. Format Host[:Port[:UnitId]].
+          Example: 192.168.1.112:8899:1 . Devices behind the same host and port are read one at a time, different
+          gateways in parallel.
+          """,
+      converter = TargetConverter.class)
+  public Target[] targets;
+  @Option(names = { "--parallel" },
+      description = "Max number of gateways read in parallel. With virtual threads it can be in the thousands.",
+      showDefaultValue = Visibility.ALWAYS)
+  public int parallel = 8;
+  @Option(names = { "--threads" },
+      description = "Threads of the device sessions: ${COMPLETION-CANDIDATES}. auto uses virtual threads on Java 21+ and a pool of --parallel threads before.",
+      showDefaultValue = Visibility.ALWAYS)
+  public SessionScope.Threads threads = SessionScope.Threads.auto;
+  @Option(names = { "--session-timeout" },
+      description = "Seconds after which the devices not backed up yet are cancelled and reported as failed. 0 waits for all.",
+      showDefaultValue = Visibility.ALWAYS)
+  public long sessionTimeoutSeconds = 0;
+  @Option(names = { "--combined" },
+      description = "Write all targets in the output file with a device column instead of one file per device.",
+      showDefaultValue = Visibility.ALWAYS)
+  public boolean combined = false;
+  @Option(names = { "--adaptive-batch" },
+      description = "Shrink batches rejected by the device (illegal data address or timeout) and keep the largest size accepted by each unit id.",
+      showDefaultValue = Visibility.ALWAYS)
+  public boolean adaptiveBatch = false;
+  @Option(names = { "--poll" },
+      description = "Poll the reads every given milliseconds and write a row with the time for each param and poll instead of one backup.")
+  public long pollMillis = 0;
+  @Option(names = { "--poll-every" },
+      description = """
+          With --poll read the params matching a field of the config every given milliseconds instead of every poll,
+          in the format Millis:Field=Value with Field one of type, group, level, param. Example: 3600000:level=Installer .
+          The first matching rule is used and a PollMillis column in the config wins over the rules.
+          """,
+      converter = PollRuleConverter.class)
+  public PollSchedule.Rule[] pollRules;
+  @Option(names = { "--cycles" }, description = "Number of polls. 0 polls until stopped.",
+      showDefaultValue = Visibility.ALWAYS)
+  public long cycles = 0;
+  @Option(names = { "--delta" },
+      description = "With --poll write only the params that changed by at least their step (or the precision) since the last written value.",
+      showDefaultValue = Visibility.ALWAYS)
+  public boolean delta = false;
+  @Option(names = { "--record" },
+      description = "With --poll append the polls to the time series in this directory instead of writing csv rows.",
+      converter = LocationConverter.class)
+  public PathLocation record;
+  @Option(names = { "--serve" },
+      description = "With --poll answer Modbus TCP clients on this port from the polled values and forward their writes to the device, instead of writing csv rows.")
+  public int servePort = 0;
+  @Option(names = { "--query" },
+      description = "Write as csv the values of the param with this name or code in the config recorded in --record.")
+  public String query;
+  @Option(names = { "--from" }, description = "Start time of --query. Example: 2024-02-18T00:00:00Z .")
+  public String from;
+  @Option(names = { "--to" }, description = "End time of --query, inclusive.")
+  public String to;
+  @Option(names = { "--metrics" },
+      description = "Log the latency and error metrics of the requests every given seconds and at the end, and publish them in JMX as com.namekis.modbusync:type=Metrics.")
+  public long metricsSeconds = 0;
   @Option(names = { "-o", "--output" }, description = "File to write csv", converter = LocationConverter.class)
   public PathLocation path;
   @Option(names = { "-f", "--force" }, description = "Overwrite output file if already exists",
@@ -220,13 +367,80 @@ public class ModbusyncConfig implements Callable<Integer> {
     return this;
   }
 
+  public ModbusyncConfig withPoll(long pollMillis, long cycles, boolean delta) {
+    this.pollMillis = pollMillis;
+    this.cycles = cycles;
+    this.delta = delta;
+    return this;
+  }
+
   public ModbusyncConfig withParams(List<ModbusParam> params) {
     this.params = params;
     return this;
   }
 
+  /**A copy of this config that reads the given target and writes in the given path.*/
+  public ModbusyncConfig forTarget(Target target, PathLocation path) {
+    Transport.TcpUdp tcp = new Transport.TcpUdp(target.host(), target.port());
+    if (transport != null && transport.tcp != null) {
+      tcp.withPipeline(transport.tcp.pipeline);
+    }
+    ModbusyncConfig res = new ModbusyncConfig(new Transport(tcp, null), target.unitId());
+    res.params = params;
+    res.reads = reads;
+    res.path = path;
+    res.force = force;
+    res.config = config;
+    res.adaptiveBatch = adaptiveBatch;
+    res.others = others;
+    return res;
+  }
+
   @Override
   public Integer call() throws Exception {
+    if (metricsSeconds <= 0) {
+      return run();
+    }
+    Metrics.global.registerJmx();
+    try (AutoCloseable dump = Metrics.global.startDump(metricsSeconds * 1000, x -> log.info("metrics:\n{}", x))) {
+      return run();
+    } finally {
+      log.info("metrics:\n{}", Metrics.global.dump());
+    }
+  }
+
+  private Integer run() throws Exception {
+    if (query != null) {
+      if (record == null) {
+        throw new RuntimeException("--query needs the --record directory");
+      }
+      ModbusyncApp.configureLog(this);
+      ModbusyncApp.queryToFile(this);
+      return 0;
+    }
+    if (restore != null) {
+      if (transport == null) {
+        throw new RuntimeException("A transport (-tcp or -serial) is needed to restore " + restore.toExternalForm());
+      }
+      try (ModbusyncApp app = new ModbusyncApp(this)) {
+        ModbusyncApp.configureLog(this);
+        app.restore(restore);
+      }
+      return 0;
+    }
+    if (reads == null || reads.length == 0) {
+      throw new RuntimeException("At least one --read is needed for a backup");
+    }
+    if (targets != null && targets.length > 0) {
+      if (pollMillis > 0) {
+        throw new RuntimeException("--poll reads one device, use a transport instead of --target");
+      }
+      new FleetBackup(this).execute();
+      return 0;
+    }
+    if (transport == null) {
+      throw new RuntimeException("A transport (-tcp or -serial) or at least one --target is needed");
+    }
     try (ModbusyncApp app = new ModbusyncApp(this)) {
       app.execute();
     }
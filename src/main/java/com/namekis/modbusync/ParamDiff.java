@@ -0,0 +1,150 @@
+package com.namekis.modbusync;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.impl.ExternalSort;
+import com.namekis.modbusync.impl.ExternalSort.SortedRows;
+
+/**
+ * Compares two streams of params with a merge join on type and address.
+ * Both sides are sorted by type and address (with ExternalSort for files) and advanced together, so only the current
+ * param of each side is kept and the memory does not depend on the size of the backups. When an address is more than
+ * once in a side the last one is used, like in ParamIndex.
+ */
+public class ParamDiff {
+  /**Rows sorted in memory before spilling to a temporary file.*/
+  public static final int CHUNK_SIZE = 20_000;
+  public static final Comparator<ModbusParam> ORDER = Comparator.comparingInt((ModbusParam x) -> x.type.ordinal())
+    .thenComparingInt(x -> x.address);
+
+  public enum Change {
+    added,
+    removed,
+    changed
+  }
+
+  /**A row of the diff output. Left is the first backup, right the second one or the device.*/
+  @JsonPropertyOrder({ "change", "type", "address", "param", "name", "unit", "leftModbusValue", "leftValue",
+      "rightModbusValue", "rightValue" })
+  public static class Row {
+    public final Change change;
+    public final ModbusType type;
+    public final int address;
+    public final String param;
+    public final String name;
+    public final String unit;
+    public final Number leftModbusValue;
+    public final Number leftValue;
+    public final Number rightModbusValue;
+    public final Number rightValue;
+
+    public Row(Change change, ModbusParam left, ModbusParam right) {
+      ModbusParam details = right != null ? right : left;
+      this.change = change;
+      this.type = details.type;
+      this.address = details.address;
+      this.param = details.param;
+      this.name = details.name;
+      this.unit = details.unit;
+      this.leftModbusValue = left == null ? null : left.modbusValue;
+      this.leftValue = left == null ? null : left.value;
+      this.rightModbusValue = right == null ? null : right.modbusValue;
+      this.rightValue = right == null ? null : right.value;
+    }
+
+    @Override
+    public String toString() {
+      return "%s %s %s %s: %s -> %s".formatted(change, type, address, name, leftValue, rightValue);
+    }
+  }
+
+  private ParamDiff() {
+  }
+
+  /**
+   * Passes to sink a row for each param that is only in one side or whose modbusValue differs.
+   * @param left params sorted by ORDER
+   * @param right params sorted by ORDER
+   * @return the number of differences
+   */
+  public static long diff(Iterator<ModbusParam> left, Iterator<ModbusParam> right, Consumer<Row> sink) {
+    PeekingIterator<ModbusParam> l = Iterators.peekingIterator(left);
+    PeekingIterator<ModbusParam> r = Iterators.peekingIterator(right);
+    ModbusParam a = nextDistinct(l);
+    ModbusParam b = nextDistinct(r);
+    long differences = 0;
+    while (a != null || b != null) {
+      int compare = a == null ? 1 : b == null ? -1 : ORDER.compare(a, b);
+      if (compare < 0) {
+        sink.accept(new Row(Change.removed, a, null));
+        differences++;
+        a = nextDistinct(l);
+      } else if (compare > 0) {
+        sink.accept(new Row(Change.added, null, b));
+        differences++;
+        b = nextDistinct(r);
+      } else {
+        if (!Objects.equals(a.modbusValue, b.modbusValue)) {
+          sink.accept(new Row(Change.changed, a, b));
+          differences++;
+        }
+        a = nextDistinct(l);
+        b = nextDistinct(r);
+      }
+    }
+    return differences;
+  }
+
+  /**The last of the next params with the same type and address, or null at the end. Params without type are skipped.*/
+  private static ModbusParam nextDistinct(PeekingIterator<ModbusParam> params) {
+    ModbusParam res = null;
+    while (params.hasNext()) {
+      ModbusParam next = params.peek();
+      if (next.type == null) {
+        params.next();
+      } else if (res == null || ORDER.compare(res, next) == 0) {
+        res = params.next();
+      } else {
+        break;
+      }
+    }
+    return res;
+  }
+
+  /**The params sorted by type and address with at most CHUNK_SIZE of them in memory.*/
+  public static SortedRows<ModbusParam> sorted(Iterator<ModbusParam> params) {
+    return ExternalSort.sort(Iterators.filter(params, x -> x.type != null), ORDER, CHUNK_SIZE, ModbusParam.class,
+      ModbusParam.rowMapper);
+  }
+
+  /**
+   * Passes to sink the differences between the params and their live values, read chunk by chunk. The params must be
+   * sorted by ORDER. Each chunk is compared with the values read for it, so the params are sorted and read once. The
+   * params with the same type and address stay in the same chunk.
+   * @return the number of differences
+   */
+  public static long diffLive(ModbusyncApp app, Iterator<ModbusParam> sorted, int chunkSize, Consumer<Row> sink) {
+    PeekingIterator<ModbusParam> params = Iterators.peekingIterator(sorted);
+    long differences = 0;
+    while (params.hasNext()) {
+      List<ModbusParam> chunk = new ArrayList<>(chunkSize);
+      while (params.hasNext()
+          && (chunk.size() < chunkSize || ORDER.compare(chunk.get(chunk.size() - 1), params.peek()) == 0)) {
+        chunk.add(params.next());
+      }
+      List<ModbusParam> live = new ArrayList<>(app.readAll(chunk));
+      live.sort(ORDER);
+      differences += diff(chunk.iterator(), live.iterator(), sink);
+    }
+    return differences;
+  }
+}
@@ -0,0 +1,335 @@
+package com.namekis.modbusync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import com.namekis.modbusync.ModbusParam.Level;
+import com.namekis.modbusync.ModbusParam.ModbusDataType;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusParam.ModbusWordOrder;
+import com.namekis.modbusync.impl.CsvRowReader;
+import org.raisercostin.jedio.path.PathLocation;
+
+/**
+ * Params details indexed by type and address: a sorted address array per type searched without formatting or hashing
+ * a key.
+ * A parsed config is cached in a binary sidecar file next to the csv (params.csv.index) that is used as long as the
+ * hash of the csv is the same.
+ */
+public class ParamIndex implements Iterable<ModbusParam> {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ParamIndex.class);
+  private static final int MAGIC = 0x4d425849;
+  /**Increment when the sidecar layout or the ModbusParam fields change.*/
+  private static final int VERSION = 4;
+  private static final String SIDECAR_SUFFIX = ".index";
+  /**Lines before the csv header in the vendor mapping sheets.*/
+  private static final int SKIPPED_LINES = 2;
+  private static final ParamIndex EMPTY = of(List.of());
+
+  private final int[][] addresses = new int[ModbusType.values().length][];
+  private final ModbusParam[][] params = new ModbusParam[ModbusType.values().length][];
+  private final int size;
+
+  private ParamIndex(List<ModbusParam> all) {
+    int total = 0;
+    for (ModbusType type : ModbusType.values()) {
+      ModbusParam[] ofType = all.stream().filter(x -> x.type == type).toArray(ModbusParam[]::new);
+      //stable sort so the last param of an address wins like in a map
+      Arrays.sort(ofType, (a, b) -> Integer.compare(a.address, b.address));
+      int count = 0;
+      for (int i = 0; i < ofType.length; i++) {
+        if (count > 0 && ofType[count - 1].address == ofType[i].address) {
+          ofType[count - 1] = ofType[i];
+        } else {
+          ofType[count++] = ofType[i];
+        }
+      }
+      int t = type.ordinal();
+      params[t] = Arrays.copyOf(ofType, count);
+      addresses[t] = new int[count];
+      for (int i = 0; i < count; i++) {
+        addresses[t][i] = params[t][i].address;
+      }
+      total += count;
+    }
+    this.size = total;
+  }
+
+  public static ParamIndex empty() {
+    return EMPTY;
+  }
+
+  public static ParamIndex of(Iterable<ModbusParam> params) {
+    List<ModbusParam> all = new ArrayList<>();
+    params.forEach(all::add);
+    return new ParamIndex(all);
+  }
+
+  /**
+   * Loads the config from its sidecar if the csv did not change, otherwise parses the csv and writes the sidecar. The
+   * csv is hashed and parsed as a stream, without holding it in memory.
+   */
+  public static ParamIndex load(PathLocation config) {
+    if (config == null) {
+      return EMPTY;
+    }
+    Path csv = config.toPath();
+    HashCode hash;
+    try {
+      hash = MoreFiles.asByteSource(csv).hash(Hashing.sha256());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    Path sidecar = csv.resolveSibling(csv.getFileName() + SIDECAR_SUFFIX);
+    ParamIndex cached = readSidecar(sidecar, hash);
+    if (cached != null) {
+      log.debug("loaded {} params from {}", cached.size, sidecar);
+      return cached;
+    }
+    ParamIndex res;
+    try (CsvRowReader<ModbusParam> rows = CsvRowReader.open(csv, ModbusParam.class, ModbusParam.rowMapper,
+      SKIPPED_LINES)) {
+      res = of(() -> rows);
+    }
+    writeSidecar(sidecar, hash, res);
+    log.debug("loaded {} params from {}", res.size, csv);
+    return res;
+  }
+
+  /**The param at address or null.*/
+  public ModbusParam get(ModbusType type, int address) {
+    int t = type.ordinal();
+    int i = Arrays.binarySearch(addresses[t], address);
+    return i < 0 ? null : params[t][i];
+  }
+
+  /**The param holding the register at address: the param at address or a multi-register one starting before it.*/
+  public ModbusParam covering(ModbusType type, int address) {
+    int t = type.ordinal();
+    int i = Arrays.binarySearch(addresses[t], address);
+    if (i >= 0) {
+      return params[t][i];
+    }
+    int before = -i - 2;
+    return before >= 0 && addresses[t][before] + params[t][before].registers() > address ? params[t][before] : null;
+  }
+
+  /**
+   * The end of the registers of the param at each address for ReadPlanner, at most limit. An address without param
+   * ends after its register.
+   */
+  public int[] ends(ModbusType type, int[] addresses, int limit) {
+    int[] res = new int[addresses.length];
+    for (int i = 0; i < addresses.length; i++) {
+      ModbusParam param = get(type, addresses[i]);
+      int end = addresses[i] + (param == null ? 1 : param.registers());
+      res[i] = Math.max(addresses[i] + 1, Math.min(limit, end));
+    }
+    return res;
+  }
+
+  /**The param at address or an empty one of that type and address.*/
+  public ModbusParam getOrCreate(ModbusType type, int address) {
+    ModbusParam res = get(type, address);
+    return res != null ? res : ModbusParam.create().withType(type).withAddress(address);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Iterator<ModbusParam> iterator() {
+    return Arrays.stream(params).flatMap(Arrays::stream).iterator();
+  }
+
+  private static ParamIndex readSidecar(Path sidecar, HashCode hash) {
+    if (!Files.exists(sidecar)) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return null;
+      }
+      byte[] stored = new byte[in.readInt()];
+      in.readFully(stored);
+      if (!Arrays.equals(stored, hash.asBytes())) {
+        return null;
+      }
+      int count = in.readInt();
+      List<ModbusParam> all = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        all.add(readParam(in));
+      }
+      return new ParamIndex(all);
+    } catch (IOException | RuntimeException e) {
+      log.info("ignoring unreadable {}: {}", sidecar, e.getMessage());
+      return null;
+    }
+  }
+
+  /**The sidecar is only a cache so failing to write it is not an error.*/
+  private static void writeSidecar(Path sidecar, HashCode hash, ParamIndex index) {
+    Path tmp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        byte[] bytes = hash.asBytes();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeInt(index.size);
+        for (ModbusParam param : index) {
+          writeParam(out, param);
+        }
+      }
+      Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException e) {
+      log.info("cannot write {}: {}", sidecar, e.getMessage());
+    }
+  }
+
+  private static void writeParam(DataOutputStream out, ModbusParam x) throws IOException {
+    writeString(out, x.param);
+    writeString(out, x.group);
+    writeString(out, x.level == null ? null : x.level.name());
+    writeString(out, x.name);
+    writeString(out, x.description);
+    writeString(out, x.values);
+    writeString(out, x.defaultValue);
+    writeString(out, x.minValue);
+    writeString(out, x.maxValue);
+    writeString(out, x.remarks);
+    writeString(out, x.unit);
+    writeString(out, x.step);
+    writeString(out, x.precision == null ? null : x.precision.toString());
+    writeDecimal(out, x.offset);
+    writeDecimal(out, x.scale);
+    writeNumber(out, x.value);
+    writeString(out, x.type.name());
+    out.writeInt(x.address);
+    writeString(out, x.dataType == null ? null : x.dataType.name());
+    writeString(out, x.wordOrder == null ? null : x.wordOrder.name());
+    writeNumber(out, x.modbusValue);
+    writeNumber(out, x.pollMillis);
+  }
+
+  private static ModbusParam readParam(DataInputStream in) throws IOException {
+    String param = readString(in);
+    String group = readString(in);
+    String level = readString(in);
+    String name = readString(in);
+    String description = readString(in);
+    String values = readString(in);
+    String defaultValue = readString(in);
+    String minValue = readString(in);
+    String maxValue = readString(in);
+    String remarks = readString(in);
+    String unit = readString(in);
+    String step = readString(in);
+    String precision = readString(in);
+    BigDecimal offset = readDecimal(in);
+    BigDecimal scale = readDecimal(in);
+    Number value = readNumber(in);
+    ModbusType type = ModbusType.valueOf(readString(in));
+    int address = in.readInt();
+    String dataType = readString(in);
+    String wordOrder = readString(in);
+    Number modbusValue = readNumber(in);
+    Number pollMillis = readNumber(in);
+    return new ModbusParam(param, group, level == null ? null : Level.valueOf(level), name, description, values,
+      defaultValue, minValue, maxValue, remarks, unit, step, precision == null ? null : Integer.valueOf(precision),
+      offset, scale, value, type, address, dataType == null ? null : ModbusDataType.valueOf(dataType),
+      wordOrder == null ? null : ModbusWordOrder.valueOf(wordOrder), modbusValue,
+      pollMillis == null ? null : pollMillis.longValue(), null);
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeDecimal(DataOutputStream out, BigDecimal value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] unscaled = value.unscaledValue().toByteArray();
+    out.writeInt(unscaled.length);
+    out.write(unscaled);
+    out.writeInt(value.scale());
+  }
+
+  private static BigDecimal readDecimal(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] unscaled = new byte[length];
+    in.readFully(unscaled);
+    return new BigDecimal(new BigInteger(unscaled), in.readInt());
+  }
+
+  /**The exact Number subclass is kept since the value is compared with equals.*/
+  private static void writeNumber(DataOutputStream out, Number value) throws IOException {
+    if (value == null) {
+      out.writeByte(0);
+    } else if (value instanceof Integer x) {
+      out.writeByte(1);
+      out.writeInt(x);
+    } else if (value instanceof Long x) {
+      out.writeByte(2);
+      out.writeLong(x);
+    } else if (value instanceof Double x) {
+      out.writeByte(3);
+      out.writeDouble(x);
+    } else {
+      out.writeByte(4);
+      writeDecimal(out, value instanceof BigDecimal x ? x : new BigDecimal(value.toString()));
+    }
+  }
+
+  private static Number readNumber(DataInputStream in) throws IOException {
+    byte tag = in.readByte();
+    return switch (tag) {
+      case 0 -> null;
+      case 1 -> in.readInt();
+      case 2 -> in.readLong();
+      case 3 -> in.readDouble();
+      case 4 -> readDecimal(in);
+      default -> throw new IOException("Unknown number tag " + tag);
+    };
+  }
+}
@@ -0,0 +1,135 @@
+package com.namekis.modbusync;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+
+/**
+ * Gives each address of the reads its own poll interval, so settings that rarely change are not read at the rate of
+ * the sensors. The interval of a param is its pollMillis column, otherwise the first matching rule, otherwise the base
+ * period, and is rounded to a whole number of cycles of the base period. An address without param follows the rules
+ * of its type and the registers of a multi-register param follow the param.
+ * The due intervals of a cycle are a bit mask, so Poller plans the batches of each mask once.
+ */
+public class PollSchedule {
+  /**The field of the config matched by a rule.*/
+  public enum Field {
+    type,
+    group,
+    level,
+    param
+  }
+
+  /**The params whose field matches value are read every millis.*/
+  public record Rule(long millis, Field field, String value) {
+    public boolean matches(ModbusParam param) {
+      return switch (field) {
+        case type -> param.type != null && param.type.name().equalsIgnoreCase(value);
+        case group -> value.equalsIgnoreCase(param.group);
+        case level -> param.level != null
+            && (param.level.name().equalsIgnoreCase(value) || param.level.code.equalsIgnoreCase(value));
+        case param -> value.equalsIgnoreCase(param.param);
+      };
+    }
+  }
+
+  private final ParamIndex params;
+  private final long periodMillis;
+  private final ModbusRead[] reads;
+  /**Cycles between two reads of each distinct interval, ascending.*/
+  private final long[] cycles;
+  /**Index in cycles of the interval of each address of each read.*/
+  private final int[][] intervals;
+
+  public PollSchedule(ParamIndex params, long periodMillis, List<Rule> rules, ModbusRead... reads) {
+    Preconditions.checkArgument(periodMillis > 0, "Poll rate should be positive but was %s.", periodMillis);
+    this.params = params;
+    this.periodMillis = periodMillis;
+    this.reads = reads;
+    long[][] every = new long[reads.length][];
+    for (int i = 0; i < reads.length; i++) {
+      ModbusRead read = reads[i];
+      every[i] = new long[read.count()];
+      for (int j = 0; j < read.count(); j++) {
+        int address = read.start() + j;
+        ModbusParam param = params.covering(read.type(), address);
+        if (param == null) {
+          param = ModbusParam.create().withType(read.type()).withAddress(address);
+        }
+        every[i][j] = Math.max(1, Math.round((double) intervalMillis(param, rules) / periodMillis));
+      }
+    }
+    this.cycles = Arrays.stream(every).flatMapToLong(Arrays::stream).distinct().sorted().toArray();
+    Preconditions.checkArgument(cycles.length <= Long.SIZE, "At most %s distinct poll intervals but there are %s.",
+      Long.SIZE, cycles.length);
+    this.intervals = new int[reads.length][];
+    for (int i = 0; i < reads.length; i++) {
+      intervals[i] = new int[every[i].length];
+      for (int j = 0; j < every[i].length; j++) {
+        intervals[i][j] = Arrays.binarySearch(cycles, every[i][j]);
+      }
+    }
+  }
+
+  private long intervalMillis(ModbusParam param, List<Rule> rules) {
+    if (param.pollMillis != null) {
+      return param.pollMillis;
+    }
+    for (Rule rule : rules) {
+      if (rule.matches(param)) {
+        return rule.millis();
+      }
+    }
+    return periodMillis;
+  }
+
+  public ParamIndex params() {
+    return params;
+  }
+
+  public long periodMillis() {
+    return periodMillis;
+  }
+
+  public ModbusRead[] reads() {
+    return reads;
+  }
+
+  /**
+   * Bit k is set if the k-th interval had a due cycle after the previous polled cycle and up to cycle, so an interval
+   * is not missed when cycles are skipped. Everything is due at the first cycle, polled after cycle -1.
+   */
+  public long dueMask(long previous, long cycle) {
+    long mask = 0;
+    for (int k = 0; k < cycles.length; k++) {
+      if (Math.floorDiv(cycle, cycles[k]) != Math.floorDiv(previous, cycles[k])) {
+        mask |= 1L << k;
+      }
+    }
+    return mask;
+  }
+
+  /**Whether the address at index of read i is due with mask.*/
+  public boolean isDue(long mask, int read, int index) {
+    return (mask & 1L << intervals[read][index]) != 0;
+  }
+
+  /**The addresses of read i due with mask, sorted.*/
+  public int[] due(long mask, int read) {
+    int[] res = new int[intervals[read].length];
+    int count = 0;
+    for (int j = 0; j < res.length; j++) {
+      if (isDue(mask, read, j)) {
+        res[count++] = reads[read].start() + j;
+      }
+    }
+    return Arrays.copyOf(res, count);
+  }
+
+  /**The interval in ms of the address at index of read i, after rounding.*/
+  public long intervalMillis(int read, int index) {
+    return cycles[intervals[read][index]] * periodMillis;
+  }
+}
@@ -0,0 +1,179 @@
+package com.namekis.modbusync;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+import com.namekis.modbusync.ReadPlanner.ReadBatch;
+
+/**
+ * Reads the same addresses at a fixed rate.
+ * The batches are planned once and every cycle reads in the same buffers. Cycles are scheduled relative to the start
+ * so they do not drift. A cycle that ends after the start of the next one is reported as an overrun and the cycles
+ * that were missed are skipped instead of being read in a burst.
+ * With a PollSchedule each cycle reads only the due addresses, merged in as few batches as the planner can. The
+ * batches of each combination of due intervals are planned once, at its first cycle.
+ */
+public class Poller {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Poller.class);
+
+  public interface Listener {
+    /**
+     * Called after each cycle. The buffers are reused by the next cycle, values[i][j] being address
+     * reads[i].start() + j.
+     */
+    void onCycle(long cycle, int[][] values);
+
+    default void onOverrun(long cycle, long durationNanos, long skippedCycles) {
+      log.warn("cycle {} took {}ms, skipped {} cycles", cycle, durationNanos / 1_000_000, skippedCycles);
+    }
+
+    default void onError(long cycle, RuntimeException e) {
+      log.warn("cycle {} failed: {}", cycle, e.getMessage());
+    }
+  }
+
+  private final ModbusClient client;
+  private final ReadPlanner planner;
+  private final PollSchedule schedule;
+  private final long periodNanos;
+  private final ModbusRead[] reads;
+  /**The batches of each read by due mask.*/
+  private final Map<Long, List<ReadBatch>[]> plans = new HashMap<>();
+  private final int[][] values;
+  private final RegisterImage image;
+  private volatile boolean running;
+  private long overruns;
+  private long previousCycle = -1;
+  private long dueMask;
+
+  public Poller(ModbusClient client, ReadPlanner planner, long periodMillis, ModbusRead... reads) {
+    this(client, planner, periodMillis, ParamIndex.empty(), reads);
+  }
+
+  /**The registers of each multi-register param of params are read by the same batch.*/
+  public Poller(ModbusClient client, ReadPlanner planner, long periodMillis, ParamIndex params, ModbusRead... reads) {
+    this(client, planner, new PollSchedule(params, periodMillis, List.of(), reads));
+  }
+
+  public Poller(ModbusClient client, ReadPlanner planner, PollSchedule schedule) {
+    this.client = client;
+    this.planner = planner;
+    this.schedule = schedule;
+    this.periodNanos = schedule.periodMillis() * 1_000_000;
+    this.reads = schedule.reads();
+    this.values = new int[reads.length][];
+    for (int i = 0; i < reads.length; i++) {
+      values[i] = new int[reads[i].count()];
+    }
+    this.image = new RegisterImage(reads);
+  }
+
+  /**The values of the last cycle.*/
+  public RegisterImage image() {
+    return image;
+  }
+
+  public ModbusRead[] reads() {
+    return reads;
+  }
+
+  public long overruns() {
+    return overruns;
+  }
+
+  /**Reads all addresses once in the reused buffers and the image.*/
+  public int[][] pollOnce() {
+    return pollOnce(-1, 0);
+  }
+
+  /**
+   * Reads the addresses due after the previous cycle and up to cycle in the reused buffers and the image. The other
+   * values are the ones of their last read.
+   */
+  public int[][] pollOnce(long previous, long cycle) {
+    dueMask = schedule.dueMask(previous, cycle);
+    List<ReadBatch>[] batches = plans.computeIfAbsent(dueMask, this::plan);
+    for (int i = 0; i < reads.length; i++) {
+      int start = reads[i].start();
+      client.readBatches(batches[i], values[i], start);
+      for (ReadBatch batch : batches[i]) {
+        image.update(batch.type(), batch.address(), values[i], batch.address() - start, batch.count());
+      }
+    }
+    return values;
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<ReadBatch>[] plan(long mask) {
+    List<ReadBatch>[] res = new List[reads.length];
+    for (int i = 0; i < reads.length; i++) {
+      ModbusRead read = reads[i];
+      int[] addresses = schedule.due(mask, i);
+      int[] ends = schedule.params().ends(read.type(), addresses, read.start() + read.count());
+      res[i] = planner.plan(read.type(), addresses, ends, client.batchSize(read.type(), read.max()));
+    }
+    return res;
+  }
+
+  /**Whether the value at index of read i was read by the last cycle.*/
+  public boolean wasRead(int read, int index) {
+    return schedule.isDue(dueMask, read, index);
+  }
+
+  /**
+   * Polls until stopped or until maxCycles cycles were run. The skipped cycles are not counted, so maxCycles polls are
+   * made even when some of them overrun.
+   * @param maxCycles max number of polls or 0 to poll until stopped
+   */
+  public void run(long maxCycles, Listener listener) {
+    running = true;
+    previousCycle = -1;
+    long start = System.nanoTime();
+    long cycle = 0;
+    //the cycles skipped after an overrun are not run so they are not counted
+    long ran = 0;
+    while (running && (maxCycles <= 0 || ran < maxCycles)) {
+      sleepUntil(start + cycle * periodNanos);
+      if (!running) {
+        break;
+      }
+      long begin = System.nanoTime();
+      try {
+        int[][] polled = pollOnce(previousCycle, cycle);
+        //a failed cycle is not remembered so what was due is read again by the next one
+        previousCycle = cycle;
+        listener.onCycle(cycle, polled);
+      } catch (RuntimeException e) {
+        listener.onError(cycle, e);
+      }
+      ran++;
+      long now = System.nanoTime();
+      long next = cycle + 1;
+      if (now > start + next * periodNanos) {
+        long onTime = (now - start) / periodNanos + 1;
+        overruns++;
+        listener.onOverrun(cycle, now - begin, onTime - next);
+        next = onTime;
+      }
+      cycle = next;
+    }
+    running = false;
+  }
+
+  public void stop() {
+    running = false;
+  }
+
+  private void sleepUntil(long deadline) {
+    long remaining;
+    while (running && (remaining = deadline - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(remaining);
+      if (Thread.interrupted()) {
+        running = false;
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.namekis.modbusync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+
+/**
+ * Plans the read requests for a set of addresses of the same type.
+ * Neighbour addresses are merged in one request only if the unused addresses between them are cheaper than another
+ * round trip. A request never exceeds the given max count.
+ */
+public class ReadPlanner {
+  /**
+   * Estimated cost of an extra request in bytes on the wire: request frame, response header and the time the device
+   * or gateway needs to turn around, which on slow links is most of it.
+   */
+  public static final int DEFAULT_ROUND_TRIP_BYTES = 64;
+
+  public record ReadBatch(ModbusType type, int address, int count) {
+    public int end() {
+      return address + count;
+    }
+  }
+
+  private final int roundTripBytes;
+
+  public ReadPlanner() {
+    this(DEFAULT_ROUND_TRIP_BYTES);
+  }
+
+  public ReadPlanner(int roundTripBytes) {
+    Preconditions.checkArgument(roundTripBytes >= 0, "Round trip cost should not be negative but was %s.",
+      roundTripBytes);
+    this.roundTripBytes = roundTripBytes;
+  }
+
+  /**Max number of unused addresses that are read in order to avoid another round trip.*/
+  public int maxGap(ModbusType type) {
+    return roundTripBytes * 8 / type.bits;
+  }
+
+  /**
+   * @param addresses sorted and distinct addresses
+   * @param maxCount max number of addresses read in one batch
+   */
+  public List<ReadBatch> plan(ModbusType type, int[] addresses, int maxCount) {
+    int[] ends = new int[addresses.length];
+    for (int i = 0; i < addresses.length; i++) {
+      ends[i] = addresses[i] + 1;
+    }
+    return plan(type, addresses, ends, maxCount);
+  }
+
+  /**
+   * Plans values that span several addresses, like the multi-register data types. A value is never split between two
+   * batches, so it is read by one request and its registers are from the same moment.
+   * @param starts sorted and distinct addresses
+   * @param ends the end of the value at each start, exclusive
+   * @param maxCount max number of addresses read in one batch
+   */
+  public List<ReadBatch> plan(ModbusType type, int[] starts, int[] ends, int maxCount) {
+    Preconditions.checkArgument(maxCount > 0, "Max count should be positive but was %s.", maxCount);
+    List<ReadBatch> batches = new ArrayList<>();
+    if (starts.length == 0) {
+      return batches;
+    }
+    int maxGap = maxGap(type);
+    int start = starts[0];
+    int end = checkSpan(type, start, ends[0], maxCount);
+    for (int i = 1; i < starts.length; i++) {
+      int address = starts[i];
+      Preconditions.checkArgument(address > starts[i - 1], "Addresses should be sorted and distinct but %s follows %s.",
+        address, starts[i - 1]);
+      int valueEnd = checkSpan(type, address, ends[i], maxCount);
+      if (address - end <= maxGap && Math.max(end, valueEnd) - start <= maxCount) {
+        end = Math.max(end, valueEnd);
+      } else {
+        batches.add(new ReadBatch(type, start, end - start));
+        start = address;
+        end = valueEnd;
+      }
+    }
+    batches.add(new ReadBatch(type, start, end - start));
+    return batches;
+  }
+
+  private static int checkSpan(ModbusType type, int start, int end, int maxCount) {
+    Preconditions.checkArgument(end > start && end - start <= maxCount,
+      "The value at %s %s spans %s addresses, more than a batch of %s.", type, start, end - start, maxCount);
+    return end;
+  }
+}
@@ -0,0 +1,205 @@
+package com.namekis.modbusync;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.google.common.base.Preconditions;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+
+/**
+ * Read-through cache of registers in front of the clients of many devices, so integrations asking for the same values
+ * at the same moment do not each send a request to a gateway that drops requests when polled by several clients.
+ * Registers are cached in blocks of blockSize addresses aligned on blockSize: a miss reads its whole block in one
+ * request and concurrent misses of the same block, for the same or neighbouring addresses, wait for that single read.
+ * A block expires after the ttl of its type and is dropped when a register of it is written. The least recently used
+ * blocks of all the devices are evicted above maxBlocks.
+ * A block the device rejects, because it covers addresses the device does not have, is remembered for the ttl and
+ * its callers read just their own addresses, uncached.
+ */
+public class RegisterCache {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(RegisterCache.class);
+  public static final int DEFAULT_BLOCK_SIZE = 16;
+
+  /**Reads count registers of a device, as ModbusClient.read.*/
+  public interface Reader {
+    int[] read(ModbusType type, int address, int count);
+  }
+
+  private record Key(String device, ModbusType type, int block) {
+  }
+
+  /**A block being read, or read at loadedNanos once values is done. Null values if the device rejected the block.*/
+  private static final class Entry {
+    final CompletableFuture<int[]> values = new CompletableFuture<>();
+    volatile long loadedNanos;
+  }
+
+  private final int blockSize;
+  private final long[] ttlNanos = new long[ModbusType.values().length];
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Map<Key, Entry> blocks;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  public RegisterCache(int maxBlocks, int blockSize, long ttlMillis) {
+    Preconditions.checkArgument(maxBlocks > 0, "maxBlocks should be positive but was %s.", maxBlocks);
+    Preconditions.checkArgument(blockSize > 0 && blockSize <= 125, "blockSize should be 1..125 but was %s.",
+      blockSize);
+    this.blockSize = blockSize;
+    this.blocks = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+        return size() > maxBlocks;
+      }
+    };
+    for (ModbusType type : ModbusType.values()) {
+      withTtl(type, ttlMillis);
+    }
+  }
+
+  /**Values of type are read again after ttlMillis. With 0 only the reads running at the same time are shared.*/
+  public RegisterCache withTtl(ModbusType type, long ttlMillis) {
+    Preconditions.checkArgument(ttlMillis >= 0, "ttl should not be negative but was %s.", ttlMillis);
+    ttlNanos[type.ordinal()] = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    return this;
+  }
+
+  public int[] read(ModbusClient client, ModbusType type, int address, int count) {
+    return read(client.device(), client::read, type, address, count);
+  }
+
+  /**The count registers from address of device, read with reader on a miss.*/
+  public int[] read(String device, Reader reader, ModbusType type, int address, int count) {
+    Preconditions.checkArgument(count > 0 && address >= 0 && address + count <= 65536,
+      "Invalid range of %s registers at %s.", count, address);
+    int[] res = new int[count];
+    int end = address + count;
+    for (int block = address / blockSize; block * blockSize < end; block++) {
+      int[] values = block(device, reader, type, block);
+      if (values == null) {
+        return reader.read(type, address, count);
+      }
+      int start = block * blockSize;
+      int from = Math.max(address, start);
+      int to = Math.min(end, start + values.length);
+      System.arraycopy(values, from - start, res, from - address, to - from);
+    }
+    return res;
+  }
+
+  private int[] block(String device, Reader reader, ModbusType type, int block) {
+    Key key = new Key(device, type, block);
+    Entry entry;
+    boolean owner = false;
+    lock.lock();
+    try {
+      entry = blocks.get(key);
+      if (entry == null || expired(entry, type)) {
+        entry = new Entry();
+        blocks.put(key, entry);
+        owner = true;
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (!owner) {
+      hits.increment();
+      try {
+        return entry.values.join();
+      } catch (CompletionException e) {
+        //each waiter gets its own exception around the failure of the read it shared
+        throw new RuntimeException("Shared read of block %s of %ss of %s failed: %s".formatted(block, type, device,
+          e.getCause().getMessage()), e.getCause());
+      }
+    }
+    misses.increment();
+    int start = block * blockSize;
+    try {
+      int[] values = reader.read(type, start, Math.min(blockSize, 65536 - start));
+      entry.loadedNanos = System.nanoTime();
+      entry.values.complete(values);
+      return values;
+    } catch (RuntimeException e) {
+      if (e.getCause() instanceof ModbusSlaveException) {
+        log.debug("{} rejected block {} of {}s: {}. Reading the addresses asked.", device, block, type,
+          e.getMessage());
+        entry.loadedNanos = System.nanoTime();
+        entry.values.complete(null);
+        return null;
+      }
+      remove(key, entry);
+      entry.values.completeExceptionally(e);
+      throw e;
+    } catch (Error e) {
+      remove(key, entry);
+      entry.values.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  private boolean expired(Entry entry, ModbusType type) {
+    return entry.values.isDone() && System.nanoTime() - entry.loadedNanos >= ttlNanos[type.ordinal()];
+  }
+
+  private void remove(Key key, Entry entry) {
+    lock.lock();
+    try {
+      blocks.remove(key, entry);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**Drops the blocks of the count registers from address, to be called after writing them.*/
+  public void invalidate(String device, ModbusType type, int address, int count) {
+    lock.lock();
+    try {
+      for (int block = address / blockSize; block * blockSize < address + count; block++) {
+        blocks.remove(new Key(device, type, block));
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void clear() {
+    lock.lock();
+    try {
+      blocks.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int size() {
+    lock.lock();
+    try {
+      return blocks.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**Block reads answered from the cache or by a read already running.*/
+  public long hits() {
+    return hits.sum();
+  }
+
+  /**Block reads sent to a device.*/
+  public long misses() {
+    return misses.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "RegisterCache[blocks=%s, hits=%s, misses=%s, ttlNanos=%s]".formatted(size(), hits(), misses(),
+      Arrays.toString(ttlNanos));
+  }
+}
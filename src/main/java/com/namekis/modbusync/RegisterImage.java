@@ -0,0 +1,100 @@
+package com.namekis.modbusync;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.google.common.base.Preconditions;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+
+/**
+ * The last read values of a device kept in primitive arrays: a short per register and a bit per coil or discrete
+ * input. Each type is stored over the span from the smallest to the biggest address of its reads, but contains only
+ * the addresses of the reads, not the gaps between them.
+ */
+public class RegisterImage {
+  private static final int TYPES = ModbusType.values().length;
+  private final int[] start = new int[TYPES];
+  private final int[] size = new int[TYPES];
+  private final short[][] registers = new short[TYPES][];
+  private final BitSet[] bits = new BitSet[TYPES];
+  /**The indexes of the span inside a read, by type.*/
+  private final BitSet[] covered = new BitSet[TYPES];
+
+  public RegisterImage(ModbusRead... reads) {
+    int[] end = new int[TYPES];
+    Arrays.fill(start, Integer.MAX_VALUE);
+    for (ModbusRead read : reads) {
+      int type = read.type().ordinal();
+      start[type] = Math.min(start[type], read.start());
+      end[type] = Math.max(end[type], read.start() + read.count());
+    }
+    for (ModbusType type : ModbusType.values()) {
+      int i = type.ordinal();
+      if (start[i] == Integer.MAX_VALUE) {
+        start[i] = 0;
+        continue;
+      }
+      size[i] = end[i] - start[i];
+      if (type.bits == 1) {
+        bits[i] = new BitSet(size[i]);
+      } else {
+        registers[i] = new short[size[i]];
+      }
+    }
+    for (int i = 0; i < TYPES; i++) {
+      covered[i] = new BitSet();
+    }
+    for (ModbusRead read : reads) {
+      int type = read.type().ordinal();
+      covered[type].set(read.start() - start[type], read.start() + read.count() - start[type]);
+    }
+  }
+
+  public int start(ModbusType type) {
+    return start[type.ordinal()];
+  }
+
+  public int size(ModbusType type) {
+    return size[type.ordinal()];
+  }
+
+  public boolean contains(ModbusType type, int address) {
+    return contains(type, address, 1);
+  }
+
+  /**Whether all count addresses starting with address are inside the reads.*/
+  public boolean contains(ModbusType type, int address, int count) {
+    int i = type.ordinal();
+    int index = address - start[i];
+    return count > 0 && index >= 0 && index + count <= size[i] && covered[i].nextClearBit(index) >= index + count;
+  }
+
+  /**The value as read by ModbusClient: 0 or 1 for bits, a signed 16 bits value for registers.*/
+  public int get(ModbusType type, int address) {
+    int i = type.ordinal();
+    int index = address - start[i];
+    if (type.bits == 1) {
+      return bits[i].get(index) ? 1 : 0;
+    }
+    return registers[i][index];
+  }
+
+  /**Copies count values from values[index] starting with address.*/
+  public void update(ModbusType type, int address, int[] values, int index, int count) {
+    Preconditions.checkArgument(contains(type, address, count),
+      "%s %ss at %s are outside of the image.", count, type, address);
+    int i = type.ordinal();
+    int offset = address - start[i];
+    if (type.bits == 1) {
+      for (int j = 0; j < count; j++) {
+        bits[i].set(offset + j, values[index + j] != 0);
+      }
+    } else {
+      short[] all = registers[i];
+      for (int j = 0; j < count; j++) {
+        all[offset + j] = (short) values[index + j];
+      }
+    }
+  }
+}
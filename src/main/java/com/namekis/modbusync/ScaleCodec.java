@@ -0,0 +1,274 @@
+package com.namekis.modbusync;
+
+import java.math.BigDecimal;
+
+/**
+ * Converts between modbusValue and value with value = modbusValue * scale + offset.
+ * The codec is chosen once per scale and offset and gives exactly the results of the BigDecimal arithmetic: an
+ * Integer if the value has no decimals, otherwise a BigDecimal with the scale resulted from the multiplication and
+ * addition (0.1 * 385 is 38.5 and 0.1 * 500 is 50).
+ * <ul>
+ * <li>integer - scale and offset without decimals: long arithmetic only
+ * <li>fixed point - scale and offset with decimals: long arithmetic on the unscaled values, a BigDecimal is created
+ * only for a value with decimals
+ * <li>exact - everything else: BigDecimal arithmetic
+ * </ul>
+ * The 32 and 64 bits integer data types are scaled exactly with BigDecimal and the float ones with double arithmetic.
+ */
+public abstract class ScaleCodec {
+  private static final long[] POWERS_OF_TEN = new long[19];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  public final BigDecimal scale;
+  public final BigDecimal offset;
+  private final double scaleDouble;
+  private final double offsetDouble;
+
+  private ScaleCodec(BigDecimal scale, BigDecimal offset) {
+    this.scale = scale;
+    this.offset = offset;
+    this.scaleDouble = scale == null ? 1 : scale.doubleValue();
+    this.offsetDouble = offset == null ? 0 : offset.doubleValue();
+  }
+
+  public static ScaleCodec of(BigDecimal scale, BigDecimal offset) {
+    if (isIntegral(scale) && isIntegral(offset)) {
+      try {
+        return new IntegerCodec(scale, offset);
+      } catch (ArithmeticException e) {
+        return new ExactCodec(scale, offset);
+      }
+    }
+    int productScale = scale == null ? 0 : scale.scale();
+    int decimals = offset == null ? productScale : Math.max(productScale, offset.scale());
+    if (decimals < POWERS_OF_TEN.length) {
+      try {
+        return new FixedPointCodec(scale, offset, decimals);
+      } catch (ArithmeticException e) {
+        //unscaled values don't fit in a long
+      }
+    }
+    return new ExactCodec(scale, offset);
+  }
+
+  /**Whether this codec was compiled for these exact scale and offset instances.*/
+  public boolean isFor(BigDecimal scale, BigDecimal offset) {
+    return this.scale == scale && this.offset == offset;
+  }
+
+  /**value = modbusValue * scale + offset*/
+  public abstract Number scale(int modbusValue);
+
+  /**The same value as scale, as a double for fast math.*/
+  public abstract double toDouble(int modbusValue);
+
+  /**value = modbusValue * scale + offset for a modbusValue of any data type.*/
+  public Number scale(Number modbusValue) {
+    if (modbusValue == null) {
+      return null;
+    }
+    if (modbusValue instanceof Integer x) {
+      return scale(x.intValue());
+    }
+    if (modbusValue instanceof Double || modbusValue instanceof Float) {
+      return toDouble(modbusValue.doubleValue());
+    }
+    return exactScale(modbusValue.longValue());
+  }
+
+  /**The value of a float data type.*/
+  public double toDouble(double modbusValue) {
+    return modbusValue * scaleDouble + offsetDouble;
+  }
+
+  /**modbusValue = (value - offset) / scale for a float data type*/
+  public Double unscaleDouble(Number value) {
+    return value == null ? null : (value.doubleValue() - offsetDouble) / scaleDouble;
+  }
+
+  /**
+   * modbusValue = (value - offset) / scale for the 32 and 64 bits integer data types, throwing ArithmeticException if
+   * not an exact long
+   */
+  public Number unscaleLong(Number value) {
+    if (value == null) {
+      return null;
+    }
+    return narrow(exactUnscaleDecimal(value).longValueExact());
+  }
+
+  /**An Integer if the value fits, so it equals the modbusValue parsed from a csv.*/
+  public static Number narrow(long value) {
+    if (value == (int) value) {
+      return (int) value;
+    }
+    return value;
+  }
+
+  /**modbusValue = (value - offset) / scale, throwing ArithmeticException if not an exact int*/
+  public Integer unscale(Number value) {
+    if (value == null) {
+      return null;
+    }
+    if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+      return unscale(value.longValue());
+    }
+    return exactUnscale(value);
+  }
+
+  protected abstract Integer unscale(long value);
+
+  protected Number exactScale(long modbusValue) {
+    BigDecimal res = BigDecimal.valueOf(modbusValue);
+    if (scale != null) {
+      res = res.multiply(scale);
+    }
+    if (offset != null) {
+      res = res.add(offset);
+    }
+    if (res.stripTrailingZeros().scale() <= 0) {
+      return narrow(res.longValueExact());
+    }
+    return res;
+  }
+
+  protected Integer exactUnscale(Number value) {
+    return exactUnscaleDecimal(value).intValueExact();
+  }
+
+  private BigDecimal exactUnscaleDecimal(Number value) {
+    BigDecimal res = new BigDecimal(value.toString());
+    if (offset != null) {
+      res = res.subtract(offset);
+    }
+    if (scale != null) {
+      res = res.divide(scale);
+    }
+    return res;
+  }
+
+  private static boolean isIntegral(BigDecimal value) {
+    return value == null || value.signum() == 0 || value.stripTrailingZeros().scale() <= 0;
+  }
+
+  private static long unscaledAt(BigDecimal value, int decimals) {
+    return value.movePointRight(decimals).longValueExact();
+  }
+
+  private static final class IntegerCodec extends ScaleCodec {
+    private final long scaleValue;
+    private final long offsetValue;
+
+    IntegerCodec(BigDecimal scale, BigDecimal offset) {
+      super(scale, offset);
+      this.scaleValue = scale == null ? 1 : scale.longValueExact();
+      this.offsetValue = offset == null ? 0 : offset.longValueExact();
+    }
+
+    @Override
+    public Number scale(int modbusValue) {
+      return Math.toIntExact(Math.addExact(Math.multiplyExact(modbusValue, scaleValue), offsetValue));
+    }
+
+    @Override
+    public double toDouble(int modbusValue) {
+      return (double) modbusValue * scaleValue + offsetValue;
+    }
+
+    @Override
+    protected Integer unscale(long value) {
+      if (scaleValue == 0) {
+        throw new ArithmeticException("Division by zero");
+      }
+      long diff;
+      try {
+        diff = Math.subtractExact(value, offsetValue);
+      } catch (ArithmeticException e) {
+        return exactUnscale(value);
+      }
+      if (diff % scaleValue != 0) {
+        throw new ArithmeticException("Rounding necessary");
+      }
+      return Math.toIntExact(diff / scaleValue);
+    }
+  }
+
+  private static final class FixedPointCodec extends ScaleCodec {
+    private final int decimals;
+    private final long unit;
+    /**scale * 10^decimals*/
+    private final long scaleUnscaled;
+    /**offset * 10^decimals*/
+    private final long offsetUnscaled;
+
+    FixedPointCodec(BigDecimal scale, BigDecimal offset, int decimals) {
+      super(scale, offset);
+      this.decimals = decimals;
+      this.unit = POWERS_OF_TEN[decimals];
+      this.scaleUnscaled = scale == null ? unit : unscaledAt(scale, decimals);
+      this.offsetUnscaled = offset == null ? 0 : unscaledAt(offset, decimals);
+    }
+
+    @Override
+    public Number scale(int modbusValue) {
+      long unscaled;
+      try {
+        unscaled = Math.addExact(Math.multiplyExact(modbusValue, scaleUnscaled), offsetUnscaled);
+      } catch (ArithmeticException e) {
+        return exactScale(modbusValue);
+      }
+      if (unscaled % unit == 0) {
+        return Math.toIntExact(unscaled / unit);
+      }
+      return BigDecimal.valueOf(unscaled, decimals);
+    }
+
+    @Override
+    public double toDouble(int modbusValue) {
+      return ((double) modbusValue * scaleUnscaled + offsetUnscaled) / unit;
+    }
+
+    @Override
+    protected Integer unscale(long value) {
+      if (scaleUnscaled == 0) {
+        throw new ArithmeticException("Division by zero");
+      }
+      long diff;
+      try {
+        diff = Math.subtractExact(Math.multiplyExact(value, unit), offsetUnscaled);
+      } catch (ArithmeticException e) {
+        return exactUnscale(value);
+      }
+      if (diff % scaleUnscaled != 0) {
+        throw new ArithmeticException("Rounding necessary");
+      }
+      return Math.toIntExact(diff / scaleUnscaled);
+    }
+  }
+
+  private static final class ExactCodec extends ScaleCodec {
+    ExactCodec(BigDecimal scale, BigDecimal offset) {
+      super(scale, offset);
+    }
+
+    @Override
+    public Number scale(int modbusValue) {
+      return exactScale(modbusValue);
+    }
+
+    @Override
+    public double toDouble(int modbusValue) {
+      return scale(modbusValue).doubleValue();
+    }
+
+    @Override
+    protected Integer unscale(long value) {
+      return exactUnscale(value);
+    }
+  }
+}
@@ -0,0 +1,247 @@
+package com.namekis.modbusync;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import com.google.common.base.Preconditions;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+import com.namekis.modbusync.impl.TimeSeriesSegment;
+
+/**
+ * Appends poll cycles to a directory of columnar segment files, one column per type and address.
+ * Cycles are buffered and written as a block every blockCycles cycles, so a crash loses at most one block. A new
+ * segment is started when the current one is full or when the recorded addresses change. Segment names are the time
+ * of their first cycle so they sort in time order.
+ */
+public class TimeSeriesRecorder implements AutoCloseable {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TimeSeriesRecorder.class);
+  public static final int DEFAULT_BLOCK_CYCLES = 60;
+  public static final int DEFAULT_SEGMENT_BYTES = 16 << 20;
+  private static final String SUFFIX = ".mbts";
+
+  /**The recorded values of consecutive columns in time order: columns[k] are the values of address + k.*/
+  public record Series(ModbusType type, int address, long[] times, int[][] columns) {
+    public int size() {
+      return times.length;
+    }
+
+    /**The values of address.*/
+    public int[] values() {
+      return columns[0];
+    }
+  }
+
+  /**The rows of a query in primitive arrays grown as needed.*/
+  private static class Rows implements TimeSeriesSegment.Visitor {
+    long[] times = new long[256];
+    final int[][] columns;
+    int size;
+
+    Rows(int columns) {
+      this.columns = new int[columns][256];
+    }
+
+    @Override
+    public void accept(long time, int[] values) {
+      if (size == times.length) {
+        times = Arrays.copyOf(times, 2 * size);
+        for (int k = 0; k < columns.length; k++) {
+          columns[k] = Arrays.copyOf(columns[k], 2 * size);
+        }
+      }
+      times[size] = time;
+      for (int k = 0; k < columns.length; k++) {
+        columns[k][size] = values[k];
+      }
+      size++;
+    }
+
+    Series toSeries(ModbusType type, int address) {
+      int[][] res = new int[columns.length][];
+      for (int k = 0; k < columns.length; k++) {
+        res[k] = Arrays.copyOf(columns[k], size);
+      }
+      return new Series(type, address, Arrays.copyOf(times, size), res);
+    }
+  }
+
+  private final Path directory;
+  private final int segmentBytes;
+  private final ModbusRead[] reads;
+  private final byte[] types;
+  private final int[] addresses;
+  private final long[] times;
+  /**values[column][cycle]*/
+  private final int[][] values;
+  private final TimeSeriesSegment.Scratch scratch = new TimeSeriesSegment.Scratch();
+  private TimeSeriesSegment segment;
+  private int cycles;
+
+  public TimeSeriesRecorder(Path directory, ModbusRead... reads) {
+    this(directory, DEFAULT_BLOCK_CYCLES, DEFAULT_SEGMENT_BYTES, reads);
+  }
+
+  public TimeSeriesRecorder(Path directory, int blockCycles, int segmentBytes, ModbusRead... reads) {
+    Preconditions.checkArgument(blockCycles > 0, "Block cycles should be positive but was %s.", blockCycles);
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.reads = reads;
+    int columns = Stream.of(reads).mapToInt(ModbusRead::count).sum();
+    this.types = new byte[columns];
+    this.addresses = new int[columns];
+    int c = 0;
+    for (ModbusRead read : reads) {
+      for (int i = 0; i < read.count(); i++) {
+        types[c] = (byte) read.type().ordinal();
+        addresses[c++] = read.start() + i;
+      }
+    }
+    this.times = new long[blockCycles];
+    this.values = new int[columns][blockCycles];
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    this.segment = lastSegment();
+  }
+
+  /**The last segment if it records the same columns, so a restarted recording continues in it.*/
+  private TimeSeriesSegment lastSegment() {
+    List<Path> all = segments(directory);
+    if (all.isEmpty()) {
+      return null;
+    }
+    TimeSeriesSegment last = TimeSeriesSegment.open(all.get(all.size() - 1), segmentBytes, true);
+    if (last.hasColumns(types, addresses)) {
+      return last;
+    }
+    last.close();
+    return null;
+  }
+
+  /**
+   * Adds a poll cycle.
+   * @param values values[i][j] is the value of address reads[i].start() + j as passed by Poller
+   */
+  public void append(long timeMillis, int[][] values) {
+    times[cycles] = timeMillis;
+    int c = 0;
+    for (int i = 0; i < reads.length; i++) {
+      for (int j = 0; j < reads[i].count(); j++) {
+        this.values[c++][cycles] = values[i][j];
+      }
+    }
+    if (++cycles == times.length) {
+      flush();
+    }
+  }
+
+  /**Writes the buffered cycles as a block.*/
+  public void flush() {
+    if (cycles == 0) {
+      return;
+    }
+    if (segment == null || !segment.append(times, values, cycles, scratch)) {
+      if (segment != null) {
+        segment.close();
+      }
+      Path path = directory.resolve(times[0] + SUFFIX);
+      int header = TimeSeriesSegment.headerLength(types.length);
+      //a block is never bigger than 10 bytes per value
+      int capacity = Math.max(segmentBytes, header + 32 + types.length * 4 + cycles * 10 * (types.length + 1));
+      segment = TimeSeriesSegment.create(path, types, addresses, capacity);
+      log.info("recording {} columns in {}", types.length, path);
+      Preconditions.checkState(segment.append(times, values, cycles, scratch), "A block does not fit in %s", path);
+    }
+    segment.force();
+    cycles = 0;
+  }
+
+  @Override
+  public void close() {
+    try {
+      flush();
+    } finally {
+      if (segment != null) {
+        segment.close();
+        segment = null;
+      }
+    }
+  }
+
+  /**The segment files in time order.*/
+  public static List<Path> segments(Path directory) {
+    if (!Files.isDirectory(directory)) {
+      return List.of();
+    }
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(TimeSeriesSegment::isSegment)
+        .sorted((a, b) -> Long.compare(startTime(a), startTime(b)))
+        .toList();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static long startTime(Path segment) {
+    String name = segment.getFileName().toString();
+    try {
+      return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  /**The recorded values of an address with a time in [fromMillis, toMillis].*/
+  public static Series query(Path directory, ModbusType type, int address, long fromMillis, long toMillis) {
+    return query(directory, type, address, 1, fromMillis, toMillis);
+  }
+
+  /**
+   * The recorded values of count consecutive addresses, like the registers of one param, with a time in [fromMillis,
+   * toMillis]. The columns are read together in one pass over each segment.
+   */
+  public static Series query(Path directory, ModbusType type, int address, int count, long fromMillis,
+      long toMillis) {
+    Rows rows = new Rows(count);
+    int[] columns = new int[count];
+    for (Path path : segments(directory)) {
+      if (startTime(path) > toMillis) {
+        break;
+      }
+      try (TimeSeriesSegment segment = TimeSeriesSegment.open(path, 0, false)) {
+        for (int k = 0; k < count; k++) {
+          columns[k] = segment.column((byte) type.ordinal(), address + k);
+        }
+        if (columns[0] < 0) {
+          continue;
+        }
+        for (int k = 1; k < count; k++) {
+          if (columns[k] < 0) {
+            throw new RuntimeException("%s %s was not recorded with %s %s in %s.".formatted(type, address + k, type,
+              address, path));
+          }
+        }
+        segment.read(columns, fromMillis, toMillis, rows);
+      }
+    }
+    return rows.toSeries(type, address);
+  }
+
+  /**The recorded values of the registers of the param with the given name or code in the config.*/
+  public static Series query(Path directory, ParamIndex params, String name, long fromMillis, long toMillis) {
+    for (ModbusParam param : params) {
+      if (name.equalsIgnoreCase(param.name) || name.equalsIgnoreCase(param.param)) {
+        return query(directory, param.type, param.address, param.registers(), fromMillis, toMillis);
+      }
+    }
+    throw new RuntimeException("No param named [%s] in the config.".formatted(name));
+  }
+}
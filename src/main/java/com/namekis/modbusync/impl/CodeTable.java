@@ -0,0 +1,82 @@
+package com.namekis.modbusync.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.Function;
+
+/**
+ * Enum values by their text code in an open table without collisions (a perfect hash), so a code is matched directly
+ * on a char buffer without creating a String.
+ */
+public class CodeTable<T extends Enum<T>> {
+  private static final int MAX_TABLE_SIZE = 1 << 12;
+
+  private final char[][] codes;
+  private final T[] values;
+  private final int mask;
+
+  public CodeTable(Class<T> clazz, Function<T, Object> idExtractor) {
+    T[] all = clazz.getEnumConstants();
+    HashMap<String, T> byCode = new HashMap<>();
+    for (T value : all) {
+      String code = String.valueOf(idExtractor.apply(value));
+      T previous = byCode.put(code, value);
+      if (previous != null) {
+        throw new RuntimeException(
+          "Enumeration %s has several values with same code [%s]: %s, %s".formatted(clazz, code, previous, value));
+      }
+    }
+    int size = Integer.highestOneBit(Math.max(1, all.length * 2 - 1)) << 1;
+    while (!isPerfect(byCode, size - 1)) {
+      size <<= 1;
+      if (size > MAX_TABLE_SIZE) {
+        throw new RuntimeException("Cannot build a code table for " + clazz);
+      }
+    }
+    this.mask = size - 1;
+    this.codes = new char[size][];
+    this.values = Arrays.copyOf(all, size);
+    Arrays.fill(values, null);
+    byCode.forEach((code, value) -> {
+      char[] chars = code.toCharArray();
+      int i = hash(chars, 0, chars.length) & mask;
+      codes[i] = chars;
+      values[i] = value;
+    });
+  }
+
+  private static boolean isPerfect(HashMap<String, ?> byCode, int mask) {
+    boolean[] used = new boolean[mask + 1];
+    for (String code : byCode.keySet()) {
+      char[] chars = code.toCharArray();
+      int i = hash(chars, 0, chars.length) & mask;
+      if (used[i]) {
+        return false;
+      }
+      used[i] = true;
+    }
+    return true;
+  }
+
+  private static int hash(char[] chars, int offset, int length) {
+    int h = length;
+    for (int i = offset; i < offset + length; i++) {
+      h = 31 * h + chars[i];
+    }
+    return h ^ (h >>> 16);
+  }
+
+  /**The value with the code in chars[offset, offset + length) or null.*/
+  public T get(char[] chars, int offset, int length) {
+    int i = hash(chars, offset, length) & mask;
+    char[] code = codes[i];
+    if (code == null || !Arrays.equals(code, 0, code.length, chars, offset, offset + length)) {
+      return null;
+    }
+    return values[i];
+  }
+
+  public T get(String code) {
+    return get(code.toCharArray(), 0, code.length());
+  }
+}
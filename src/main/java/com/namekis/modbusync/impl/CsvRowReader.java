@@ -0,0 +1,70 @@
+package com.namekis.modbusync.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+
+/**
+ * Reads the rows of a csv with a header one at a time, so a file of any size is read in constant memory. The
+ * counterpart of CsvRowWriter. A type with a post-construct method needs a mapper with PostConstructModule.
+ */
+public class CsvRowReader<T> implements Iterator<T>, AutoCloseable {
+  private final Reader reader;
+  private final MappingIterator<T> rows;
+
+  private CsvRowReader(CsvMapper mapper, Class<T> type, Reader reader) {
+    this.reader = reader;
+    try {
+      this.rows = mapper.readerFor(type).with(CsvSchema.emptySchema().withHeader()).readValues(reader);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public static <T> CsvRowReader<T> open(Path path, Class<T> type, CsvMapper mapper) {
+    return open(path, type, mapper, 0);
+  }
+
+  /**Reads the csv whose header comes after skippedLines lines, like the vendor mapping sheets.*/
+  public static <T> CsvRowReader<T> open(Path path, Class<T> type, CsvMapper mapper, int skippedLines) {
+    PostConstructModule.checkRegistered(mapper, type);
+    try {
+      BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+      for (int i = 0; i < skippedLines; i++) {
+        reader.readLine();
+      }
+      return new CsvRowReader<>(mapper, type, reader);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    return rows.hasNext();
+  }
+
+  @Override
+  public T next() {
+    return rows.next();
+  }
+
+  @Override
+  public void close() {
+    try {
+      rows.close();
+      reader.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
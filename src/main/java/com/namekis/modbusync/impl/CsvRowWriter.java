@@ -0,0 +1,95 @@
+package com.namekis.modbusync.impl;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+
+/**
+ * Writes csv rows as they are produced instead of building the whole content in memory. Each call of write is
+ * flushed so the rows written before a crash are kept. The header is written with the first row. Rows that are read
+ * back should be written with the mapper of the reader, so their enums and numbers keep the same form.
+ */
+public class CsvRowWriter<T> implements AutoCloseable {
+  private static final CsvMapper defaultMapper = new CsvMapper();
+
+  private final Writer writer;
+  private final boolean closeWriter;
+  private final SequenceWriter rows;
+  private long count;
+
+  private CsvRowWriter(CsvMapper mapper, Class<T> type, Writer writer, boolean closeWriter) {
+    this.writer = writer;
+    this.closeWriter = closeWriter;
+    CsvSchema schema = mapper.schemaFor(type).withHeader();
+    try {
+      this.rows = mapper.writer(schema).writeValues(writer);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**Creates or truncates the file.*/
+  public static <T> CsvRowWriter<T> open(Path path, Class<T> type) {
+    return open(path, type, defaultMapper);
+  }
+
+  public static <T> CsvRowWriter<T> open(Path path, Class<T> type, CsvMapper mapper) {
+    try {
+      Path parent = path.toAbsolutePath().getParent();
+      if (parent != null) {
+        Files.createDirectories(parent);
+      }
+      return new CsvRowWriter<>(mapper, type, Files.newBufferedWriter(path, StandardCharsets.UTF_8), true);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**Writes to the standard output that is flushed but never closed.*/
+  public static <T> CsvRowWriter<T> toStdout(Class<T> type) {
+    return toStdout(type, defaultMapper);
+  }
+
+  public static <T> CsvRowWriter<T> toStdout(Class<T> type, CsvMapper mapper) {
+    return new CsvRowWriter<>(mapper, type, new OutputStreamWriter(System.out, StandardCharsets.UTF_8), false);
+  }
+
+  public synchronized void write(Iterable<? extends T> batch) {
+    try {
+      for (T row : batch) {
+        rows.write(row);
+        count++;
+      }
+      rows.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**Number of rows written so far.*/
+  public synchronized long count() {
+    return count;
+  }
+
+  @Override
+  public synchronized void close() {
+    try {
+      if (closeWriter) {
+        rows.close();
+      } else {
+        rows.flush();
+        writer.flush();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package com.namekis.modbusync.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.google.common.base.Preconditions;
+
+/**
+ * Sorts rows with a bounded number of them in memory.
+ * Rows are sorted in chunks. If all fit in one chunk they are returned from memory, otherwise each sorted chunk is
+ * written to a temporary csv and the chunks are merged back reading one row at a time from each of them. The chunks
+ * are written and read with the same mapper, so a row comes back as it went in.
+ */
+public class ExternalSort {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ExternalSort.class);
+
+  /**Sorted rows. Closing deletes the temporary files.*/
+  public interface SortedRows<T> extends Iterator<T>, AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private ExternalSort() {
+  }
+
+  /**Rows in a stable order: equal rows keep their input order.*/
+  public static <T> SortedRows<T> sort(Iterator<T> rows, Comparator<? super T> order, int chunkSize, Class<T> type,
+      CsvMapper mapper) {
+    Preconditions.checkArgument(chunkSize > 0, "Chunk size should be positive but was %s.", chunkSize);
+    List<T> chunk = nextChunk(rows, chunkSize, order);
+    if (!rows.hasNext()) {
+      Iterator<T> sorted = chunk.iterator();
+      return new SortedRows<>()
+        {
+          @Override
+          public boolean hasNext() {
+            return sorted.hasNext();
+          }
+
+          @Override
+          public T next() {
+            return sorted.next();
+          }
+
+          @Override
+          public void close() {
+          }
+        };
+    }
+    List<Path> files = new ArrayList<>();
+    try {
+      while (!chunk.isEmpty()) {
+        Path file = Files.createTempFile("modbusync-sort-", ".csv");
+        files.add(file);
+        try (CsvRowWriter<T> writer = CsvRowWriter.open(file, type, mapper)) {
+          writer.write(chunk);
+        }
+        chunk = nextChunk(rows, chunkSize, order);
+      }
+    } catch (IOException | RuntimeException e) {
+      delete(files);
+      throw e instanceof IOException io ? new UncheckedIOException(io) : (RuntimeException) e;
+    }
+    log.debug("merging {} sorted chunks of {} rows", files.size(), chunkSize);
+    return new Merge<>(files, order, type, mapper);
+  }
+
+  private static <T> List<T> nextChunk(Iterator<T> rows, int chunkSize, Comparator<? super T> order) {
+    List<T> chunk = new ArrayList<>(Math.min(chunkSize, 1024));
+    while (chunk.size() < chunkSize && rows.hasNext()) {
+      chunk.add(rows.next());
+    }
+    chunk.sort(order);
+    return chunk;
+  }
+
+  private static void delete(List<Path> files) {
+    for (Path file : files) {
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        log.warn("cannot delete {}: {}", file, e.getMessage());
+      }
+    }
+  }
+
+  /**The head row of each chunk in a heap. Ties are taken from the earlier chunk to keep the sort stable.*/
+  private static class Merge<T> implements SortedRows<T> {
+    private record Head<T>(T row, int chunk) {
+    }
+
+    private final List<Path> files;
+    private final List<CsvRowReader<T>> readers = new ArrayList<>();
+    private final PriorityQueue<Head<T>> heads;
+
+    Merge(List<Path> files, Comparator<? super T> order, Class<T> type, CsvMapper mapper) {
+      this.files = files;
+      Comparator<Head<T>> byRow = (a, b) -> order.compare(a.row(), b.row());
+      this.heads = new PriorityQueue<>(files.size(), byRow.thenComparingInt(Head::chunk));
+      for (int i = 0; i < files.size(); i++) {
+        CsvRowReader<T> reader = CsvRowReader.open(files.get(i), type, mapper);
+        readers.add(reader);
+        if (reader.hasNext()) {
+          heads.add(new Head<>(reader.next(), i));
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !heads.isEmpty();
+    }
+
+    @Override
+    public T next() {
+      Head<T> head = heads.poll();
+      if (head == null) {
+        throw new NoSuchElementException();
+      }
+      CsvRowReader<T> reader = readers.get(head.chunk());
+      if (reader.hasNext()) {
+        heads.add(new Head<>(reader.next(), head.chunk()));
+      }
+      return head.row();
+    }
+
+    @Override
+    public void close() {
+      try {
+        for (CsvRowReader<T> reader : readers) {
+          reader.close();
+        }
+      } finally {
+        delete(files);
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.namekis.modbusync.impl;
+
+import java.io.IOException;
+
+import com.fazecast.jSerialComm.SerialPort;
+import com.google.common.base.Preconditions;
+
+/**
+ * A serial port opened with jSerialComm. The name is a system port (COM3, ttyUSB0) or a device path like a pseudo
+ * terminal (/dev/pts/3).
+ */
+public class JSerialCommLine implements SerialLine {
+  private final String name;
+  private final SerialPort port;
+  private int readTimeoutMillis = -1;
+
+  public JSerialCommLine(String name, int baudrate, int databits, int stopbits, String parity) {
+    Preconditions.checkArgument(stopbits == 1 || stopbits == 2, "Stopbits should be 1 or 2 but was %s.", stopbits);
+    this.name = name;
+    this.port = SerialPort.getCommPort(name);
+    port.setComPortParameters(baudrate, databits, stopbits == 2 ? SerialPort.TWO_STOP_BITS : SerialPort.ONE_STOP_BIT,
+      parity(parity));
+    if (!port.openPort()) {
+      throw new RuntimeException("Cannot open serial port %s".formatted(name));
+    }
+  }
+
+  public static int parity(String parity) {
+    return switch (parity.toLowerCase()) {
+      case "none" -> SerialPort.NO_PARITY;
+      case "even" -> SerialPort.EVEN_PARITY;
+      case "odd" -> SerialPort.ODD_PARITY;
+      default -> throw new IllegalArgumentException("Parity should be none, even or odd but was " + parity);
+    };
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    int written = port.writeBytes(bytes, length, offset);
+    if (written != length) {
+      throw new IOException("Wrote %s of %s bytes to %s".formatted(written, length, name));
+    }
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length, long timeoutNanos) throws IOException {
+    long deadline = System.nanoTime() + timeoutNanos;
+    int done = 0;
+    while (done < length) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        break;
+      }
+      setReadTimeout((int) Math.max(1, (remaining + 999_999) / 1_000_000));
+      int read = port.readBytes(bytes, length - done, offset + done);
+      if (read < 0) {
+        throw new IOException("Cannot read from " + name);
+      }
+      done += read;
+    }
+    return done;
+  }
+
+  private void setReadTimeout(int millis) {
+    if (millis != readTimeoutMillis) {
+      port.setComPortTimeouts(SerialPort.TIMEOUT_READ_BLOCKING, millis, 0);
+      readTimeoutMillis = millis;
+    }
+  }
+
+  @Override
+  public void discardInput() {
+    port.flushIOBuffers();
+  }
+
+  @Override
+  public void close() {
+    port.closePort();
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,90 @@
+package com.namekis.modbusync.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Preconditions;
+import com.namekis.modbusync.MetricsRegistry.Timer;
+
+/**
+ * Latencies in log-linear buckets, like HdrHistogram: each power of two is split in 32 linear sub buckets, so a value
+ * is recorded with at most 1/32 (about 3%) error. The buckets are a fixed AtomicLongArray, so recording from any
+ * thread is a few atomic adds and allocates nothing.
+ */
+public class LatencyHistogram implements Timer {
+  private static final int SUB_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  /**Up to 2^42ns, more than an hour. Longer values are recorded in the last bucket.*/
+  private static final int MAX_EXPONENT = 42;
+  private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+  public record Snapshot(long count, double mean, long p50, long p90, long p99, long max) {
+  }
+
+  private final AtomicLongArray buckets = new AtomicLongArray((MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  @Override
+  public void record(long nanos) {
+    long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+    buckets.incrementAndGet(index(value));
+    count.increment();
+    sum.add(value);
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  /**Values below 32 have a bucket each, above that the bucket is given by the exponent and the next 5 bits.*/
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /**The largest value recorded in the bucket.*/
+  static long highestValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+    int sub = index % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+  }
+
+  public long count() {
+    return count.sum();
+  }
+
+  /**The value below which percentile% of the recorded values are, with the precision of a bucket.*/
+  public long percentile(double percentile) {
+    Preconditions.checkArgument(percentile >= 0 && percentile <= 100, "Percentile should be in [0,100] but was %s.",
+      percentile);
+    long total = count.sum();
+    if (total == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < buckets.length(); i++) {
+      seen += buckets.get(i);
+      if (seen >= target) {
+        return Math.min(highestValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  public Snapshot snapshot() {
+    long total = count.sum();
+    return new Snapshot(total, total == 0 ? 0 : (double) sum.sum() / total, percentile(50), percentile(90),
+      percentile(99), max.get());
+  }
+}
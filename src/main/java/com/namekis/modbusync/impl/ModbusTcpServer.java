@@ -0,0 +1,266 @@
+package com.namekis.modbusync.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Modbus/TCP server on one NIO selector thread, so hundreds of clients cost a socket and two buffers each instead of a
+ * thread each. The requests of a connection are framed by their MBAP header and passed to the handler on the selector
+ * thread: a request answered from memory is replied at once, a slow one is deferred and replied later from any
+ * thread. The replies of other threads are handed to the selector by a queue.
+ * The requests of a connection whose responses are not read by its client are not handled until the responses are
+ * sent, so a slow client does not buffer without bounds.
+ */
+public class ModbusTcpServer implements AutoCloseable {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ModbusTcpServer.class);
+  private static final int MBAP_LENGTH = 7;
+  /**Unit id and the biggest pdu.*/
+  private static final int MAX_LENGTH = 254;
+
+  public interface Handler {
+    /**
+     * The response pdu to the request pdu of exchange, or null to reply later with exchange.reply. Called on the
+     * selector thread so it should not block.
+     */
+    byte[] handle(Exchange exchange, byte[] pdu);
+  }
+
+  /**A request of a connection waiting for its response.*/
+  public final class Exchange {
+    private final Connection connection;
+    public final int transactionId;
+    public final int unitId;
+
+    private Exchange(Connection connection, int transactionId, int unitId) {
+      this.connection = connection;
+      this.transactionId = transactionId;
+      this.unitId = unitId;
+    }
+
+    /**Number of deferred requests of the connection not replied yet. Only meaningful in Handler.handle.*/
+    public int deferred() {
+      return connection.deferred;
+    }
+
+    /**Sends the response pdu of a deferred request. Can be called from any thread.*/
+    public void reply(byte[] pdu) {
+      replies.add(new Reply(connection, frame(this, pdu)));
+      selector.wakeup();
+    }
+  }
+
+  private record Reply(Connection connection, ByteBuffer frame) {
+  }
+
+  private static final class Connection {
+    final SocketChannel channel;
+    final ByteBuffer in = ByteBuffer.allocate(4 * (MBAP_LENGTH - 1 + MAX_LENGTH));
+    final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+    /**Touched only by the selector thread.*/
+    int deferred;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  private final InetSocketAddress address;
+  private final Handler handler;
+  private final ConcurrentLinkedQueue<Reply> replies = new ConcurrentLinkedQueue<>();
+  private Selector selector;
+  private ServerSocketChannel server;
+  private Thread thread;
+  private volatile boolean running;
+
+  public ModbusTcpServer(InetSocketAddress address, Handler handler) {
+    this.address = address;
+    this.handler = handler;
+  }
+
+  /**Binds the port and serves on a new thread.*/
+  public ModbusTcpServer start() {
+    try {
+      selector = Selector.open();
+      server = ServerSocketChannel.open();
+      server.bind(address);
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot listen on " + address, e);
+    }
+    running = true;
+    thread = new Thread(this::run, "modbus-server-" + port());
+    thread.setDaemon(true);
+    thread.start();
+    log.info("serving modbus tcp on {}", server.socket().getLocalSocketAddress());
+    return this;
+  }
+
+  /**The bound port, useful when started on port 0.*/
+  public int port() {
+    return server.socket().getLocalPort();
+  }
+
+  private void run() {
+    try {
+      while (running) {
+        selector.select();
+        for (Reply reply; (reply = replies.poll()) != null;) {
+          reply.connection.deferred--;
+          send(reply.connection, reply.frame);
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          try {
+            if (key.isAcceptable()) {
+              accept();
+            } else {
+              if (key.isReadable()) {
+                read(key);
+              }
+              if (key.isValid() && key.isWritable()) {
+                flush(key);
+              }
+            }
+          } catch (IOException e) {
+            log.debug("closing {}: {}", key.attachment(), e.getMessage());
+            close(key);
+          }
+        }
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      if (running) {
+        log.warn("modbus server stopped: {}", e.getMessage());
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = server.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+    log.debug("accepted {}", channel.getRemoteAddress());
+  }
+
+  private void read(SelectionKey key) throws IOException {
+    Connection connection = (Connection) key.attachment();
+    if (connection.channel.read(connection.in) < 0) {
+      close(key);
+      return;
+    }
+    process(key);
+  }
+
+  /**Handles the whole requests received, until a response cannot be sent at once.*/
+  private void process(SelectionKey key) throws IOException {
+    Connection connection = (Connection) key.attachment();
+    ByteBuffer in = connection.in;
+    in.flip();
+    while (in.remaining() >= MBAP_LENGTH && key.isValid() && key.interestOps() == SelectionKey.OP_READ) {
+      int start = in.position();
+      int protocol = in.getShort(start + 2) & 0xFFFF;
+      int length = in.getShort(start + 4) & 0xFFFF;
+      if (protocol != 0 || length < 2 || length > MAX_LENGTH) {
+        throw new IOException("Invalid MBAP header with protocol %s and length %s.".formatted(protocol, length));
+      }
+      if (in.remaining() < MBAP_LENGTH - 1 + length) {
+        break;
+      }
+      Exchange exchange = new Exchange(connection, in.getShort(start) & 0xFFFF, in.get(start + 6) & 0xFF);
+      byte[] pdu = new byte[length - 1];
+      in.position(start + MBAP_LENGTH);
+      in.get(pdu);
+      byte[] response = handler.handle(exchange, pdu);
+      if (response == null) {
+        connection.deferred++;
+      } else {
+        send(connection, frame(exchange, response));
+      }
+    }
+    in.compact();
+  }
+
+  private static ByteBuffer frame(Exchange exchange, byte[] pdu) {
+    ByteBuffer res = ByteBuffer.allocate(MBAP_LENGTH + pdu.length);
+    res.putShort((short) exchange.transactionId).putShort((short) 0).putShort((short) (pdu.length + 1))
+      .put((byte) exchange.unitId).put(pdu).flip();
+    return res;
+  }
+
+  /**Writes what the socket accepts now, the rest when it is writable, without reading more requests meanwhile.*/
+  private void send(Connection connection, ByteBuffer frame) {
+    SelectionKey key = connection.channel.keyFor(selector);
+    if (key == null || !key.isValid()) {
+      return;
+    }
+    connection.out.add(frame);
+    try {
+      flush(key);
+    } catch (IOException e) {
+      log.debug("closing {}: {}", connection, e.getMessage());
+      close(key);
+    }
+  }
+
+  private void flush(SelectionKey key) throws IOException {
+    Connection connection = (Connection) key.attachment();
+    while (!connection.out.isEmpty()) {
+      ByteBuffer frame = connection.out.peek();
+      connection.channel.write(frame);
+      if (frame.hasRemaining()) {
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+      connection.out.poll();
+    }
+    if (key.interestOps() != SelectionKey.OP_READ) {
+      key.interestOps(SelectionKey.OP_READ);
+      process(key);
+    }
+  }
+
+  private static void close(SelectionKey key) {
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      log.debug("closing failed: {}", e.getMessage());
+    }
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    if (selector == null) {
+      return;
+    }
+    try {
+      selector.wakeup();
+      thread.join(1_000);
+      for (SelectionKey key : selector.keys()) {
+        close(key);
+      }
+      selector.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.namekis.modbusync.impl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.namekis.modbusync.ModbusParam.ModbusType;
+
+/**
+ * Decodes the data of read responses straight from the response bytes into int[] buffers, without a Register or
+ * BitVector in between. Registers are read with a big endian VarHandle view, coils and discretes 64 at a time: the bits
+ * are packed LSB first in consecutive bytes, so a little endian long holds bit i of the response at bit i.
+ * The ByteBuffer is only read with absolute indexes, so one buffer wrapping a transport's pdu array is reused by all
+ * responses.
+ */
+public class PduCodec {
+  private static final VarHandle SHORT_BE = MethodHandles.byteBufferViewVarHandle(short[].class,
+    ByteOrder.BIG_ENDIAN);
+  private static final VarHandle LONG_LE = MethodHandles.byteBufferViewVarHandle(long[].class,
+    ByteOrder.LITTLE_ENDIAN);
+  /**Function code and byte count before the data of a read response.*/
+  public static final int READ_DATA_OFFSET = 2;
+
+  private PduCodec() {
+  }
+
+  /**Bytes of data in the response of a read of count values.*/
+  public static int byteCount(ModbusType type, int count) {
+    return (count * type.bits + 7) / 8;
+  }
+
+  /**Decodes the data of a F01-F04 response pdu (function code, byte count, data) in buffer[index].*/
+  public static void decodeRead(ByteBuffer pdu, ModbusType type, int count, int[] buffer, int index) {
+    if (type.bits == 1) {
+      decodeBits(pdu, READ_DATA_OFFSET, count, buffer, index);
+    } else {
+      decodeRegisters(pdu, READ_DATA_OFFSET, count, buffer, index);
+    }
+  }
+
+  /**Registers are signed 16 bits values, like j2mod's InputRegister.toShort().*/
+  public static void decodeRegisters(ByteBuffer data, int offset, int count, int[] buffer, int index) {
+    for (int i = 0; i < count; i++) {
+      buffer[index + i] = (short) SHORT_BE.get(data, offset + 2 * i);
+    }
+  }
+
+  /**Each bit as 0 or 1.*/
+  public static void decodeBits(ByteBuffer data, int offset, int count, int[] buffer, int index) {
+    int i = 0;
+    for (; i + Long.SIZE <= count; i += Long.SIZE) {
+      long word = (long) LONG_LE.get(data, offset + (i >> 3));
+      for (int bit = 0; bit < Long.SIZE; bit++) {
+        buffer[index + i + bit] = (int) (word >>> bit) & 1;
+      }
+    }
+    for (; i < count; i++) {
+      buffer[index + i] = (data.get(offset + (i >> 3)) >> (i & 7)) & 1;
+    }
+  }
+}
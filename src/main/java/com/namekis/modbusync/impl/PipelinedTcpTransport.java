@@ -0,0 +1,453 @@
+package com.namekis.modbusync.impl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.google.common.base.Preconditions;
+import com.namekis.modbusync.ModbusMetrics;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ReadPlanner.ReadBatch;
+
+/**
+ * Modbus/TCP requests on a raw socket: reads one at a time or with several requests in flight, and F05, F06, F15 and
+ * F16 writes, so the reads and writes of a client share one connection to the gateway.
+ * The responses are read in a reused pdu array and decoded by PduCodec straight into the caller's buffer, so no
+ * object is created per read. Each request gets its own transaction id and the responses are matched back by it, so
+ * the device can answer in any order. A response for an unknown transaction id (a late answer to a request that
+ * timed out) is discarded.
+ * The socket is guarded by a ReentrantLock instead of synchronized so a virtual thread blocked on it does not pin its
+ * carrier thread.
+ */
+public class PipelinedTcpTransport implements AutoCloseable {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(PipelinedTcpTransport.class);
+  private static final int MBAP_LENGTH = 7;
+  private static final int NO_TRANSACTION = -1;
+
+  public final String host;
+  public final int port;
+  private int timeout;
+  private int depth;
+  private Socket socket;
+  private OutputStream out;
+  private DataInputStream in;
+  private int nextTransactionId = 0;
+  /**MBAP header and request pdu.*/
+  private final byte[] request = new byte[MBAP_LENGTH + 253];
+  private final byte[] header = new byte[MBAP_LENGTH];
+  private final byte[] pdu = new byte[256];
+  /**Absolute reads over pdu for PduCodec.*/
+  private final ByteBuffer pduView = ByteBuffer.wrap(pdu);
+  /**Transaction id of each in flight slot.*/
+  private int[] transactions;
+  /**Index of the batch sent in each in flight slot.*/
+  private int[] slotBatches;
+  /**System.nanoTime() when the request of each in flight slot was sent.*/
+  private long[] sentAt;
+  private ModbusMetrics metrics;
+  private final ReentrantLock lock = new ReentrantLock();
+
+  public PipelinedTcpTransport(String host, int port, int timeout, int depth) {
+    this.host = host;
+    this.port = port;
+    configure(timeout, depth);
+  }
+
+  /**
+   * Applies the response timeout and the max requests in flight of the client using the connection, so a pooled
+   * connection serves clients with other settings.
+   */
+  public void configure(int timeout, int depth) {
+    Preconditions.checkArgument(depth >= 1, "Pipeline depth should be at least 1 but was %s.", depth);
+    lock.lock();
+    try {
+      if (depth != this.depth) {
+        this.depth = depth;
+        this.transactions = new int[depth];
+        this.slotBatches = new int[depth];
+        this.sentAt = new long[depth];
+      }
+      if (timeout != this.timeout) {
+        this.timeout = timeout;
+        if (socket != null) {
+          socket.setSoTimeout(timeout);
+        }
+      }
+    } catch (IOException e) {
+      log.debug("closing {}:{} that cannot change its timeout: {}", host, port, e.getMessage());
+      disconnect();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int timeout() {
+    return timeout;
+  }
+
+  public int depth() {
+    return depth;
+  }
+
+  /**Records the latency of each request from its send to its response.*/
+  public PipelinedTcpTransport withMetrics(ModbusMetrics metrics) {
+    this.metrics = metrics;
+    return this;
+  }
+
+  /**Connects now instead of on the first request, to fail fast if the device is not reachable.*/
+  public void open() throws ModbusException {
+    lock.lock();
+    try {
+      connect();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**Reads count values starting with address in buffer[index] with one request.*/
+  public void read(int unitId, ModbusType type, int address, int count, int[] buffer, int index)
+      throws ModbusException {
+    lock.lock();
+    try {
+      connect();
+      Arrays.fill(transactions, NO_TRANSACTION);
+      transactions[0] = send(unitId, type, address, count);
+      while (receive() == NO_TRANSACTION) {
+        //a late response of an earlier request
+      }
+      transactions[0] = NO_TRANSACTION;
+      decode(unitId, type, count, buffer, index);
+    } catch (IOException e) {
+      throw failure(e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**Writes one coil (F05) or register (F06) and returns the value echoed by the device.*/
+  public int writeOne(int unitId, ModbusType type, int address, int value) throws ModbusException {
+    Preconditions.checkArgument(type.writeOne != null, "Cannot write a %s.", type);
+    boolean coil = type.bits == 1;
+    lock.lock();
+    try {
+      putShort(request, MBAP_LENGTH + 1, address);
+      putShort(request, MBAP_LENGTH + 3, coil ? (value != 0 ? 0xFF00 : 0) : value);
+      transact(unitId, type.writeOne.code, 5);
+      int echoed = getShort(pdu, 3);
+      return coil ? (echoed == 0xFF00 ? 1 : 0) : echoed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**Writes count values from values[index] with F15 or F16.*/
+  public void writeMany(int unitId, ModbusType type, int address, int[] values, int index, int count)
+      throws ModbusException {
+    Preconditions.checkArgument(type.writeMany != null, "Cannot write %ss.", type);
+    int byteCount = PduCodec.byteCount(type, count);
+    Preconditions.checkArgument(MBAP_LENGTH + 6 + byteCount <= request.length, "Cannot write %s %ss in one request.",
+      count, type);
+    lock.lock();
+    try {
+      int data = MBAP_LENGTH + 6;
+      putShort(request, MBAP_LENGTH + 1, address);
+      putShort(request, MBAP_LENGTH + 3, count);
+      request[MBAP_LENGTH + 5] = (byte) byteCount;
+      if (type.bits == 1) {
+        Arrays.fill(request, data, data + byteCount, (byte) 0);
+        for (int i = 0; i < count; i++) {
+          if (values[index + i] != 0) {
+            request[data + (i >> 3)] |= (byte) (1 << (i & 7));
+          }
+        }
+      } else {
+        for (int i = 0; i < count; i++) {
+          putShort(request, data + 2 * i, values[index + i]);
+        }
+      }
+      transact(unitId, type.writeMany.code, 6 + byteCount);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sends the request pdu already in request, except its function code, and leaves the response pdu in pdu.
+   * @param length of the request pdu
+   */
+  private void transact(int unitId, int function, int length) throws ModbusException {
+    try {
+      connect();
+      Arrays.fill(transactions, NO_TRANSACTION);
+      transactions[0] = send(unitId, function, length);
+      while (receive() == NO_TRANSACTION) {
+        //a late response of an earlier request
+      }
+      transactions[0] = NO_TRANSACTION;
+    } catch (IOException e) {
+      throw failure(e);
+    }
+    if ((header[6] & 0xFF) != unitId) {
+      throw new ModbusIOException("Response from unit %s while expecting %s".formatted(header[6] & 0xFF, unitId));
+    }
+    int responseFunction = pdu[0] & 0xFF;
+    if (responseFunction == (function | 0x80)) {
+      throw new ModbusSlaveException(pdu[1] & 0xFF);
+    }
+    if (responseFunction != function) {
+      throw new ModbusIOException("Response with function %s while expecting %s".formatted(responseFunction, function));
+    }
+  }
+
+  /**
+   * Reads all batches keeping at most depth requests in flight.
+   * The value of an address is stored in buffer[address - baseAddress].
+   */
+  public void read(int unitId, List<ReadBatch> batches, int[] buffer, int baseAddress) throws ModbusException {
+    lock.lock();
+    try {
+      connect();
+      Arrays.fill(transactions, NO_TRANSACTION);
+      int sent = 0;
+      int received = 0;
+      while (received < batches.size()) {
+        while (sent < batches.size() && sent - received < depth) {
+          int slot = freeSlot();
+          ReadBatch batch = batches.get(sent);
+          transactions[slot] = send(unitId, batch.type(), batch.address(), batch.count());
+          slotBatches[slot] = sent;
+          sentAt[slot] = System.nanoTime();
+          sent++;
+        }
+        int slot = receive();
+        if (slot == NO_TRANSACTION) {
+          continue;
+        }
+        ReadBatch batch = batches.get(slotBatches[slot]);
+        transactions[slot] = NO_TRANSACTION;
+        long nanos = System.nanoTime() - sentAt[slot];
+        try {
+          decode(unitId, batch.type(), batch.count(), buffer, batch.address() - baseAddress);
+        } catch (ModbusException e) {
+          if (metrics != null) {
+            metrics.failure(batch.type().readMultiple.code, batch.count(), nanos, 5, e);
+          }
+          drain();
+          throw e;
+        }
+        if (metrics != null) {
+          metrics.transaction(batch.type().readMultiple.code, batch.count(), nanos, 5, 2 + (pdu[1] & 0xFF));
+        }
+        received++;
+      }
+    } catch (IOException e) {
+      ModbusIOException res = failure(e);
+      if (metrics != null && e instanceof SocketTimeoutException) {
+        long now = System.nanoTime();
+        for (int i = 0; i < depth; i++) {
+          if (transactions[i] != NO_TRANSACTION) {
+            ReadBatch batch = batches.get(slotBatches[i]);
+            metrics.failure(batch.type().readMultiple.code, batch.count(), now - sentAt[i], 5, res);
+          }
+        }
+      }
+      throw res;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**Closes the socket, the next request connects again.*/
+  private ModbusIOException failure(IOException e) {
+    disconnect();
+    if (e instanceof SocketTimeoutException) {
+      return new ResponseTimeoutException("Timeout after %sms waiting for %s:%s".formatted(timeout, host, port));
+    }
+    return new ModbusIOException("I/O failure on %s:%s: %s".formatted(host, port, e.getMessage()));
+  }
+
+  /**
+   * Reads the responses of the requests still in flight so they are not left on the socket for the next call. The
+   * connection is closed if they do not come.
+   */
+  private void drain() {
+    try {
+      for (int slot = 0; slot < depth; slot++) {
+        while (transactions[slot] != NO_TRANSACTION) {
+          int received = receive();
+          if (received != NO_TRANSACTION) {
+            transactions[received] = NO_TRANSACTION;
+          }
+        }
+      }
+    } catch (IOException e) {
+      log.debug("closing {}:{} instead of draining it: {}", host, port, e.getMessage());
+      disconnect();
+    }
+  }
+
+  private int freeSlot() {
+    for (int i = 0; i < depth; i++) {
+      if (transactions[i] == NO_TRANSACTION) {
+        return i;
+      }
+    }
+    throw new IllegalStateException("No free slot in pipeline of depth " + depth);
+  }
+
+  private int send(int unitId, ModbusType type, int address, int count) throws IOException {
+    putShort(request, MBAP_LENGTH + 1, address);
+    putShort(request, MBAP_LENGTH + 3, count);
+    return send(unitId, type.readMultiple.code, 5);
+  }
+
+  /**Sends the request pdu of length bytes with a new transaction id and returns the id.*/
+  private int send(int unitId, int function, int length) throws IOException {
+    int transactionId = nextTransactionId;
+    nextTransactionId = (nextTransactionId + 1) & 0xFFFF;
+    putShort(request, 0, transactionId);
+    putShort(request, 2, 0);
+    putShort(request, 4, length + 1);
+    request[6] = (byte) unitId;
+    request[MBAP_LENGTH] = (byte) function;
+    out.write(request, 0, MBAP_LENGTH + length);
+    out.flush();
+    return transactionId;
+  }
+
+  /**Reads the next response in the pdu buffer and returns its slot.*/
+  private int receive() throws IOException {
+    in.readFully(header);
+    int transactionId = getShort(header, 0);
+    int length = getShort(header, 4) - 1;
+    if (length < 2 || length > pdu.length) {
+      throw new IOException("Invalid MBAP length " + (length + 1));
+    }
+    in.readFully(pdu, 0, length);
+    for (int i = 0; i < depth; i++) {
+      if (transactions[i] == transactionId) {
+        return i;
+      }
+    }
+    log.debug("discarding response for unknown transaction {}", transactionId);
+    return NO_TRANSACTION;
+  }
+
+  private void decode(int unitId, ModbusType type, int count, int[] buffer, int index) throws ModbusException {
+    int function = pdu[0] & 0xFF;
+    if ((header[6] & 0xFF) != unitId) {
+      throw new ModbusIOException("Response from unit %s while expecting %s".formatted(header[6] & 0xFF, unitId));
+    }
+    if (function == (type.readMultiple.code | 0x80)) {
+      throw new ModbusSlaveException(pdu[1] & 0xFF);
+    }
+    if (function != type.readMultiple.code) {
+      throw new ModbusIOException(
+        "Response with function %s while expecting %s".formatted(function, type.readMultiple.code));
+    }
+    int byteCount = pdu[1] & 0xFF;
+    int expected = PduCodec.byteCount(type, count);
+    if (byteCount != expected) {
+      throw new ModbusIOException("Response with %s bytes while expecting %s for %s %ss".formatted(byteCount,
+        expected, count, type));
+    }
+    PduCodec.decodeRead(pduView, type, count, buffer, index);
+  }
+
+  /**A failure to connect is a plain ModbusIOException, never a ResponseTimeoutException.*/
+  private void connect() throws ModbusIOException {
+    if (socket != null) {
+      return;
+    }
+    Socket socket = new Socket();
+    try {
+      socket.setTcpNoDelay(true);
+      socket.setSoTimeout(timeout);
+      socket.connect(new InetSocketAddress(host, port), timeout);
+      this.out = socket.getOutputStream();
+      this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    } catch (IOException e) {
+      try {
+        socket.close();
+      } catch (IOException closing) {
+        log.debug("ignoring close failure on {}:{}", host, port, closing);
+      }
+      throw new ModbusIOException("Cannot connect to %s:%s: %s".formatted(host, port, e.getMessage()));
+    }
+    this.socket = socket;
+  }
+
+  /**
+   * Whether the connection can be used as is, or is not open yet and connects on the next request. An open socket is
+   * probed with a short read: the end of the stream means the gateway closed its side, and bytes nobody asked for mean
+   * the stream is out of step. A gateway that vanished without closing is only found by the next request timing out.
+   */
+  public boolean isHealthy() {
+    lock.lock();
+    try {
+      if (socket == null) {
+        return true;
+      }
+      if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+        return false;
+      }
+      socket.setSoTimeout(1);
+      try {
+        int read = in.read();
+        log.debug(read < 0 ? "{}:{} was closed by the gateway" : "{}:{} sent bytes nobody asked for", host, port);
+        return false;
+      } catch (SocketTimeoutException e) {
+        return true;
+      } finally {
+        socket.setSoTimeout(timeout);
+      }
+    } catch (IOException e) {
+      log.debug("{}:{} is broken: {}", host, port, e.getMessage());
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void disconnect() {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        log.debug("ignoring close failure on {}:{}", host, port, e);
+      }
+      socket = null;
+    }
+  }
+
+  private static void putShort(byte[] buffer, int index, int value) {
+    buffer[index] = (byte) (value >> 8);
+    buffer[index + 1] = (byte) value;
+  }
+
+  private static int getShort(byte[] buffer, int index) {
+    return ((buffer[index] & 0xFF) << 8) | (buffer[index + 1] & 0xFF);
+  }
+
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      disconnect();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -10,7 +10,9 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 
 import com.fasterxml.jackson.databind.util.StdConverter;
@@ -41,6 +43,10 @@ import com.fasterxml.jackson.databind.util.StdConverter;
  * after conversion to invoke its <code>@PostConstruct</code> method.
  * </ol>
  * </p>
+ * <p>
+ * The method is looked up once per class and called through a cached {@link MethodHandle}. Registering
+ * {@link PostConstructModule} on a mapper calls it for every bean that has one, without a converter.
+ * </p>
  *
  * @param <T> The type of the values to invoke post-construction for.
  * @author Jakob (Komposten) Hjelm
@@ -50,34 +56,61 @@ public class PostConstructConverter<T> extends StdConverter<T, T> {
   @Target(ElementType.METHOD)
   public @interface PostConstruct {}
 
+  private static final MethodHandle NONE = MethodHandles.empty(MethodType.methodType(void.class, Object.class));
+  /**The post-construct method of each class, found by reflection only once.*/
+  private static final ClassValue<MethodHandle> postConstructs = new ClassValue<>()
+    {
+      @Override
+      protected MethodHandle computeValue(Class<?> klass) {
+        return find(klass);
+      }
+    };
+
   @Override
   public T convert(T value) {
-    Class<?> klass = value.getClass();
+    return postConstruct(value);
+  }
 
-    Method method = null;
+  /**Calls the post-construct method of value if any.*/
+  public static <T> T postConstruct(T value) {
+    MethodHandle method = postConstructs.get(value.getClass());
+    if (method != NONE) {
+      invoke(method, value);
+    }
+    return value;
+  }
 
-    for (Method declaredMethod : klass.getDeclaredMethods()) {
-      PostConstruct postConstruct = declaredMethod.getAnnotation(PostConstruct.class);
-      if (postConstruct != null) {
-        method = declaredMethod;
-        break;
-      }
+  /**The post-construct method of klass typed (Object)void or null if it has none.*/
+  public static MethodHandle postConstructOf(Class<?> klass) {
+    MethodHandle method = postConstructs.get(klass);
+    return method == NONE ? null : method;
+  }
+
+  public static void invoke(MethodHandle method, Object value) {
+    try {
+      method.invokeExact(value);
+    } catch (Throwable e) {
+      throw new IllegalArgumentException("Failed to invoke post-construct method", e);
     }
+  }
 
-    if (method != null) {
-      try {
-        method.setAccessible(true);
-        if (method.getParameterCount() == 0) {
-          method.invoke(value);
-        } else {
-          method.invoke(null); // Replace null with an InvocationContext if needed
+  private static MethodHandle find(Class<?> klass) {
+    for (Method declaredMethod : klass.getDeclaredMethods()) {
+      if (declaredMethod.getAnnotation(PostConstruct.class) != null) {
+        if (declaredMethod.getParameterCount() != 0) {
+          throw new IllegalArgumentException(
+            "Post-construct method %s should have no parameters.".formatted(declaredMethod));
+        }
+        try {
+          declaredMethod.setAccessible(true);
+          return MethodHandles.lookup()
+            .unreflect(declaredMethod)
+            .asType(MethodType.methodType(void.class, Object.class));
+        } catch (IllegalAccessException e) {
+          throw new IllegalArgumentException("Failed to access post-construct method", e);
         }
-      } catch (IllegalAccessException | IllegalArgumentException
-          | InvocationTargetException e) {
-        throw new IllegalArgumentException("Failed to invoke post-construct method", e);
       }
     }
-
-    return value;
+    return NONE;
   }
-}
\ No newline at end of file
+}
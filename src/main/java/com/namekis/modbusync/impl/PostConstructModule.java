@@ -0,0 +1,69 @@
+package com.namekis.modbusync.impl;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.deser.BeanDeserializerModifier;
+import com.fasterxml.jackson.databind.deser.std.DelegatingDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+/**
+ * Calls the {@link PostConstructConverter.PostConstruct} method of every deserialized bean that has one, right after
+ * its bean deserializer, so the type needs no <code>@JsonDeserialize(converter = ...)</code>. A mapper without the
+ * module would skip the method silently, so the readers of such types check the registration with checkRegistered.
+ */
+public class PostConstructModule extends SimpleModule {
+  private static final long serialVersionUID = 1L;
+  private static final String NAME = "PostConstructModule";
+
+  public PostConstructModule() {
+    super(NAME);
+    setDeserializerModifier(new BeanDeserializerModifier()
+      {
+        @Override
+        public JsonDeserializer<?> modifyDeserializer(DeserializationConfig config, BeanDescription beanDesc,
+            JsonDeserializer<?> deserializer) {
+          MethodHandle method = PostConstructConverter.postConstructOf(beanDesc.getBeanClass());
+          return method == null ? deserializer : new PostConstructDeserializer(deserializer, method);
+        }
+      });
+  }
+
+  /**Fails if type has a post-construct method that mapper would not call.*/
+  public static void checkRegistered(ObjectMapper mapper, Class<?> type) {
+    if (PostConstructConverter.postConstructOf(type) != null && !mapper.getRegisteredModuleIds().contains(NAME)) {
+      throw new IllegalArgumentException(
+        "The mapper of %s should register %s to call its post-construct method.".formatted(type.getName(), NAME));
+    }
+  }
+
+  private static class PostConstructDeserializer extends DelegatingDeserializer {
+    private static final long serialVersionUID = 1L;
+    private final transient MethodHandle method;
+
+    PostConstructDeserializer(JsonDeserializer<?> delegatee, MethodHandle method) {
+      super(delegatee);
+      this.method = method;
+    }
+
+    @Override
+    protected JsonDeserializer<?> newDelegatingInstance(JsonDeserializer<?> newDelegatee) {
+      return new PostConstructDeserializer(newDelegatee, method);
+    }
+
+    @Override
+    public Object deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+      Object value = super.deserialize(p, ctxt);
+      if (value != null) {
+        PostConstructConverter.invoke(method, value);
+      }
+      return value;
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package com.namekis.modbusync.impl;
+
+import com.ghgande.j2mod.modbus.ModbusIOException;
+
+/**
+ * The device did not answer a request in time, unlike a failure to connect or a broken connection. A device may time
+ * out on a frame too big for it, so adaptive batching reads it again in smaller frames.
+ */
+public class ResponseTimeoutException extends ModbusIOException {
+  private static final long serialVersionUID = 1L;
+
+  public ResponseTimeoutException(String message) {
+    super(message);
+  }
+}
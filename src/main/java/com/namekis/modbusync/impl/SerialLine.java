@@ -0,0 +1,22 @@
+package com.namekis.modbusync.impl;
+
+import java.io.IOException;
+
+/**
+ * The bytes of a serial port. Implemented with jSerialComm for real ports and pseudo terminals and by tests.
+ */
+public interface SerialLine extends AutoCloseable {
+  void write(byte[] bytes, int offset, int length) throws IOException;
+
+  /**
+   * Reads length bytes waiting at most timeoutNanos for them.
+   * @return the number of bytes read, less than length if the time passed
+   */
+  int read(byte[] bytes, int offset, int length, long timeoutNanos) throws IOException;
+
+  /**Drops the bytes received and not read yet.*/
+  void discardInput() throws IOException;
+
+  @Override
+  void close() throws IOException;
+}
@@ -0,0 +1,327 @@
+package com.namekis.modbusync.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.google.common.base.Preconditions;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+
+/**
+ * Modbus RTU or ASCII master on a serial line.
+ * The inter-frame silence is computed from the line settings (3.5 characters, 1.75ms above 19200 baud) and only the
+ * part of it not already passed is waited before a request. The end of a response is found from its function and byte
+ * count instead of waiting for a silence, and the response timeout is the device turnaround plus the time needed to
+ * send the request and receive the expected response at this baud rate. Anything received before a request is a late
+ * answer to an earlier one and is discarded.
+ */
+public class SerialTransport implements AutoCloseable {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(SerialTransport.class);
+  /**Fixed t3.5 and t1.5 recommended by the spec above 19200 baud.*/
+  private static final long FAST_SILENCE_NANOS = 1_750_000;
+  private static final int FAST_BAUDRATE = 19200;
+  private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+  private static final int[] CRC_TABLE = new int[256];
+  static {
+    for (int i = 0; i < 256; i++) {
+      int crc = i;
+      for (int j = 0; j < 8; j++) {
+        crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+      }
+      CRC_TABLE[i] = crc;
+    }
+  }
+
+  private final SerialLine line;
+  public final boolean ascii;
+  /**Time to send one character, start, data, parity and stop bits included.*/
+  public final long charNanos;
+  /**Silence needed between frames. ASCII frames are delimited so they need none.*/
+  public final long silenceNanos;
+  /**Time the device is allowed to take between the end of the request and the start of the response.*/
+  public final long turnaroundNanos;
+  /**When the last frame on the line ended.*/
+  private long idleSince = System.nanoTime() - Long.MAX_VALUE / 2;
+  private final byte[] pdu = new byte[256];
+  /**Absolute reads over pdu for PduCodec.*/
+  private final ByteBuffer pduView = ByteBuffer.wrap(pdu);
+  private final byte[] adu = new byte[256 + 3];
+  private final byte[] chars = new byte[1 + 2 * (256 + 2) + 2];
+
+  public SerialTransport(SerialLine line, int baudrate, int databits, int stopbits, String parity, boolean ascii,
+      int timeoutMillis) {
+    Preconditions.checkArgument(baudrate > 0, "Baudrate should be positive but was %s.", baudrate);
+    this.line = line;
+    this.ascii = ascii;
+    this.charNanos = charNanos(baudrate, databits, stopbits, parity);
+    this.silenceNanos = ascii ? 0 : silenceNanos(baudrate, charNanos);
+    this.turnaroundNanos = timeoutMillis * 1_000_000L;
+  }
+
+  public static long charNanos(int baudrate, int databits, int stopbits, String parity) {
+    int bits = 1 + databits + ("none".equalsIgnoreCase(parity) ? 0 : 1) + stopbits;
+    return (bits * 1_000_000_000L + baudrate - 1) / baudrate;
+  }
+
+  /**The 3.5 characters silence between two RTU frames.*/
+  public static long silenceNanos(int baudrate, long charNanos) {
+    return baudrate > FAST_BAUDRATE ? FAST_SILENCE_NANOS : (charNanos * 7 + 1) / 2;
+  }
+
+  /**Characters on the line for a frame with an adu (unit, pdu and checksum) of the given length.*/
+  private int frameChars(int aduLength) {
+    return ascii ? 1 + 2 * aduLength + 2 : aduLength;
+  }
+
+  /**How long to wait for a response: the request and response transmission plus the turnaround and a silence.*/
+  public long responseTimeoutNanos(int requestPduLength, int responsePduLength) {
+    int checksum = ascii ? 1 : 2;
+    int chars = frameChars(1 + requestPduLength + checksum) + frameChars(1 + responsePduLength + checksum);
+    return turnaroundNanos + chars * charNanos + silenceNanos;
+  }
+
+  /**Reads count values in buffer[index] with F01-F04. Registers are signed 16 bits values.*/
+  public synchronized void read(int unitId, ModbusType type, int address, int count, int[] buffer, int index)
+      throws ModbusException {
+    int function = type.readMultiple.code;
+    int byteCount = PduCodec.byteCount(type, count);
+    pdu[0] = (byte) function;
+    putShort(pdu, 1, address);
+    putShort(pdu, 3, count);
+    transact(unitId, 5, 2 + byteCount);
+    if ((pdu[1] & 0xFF) != byteCount) {
+      throw new ModbusIOException(
+        "Response with %s bytes while expecting %s for %s %ss at %s".formatted(pdu[1] & 0xFF, byteCount, count, type,
+          address));
+    }
+    PduCodec.decodeRead(pduView, type, count, buffer, index);
+  }
+
+  /**Writes one coil (F05) or register (F06) and returns the value echoed by the device.*/
+  public synchronized int writeOne(int unitId, ModbusType type, int address, int value) throws ModbusException {
+    Preconditions.checkArgument(type.writeOne != null, "Cannot write a %s.", type);
+    boolean coil = type.bits == 1;
+    pdu[0] = (byte) type.writeOne.code;
+    putShort(pdu, 1, address);
+    putShort(pdu, 3, coil ? (value != 0 ? 0xFF00 : 0) : value);
+    transact(unitId, 5, 5);
+    int echoed = getShort(pdu, 3);
+    return coil ? (echoed == 0xFF00 ? 1 : 0) : echoed;
+  }
+
+  /**Writes count values from values[index] with F15 or F16.*/
+  public synchronized void writeMany(int unitId, ModbusType type, int address, int[] values, int index, int count)
+      throws ModbusException {
+    Preconditions.checkArgument(type.writeMany != null, "Cannot write %ss.", type);
+    int byteCount = (count * type.bits + 7) / 8;
+    Preconditions.checkArgument(6 + byteCount <= pdu.length, "Cannot write %s %ss in one request.", count, type);
+    pdu[0] = (byte) type.writeMany.code;
+    putShort(pdu, 1, address);
+    putShort(pdu, 3, count);
+    pdu[5] = (byte) byteCount;
+    if (type.bits == 1) {
+      for (int i = 0; i < byteCount; i++) {
+        pdu[6 + i] = 0;
+      }
+      for (int i = 0; i < count; i++) {
+        if (values[index + i] != 0) {
+          pdu[6 + (i >> 3)] |= (byte) (1 << (i & 7));
+        }
+      }
+    } else {
+      for (int i = 0; i < count; i++) {
+        putShort(pdu, 6 + 2 * i, values[index + i]);
+      }
+    }
+    transact(unitId, 6 + byteCount, 5);
+  }
+
+  /**
+   * Sends the request in pdu and leaves the response pdu in it.
+   * @param responseLength the length of the response pdu if the device does not answer with an exception
+   */
+  private void transact(int unitId, int requestLength, int responseLength) throws ModbusException {
+    int function = pdu[0] & 0xFF;
+    try {
+      waitSilence();
+      line.discardInput();
+      int frameLength = encode(unitId, requestLength);
+      long sent = System.nanoTime();
+      line.write(ascii ? chars : adu, 0, frameLength);
+      idleSince = sent + frameLength * charNanos;
+      long deadline = sent + responseTimeoutNanos(requestLength, responseLength);
+      receive(unitId, function, deadline);
+    } catch (IOException e) {
+      idleSince = System.nanoTime();
+      throw new ModbusIOException("I/O failure on %s: %s".formatted(line, e.getMessage()));
+    }
+  }
+
+  private void waitSilence() {
+    long remaining;
+    while ((remaining = idleSince + silenceNanos - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(remaining);
+    }
+  }
+
+  /**Puts the frame to send in adu (RTU) or chars (ASCII) and returns its length.*/
+  private int encode(int unitId, int pduLength) {
+    adu[0] = (byte) unitId;
+    System.arraycopy(pdu, 0, adu, 1, pduLength);
+    int length = 1 + pduLength;
+    if (!ascii) {
+      int crc = crc(adu, 0, length);
+      adu[length] = (byte) crc;
+      adu[length + 1] = (byte) (crc >> 8);
+      return length + 2;
+    }
+    adu[length] = lrc(adu, 0, length);
+    length++;
+    chars[0] = ':';
+    for (int i = 0; i < length; i++) {
+      chars[1 + 2 * i] = HEX[(adu[i] >> 4) & 0xF];
+      chars[2 + 2 * i] = HEX[adu[i] & 0xF];
+    }
+    chars[1 + 2 * length] = '\r';
+    chars[2 + 2 * length] = '\n';
+    return 3 + 2 * length;
+  }
+
+  private void receive(int unitId, int function, long deadline) throws IOException, ModbusException {
+    if (ascii) {
+      readStart(deadline);
+    }
+    readAdu(0, 2, deadline);
+    int responseFunction = adu[1] & 0xFF;
+    //unit, function and: exception code, byte count and data for reads or address and value/count for writes
+    int length;
+    if (responseFunction == (function | 0x80)) {
+      readAdu(2, 1, deadline);
+      length = 3;
+    } else if (responseFunction != function) {
+      throw mismatch("Response with function %s while expecting %s".formatted(responseFunction, function));
+    } else if (function <= 4) {
+      readAdu(2, 1, deadline);
+      readAdu(3, adu[2] & 0xFF, deadline);
+      length = 3 + (adu[2] & 0xFF);
+    } else {
+      readAdu(2, 4, deadline);
+      length = 6;
+    }
+    checkChecksum(length, deadline);
+    idleSince = System.nanoTime();
+    if ((adu[0] & 0xFF) != unitId) {
+      throw new ModbusIOException("Response from unit %s while expecting %s".formatted(adu[0] & 0xFF, unitId));
+    }
+    if (length == 3) {
+      throw new ModbusSlaveException(adu[2] & 0xFF);
+    }
+    System.arraycopy(adu, 1, pdu, 0, length - 1);
+  }
+
+  private void checkChecksum(int length, long deadline) throws IOException, ModbusException {
+    if (ascii) {
+      readAdu(length, 1, deadline);
+      if (lrc(adu, 0, length) != adu[length]) {
+        throw mismatch("LRC error");
+      }
+      if (line.read(chars, 0, 2, remaining(deadline)) != 2 || chars[0] != '\r' || chars[1] != '\n') {
+        throw mismatch("Missing CR LF at the end of the frame");
+      }
+    } else {
+      readAdu(length, 2, deadline);
+      int crc = crc(adu, 0, length);
+      if ((adu[length] & 0xFF) != (crc & 0xFF) || (adu[length + 1] & 0xFF) != (crc >> 8)) {
+        throw mismatch("CRC error");
+      }
+    }
+  }
+
+  /**Skips anything received before the ':' that starts an ASCII frame.*/
+  private void readStart(long deadline) throws IOException, ModbusException {
+    do {
+      if (line.read(chars, 0, 1, remaining(deadline)) != 1) {
+        throw timeout();
+      }
+    } while (chars[0] != ':');
+  }
+
+  /**Reads count bytes of the adu from offset, as hex characters in ASCII mode.*/
+  private void readAdu(int offset, int count, long deadline) throws IOException, ModbusException {
+    if (count <= 0) {
+      return;
+    }
+    if (!ascii) {
+      if (line.read(adu, offset, count, remaining(deadline)) != count) {
+        throw timeout();
+      }
+      return;
+    }
+    if (line.read(chars, 0, 2 * count, remaining(deadline)) != 2 * count) {
+      throw timeout();
+    }
+    for (int i = 0; i < count; i++) {
+      int high = Character.digit(chars[2 * i], 16);
+      int low = Character.digit(chars[2 * i + 1], 16);
+      if (high < 0 || low < 0) {
+        throw mismatch("Invalid ASCII character");
+      }
+      adu[offset + i] = (byte) (high << 4 | low);
+    }
+  }
+
+  private static long remaining(long deadline) {
+    return Math.max(0, deadline - System.nanoTime());
+  }
+
+  private ResponseTimeoutException timeout() throws IOException {
+    drop();
+    return new ResponseTimeoutException("Timeout waiting for a response on %s".formatted(line));
+  }
+
+  private ModbusIOException mismatch(String message) throws IOException {
+    drop();
+    log.debug("discarded the response on {}: {}", line, message);
+    return new ModbusIOException("%s on %s".formatted(message, line));
+  }
+
+  /**The rest of a broken or late frame is dropped once the line is silent so the next request starts clean.*/
+  private void drop() throws IOException {
+    LockSupport.parkNanos(Math.max(silenceNanos, 10 * charNanos));
+    line.discardInput();
+    idleSince = System.nanoTime();
+  }
+
+  public static int crc(byte[] bytes, int offset, int length) {
+    int crc = 0xFFFF;
+    for (int i = offset; i < offset + length; i++) {
+      crc = (crc >>> 8) ^ CRC_TABLE[(crc ^ bytes[i]) & 0xFF];
+    }
+    return crc;
+  }
+
+  public static byte lrc(byte[] bytes, int offset, int length) {
+    int sum = 0;
+    for (int i = offset; i < offset + length; i++) {
+      sum += bytes[i];
+    }
+    return (byte) -sum;
+  }
+
+  private static void putShort(byte[] buffer, int index, int value) {
+    buffer[index] = (byte) (value >> 8);
+    buffer[index + 1] = (byte) value;
+  }
+
+  private static int getShort(byte[] buffer, int index) {
+    return ((buffer[index] & 0xFF) << 8) | (buffer[index + 1] & 0xFF);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    line.close();
+  }
+}
@@ -0,0 +1,139 @@
+package com.namekis.modbusync.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Runs blocking device sessions concurrently, each on its own thread, and does not let any of them outlive the scope.
+ * On Java 21+ every session gets a virtual thread, so thousands of devices waiting on their sockets cost a few KB
+ * each, and a semaphore keeps at most parallel of them talking. On Java 17 they run on a fixed pool of parallel
+ * platform threads. Sessions still running at the deadline of join() are interrupted, and close() interrupts and
+ * waits for whatever is left, like a StructuredTaskScope.
+ */
+public class SessionScope<T> implements AutoCloseable {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(SessionScope.class);
+  /**Executors.newVirtualThreadPerTaskExecutor() when running on Java 21+, found by reflection to build on 17.*/
+  private static final Method VIRTUAL_EXECUTOR = virtualExecutor();
+  private static final long CLOSE_WAIT_MILLIS = 10_000;
+
+  public enum Threads {
+    /**Virtual threads when available, platform threads otherwise.*/
+    auto,
+    virtual,
+    platform
+  }
+
+  public final boolean virtual;
+  private final ExecutorService executor;
+  /**Bounds the virtual threads doing I/O at the same time, null for the bounded pool.*/
+  private final Semaphore permits;
+  private final List<Future<T>> forks = new ArrayList<>();
+
+  /**@param tasks expected number of tasks, the platform pool has no more threads than that*/
+  public SessionScope(Threads threads, int parallel, int tasks, String name) {
+    Preconditions.checkArgument(parallel >= 1, "Parallelism should be at least 1 but was %s.", parallel);
+    Preconditions.checkArgument(threads != Threads.virtual || VIRTUAL_EXECUTOR != null,
+      "Virtual threads need Java 21+ but this is Java %s.", Runtime.version().feature());
+    this.virtual = threads != Threads.platform && VIRTUAL_EXECUTOR != null;
+    if (virtual) {
+      this.executor = newVirtualExecutor();
+      this.permits = new Semaphore(parallel);
+    } else {
+      this.executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallel, tasks)), platformThreads(name));
+      this.permits = null;
+    }
+  }
+
+  public static boolean virtualThreadsAvailable() {
+    return VIRTUAL_EXECUTOR != null;
+  }
+
+  private static Method virtualExecutor() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  private static ExecutorService newVirtualExecutor() {
+    try {
+      return (ExecutorService) VIRTUAL_EXECUTOR.invoke(null);
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static ThreadFactory platformThreads(String name) {
+    AtomicInteger counter = new AtomicInteger();
+    return task -> new Thread(task, name + "-" + counter.incrementAndGet());
+  }
+
+  public Future<T> fork(Callable<T> task) {
+    Future<T> res = executor.submit(permits == null ? task : () -> {
+      permits.acquire();
+      try {
+        return task.call();
+      } finally {
+        permits.release();
+      }
+    });
+    forks.add(res);
+    return res;
+  }
+
+  /**
+   * Waits for all forks. The ones not done after timeoutMillis (0 waits for all) are interrupted and their get()
+   * throws CancellationException.
+   * @return the number of forks cancelled
+   */
+  public int join(long timeoutMillis) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    int cancelled = 0;
+    for (Future<T> fork : forks) {
+      try {
+        if (timeoutMillis <= 0) {
+          fork.get();
+        } else {
+          fork.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+      } catch (ExecutionException e) {
+        //the caller sees it on get()
+      } catch (TimeoutException e) {
+        fork.cancel(true);
+        cancelled++;
+      }
+    }
+    if (cancelled > 0) {
+      log.warn("cancelled {} of {} sessions still running after {}ms", cancelled, forks.size(), timeoutMillis);
+    }
+    return cancelled;
+  }
+
+  /**Interrupts the forks still running and waits for them to end.*/
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    try {
+      if (!executor.awaitTermination(CLOSE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+        log.warn("sessions still running {}ms after being interrupted", CLOSE_WAIT_MILLIS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,349 @@
+package com.namekis.modbusync.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A memory-mapped file of blocks of poll cycles stored column by column.
+ * <pre>
+ * header: magic, version, end (int, the offset after the last complete block), column count, columns (type, address)
+ * block:  length (int, of the rest of the block), cycles, first time, last time, offset of each column,
+ *         times as varints of the zigzag delta-of-delta of the millis,
+ *         each column as varints of the xor with the previous value of the block, a run of unchanged values being
+ *         written as 0 and the length of the run
+ * </pre>
+ * A block is complete once end is moved after it, so a crash in the middle of a block leaves the previous ones
+ * readable. Each block is decoded on its own and a query skips the blocks outside of its range without decoding
+ * them.
+ */
+public class TimeSeriesSegment implements AutoCloseable {
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TimeSeriesSegment.class);
+  private static final int MAGIC = 0x4d425453;
+  private static final int VERSION = 1;
+  private static final int END_OFFSET = 8;
+  private static final int COLUMN_BYTES = 5;
+  /**length, cycles, first time and last time*/
+  private static final int BLOCK_HEADER = 4 + 4 + 8 + 8;
+
+  public final Path path;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final boolean writable;
+  private final byte[] types;
+  private final int[] addresses;
+  private int end;
+
+  private TimeSeriesSegment(Path path, FileChannel channel, MappedByteBuffer buffer, boolean writable) {
+    this.path = path;
+    this.channel = channel;
+    this.buffer = buffer;
+    this.writable = writable;
+    Preconditions.checkArgument(buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION,
+      "%s is not a time series segment of version %s.", path, VERSION);
+    this.end = buffer.getInt(END_OFFSET);
+    int columns = buffer.getInt(12);
+    this.types = new byte[columns];
+    this.addresses = new int[columns];
+    for (int i = 0; i < columns; i++) {
+      types[i] = buffer.get(16 + i * COLUMN_BYTES);
+      addresses[i] = buffer.getInt(17 + i * COLUMN_BYTES);
+    }
+  }
+
+  /**A new segment of capacity bytes for the given columns.*/
+  public static TimeSeriesSegment create(Path path, byte[] types, int[] addresses, int capacity) {
+    Preconditions.checkArgument(types.length == addresses.length, "Each column needs a type and an address.");
+    int header = headerLength(types.length);
+    Preconditions.checkArgument(capacity > header, "Capacity %s is too small for %s columns.", capacity,
+      types.length);
+    try {
+      FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+      MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, capacity);
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, VERSION);
+      buffer.putInt(END_OFFSET, header);
+      buffer.putInt(12, types.length);
+      for (int i = 0; i < types.length; i++) {
+        buffer.put(16 + i * COLUMN_BYTES, types[i]);
+        buffer.putInt(17 + i * COLUMN_BYTES, addresses[i]);
+      }
+      return new TimeSeriesSegment(path, channel, buffer, true);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**An existing segment, mapped with capacity bytes to append to it or read-only with its size.*/
+  public static TimeSeriesSegment open(Path path, int capacity, boolean writable) {
+    try {
+      FileChannel channel = writable
+          ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+          : FileChannel.open(path, StandardOpenOption.READ);
+      long size = writable ? Math.max(capacity, channel.size()) : channel.size();
+      MappedByteBuffer buffer = channel.map(writable ? MapMode.READ_WRITE : MapMode.READ_ONLY, 0, size);
+      return new TimeSeriesSegment(path, channel, buffer, writable);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public static int headerLength(int columns) {
+    return 16 + columns * COLUMN_BYTES;
+  }
+
+  public int columns() {
+    return types.length;
+  }
+
+  public boolean hasColumns(byte[] types, int[] addresses) {
+    return Arrays.equals(this.types, types) && Arrays.equals(this.addresses, addresses);
+  }
+
+  /**The index of the column or -1.*/
+  public int column(byte type, int address) {
+    for (int i = 0; i < types.length; i++) {
+      if (types[i] == type && addresses[i] == address) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**Bytes still free for blocks.*/
+  public int remaining() {
+    return buffer.capacity() - end;
+  }
+
+  public boolean isEmpty() {
+    return end == headerLength(types.length);
+  }
+
+  /**
+   * Encodes cycles polls as a block in scratch and appends it if it fits.
+   * @param values values[column][cycle]
+   * @return false if the block does not fit in this segment
+   */
+  public boolean append(long[] times, int[][] values, int cycles, Scratch scratch) {
+    Preconditions.checkState(writable, "%s is read only.", path);
+    int columns = types.length;
+    Preconditions.checkArgument(values.length == columns, "Expected %s columns but got %s.", columns, values.length);
+    ByteSink out = scratch.out.reset();
+    long previous = times[0];
+    long delta = 0;
+    for (int i = 1; i < cycles; i++) {
+      long next = times[i] - previous;
+      out.writeVarLong(zigzag(next - delta));
+      delta = next;
+      previous = times[i];
+    }
+    int[] offsets = scratch.offsets(columns);
+    for (int c = 0; c < columns; c++) {
+      offsets[c] = out.length;
+      encodeColumn(values[c], cycles, out);
+    }
+    int length = BLOCK_HEADER + 4 * columns + out.length;
+    if (length > remaining()) {
+      return false;
+    }
+    int at = end;
+    buffer.putInt(at, length - 4);
+    buffer.putInt(at + 4, cycles);
+    buffer.putLong(at + 8, times[0]);
+    buffer.putLong(at + 16, times[cycles - 1]);
+    for (int c = 0; c < columns; c++) {
+      buffer.putInt(at + BLOCK_HEADER + 4 * c, offsets[c]);
+    }
+    buffer.put(at + BLOCK_HEADER + 4 * columns, out.bytes, 0, out.length);
+    end = at + length;
+    buffer.putInt(END_OFFSET, end);
+    return true;
+  }
+
+  private static void encodeColumn(int[] column, int cycles, ByteSink out) {
+    int previous = 0;
+    int i = 0;
+    while (i < cycles) {
+      int xor = (column[i] ^ previous) & 0xFFFF;
+      if (xor != 0) {
+        out.writeVarLong(xor);
+        previous = column[i];
+        i++;
+        continue;
+      }
+      int run = 1;
+      while (i + run < cycles && column[i + run] == previous) {
+        run++;
+      }
+      out.writeVarLong(0);
+      out.writeVarLong(run);
+      i += run;
+    }
+  }
+
+  /**Receives the values of the columns read at each time, in time order. The values array is reused.*/
+  public interface Visitor {
+    void accept(long time, int[] values);
+  }
+
+  /**
+   * Passes to visitor the values of the columns with a time in [from, to]. The times of a block are decoded once for
+   * all the columns.
+   */
+  public void read(int[] columns, long from, long to, Visitor visitor) {
+    for (int column : columns) {
+      Preconditions.checkElementIndex(column, types.length, "column");
+    }
+    ByteBuffer view = buffer.duplicate();
+    long[] times = new long[0];
+    int[][] values = new int[columns.length][0];
+    int[] row = new int[columns.length];
+    int at = headerLength(types.length);
+    while (at < end) {
+      int length = buffer.getInt(at) + 4;
+      int cycles = buffer.getInt(at + 4);
+      long first = buffer.getLong(at + 8);
+      long last = buffer.getLong(at + 16);
+      if (last >= from && first <= to) {
+        if (times.length < cycles) {
+          times = new long[cycles];
+          for (int k = 0; k < columns.length; k++) {
+            values[k] = new int[cycles];
+          }
+        }
+        int data = at + BLOCK_HEADER + 4 * types.length;
+        view.limit(at + length).position(data);
+        decodeTimes(view, first, cycles, times);
+        for (int k = 0; k < columns.length; k++) {
+          view.position(data + buffer.getInt(at + BLOCK_HEADER + 4 * columns[k]));
+          decodeColumn(view, cycles, values[k]);
+        }
+        for (int i = 0; i < cycles; i++) {
+          if (times[i] >= from && times[i] <= to) {
+            for (int k = 0; k < columns.length; k++) {
+              row[k] = values[k][i];
+            }
+            visitor.accept(times[i], row);
+          }
+        }
+      }
+      at += length;
+    }
+  }
+
+  private static void decodeTimes(ByteBuffer in, long first, int cycles, long[] times) {
+    times[0] = first;
+    long delta = 0;
+    for (int i = 1; i < cycles; i++) {
+      delta += unzigzag(readVarLong(in));
+      times[i] = times[i - 1] + delta;
+    }
+  }
+
+  private static void decodeColumn(ByteBuffer in, int cycles, int[] values) {
+    int value = 0;
+    int i = 0;
+    while (i < cycles) {
+      int xor = (int) readVarLong(in);
+      int run = 1;
+      if (xor == 0) {
+        run = (int) readVarLong(in);
+      } else {
+        value = (short) (value ^ xor);
+      }
+      Arrays.fill(values, i, i + run, value);
+      i += run;
+    }
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static long readVarLong(ByteBuffer in) {
+    long res = 0;
+    for (int shift = 0;; shift += 7) {
+      byte b = in.get();
+      res |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return res;
+      }
+    }
+  }
+
+  /**Buffers reused between appends.*/
+  public static class Scratch {
+    private final ByteSink out = new ByteSink();
+    private int[] offsets = new int[0];
+
+    private int[] offsets(int columns) {
+      if (offsets.length < columns) {
+        offsets = new int[columns];
+      }
+      return offsets;
+    }
+  }
+
+  private static class ByteSink {
+    private byte[] bytes = new byte[4096];
+    private int length;
+
+    ByteSink reset() {
+      length = 0;
+      return this;
+    }
+
+    void writeVarLong(long value) {
+      if (length + 10 > bytes.length) {
+        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+      }
+      while ((value & ~0x7FL) != 0) {
+        bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      bytes[length++] = (byte) value;
+    }
+  }
+
+  /**Writes the mapped content and cuts the unused capacity of the file.*/
+  @Override
+  public void close() {
+    try {
+      if (writable) {
+        buffer.force();
+        try {
+          channel.truncate(end);
+        } catch (IOException e) {
+          //some systems do not allow to truncate a mapped file, the reader stops at end anyway
+          log.debug("cannot truncate {}: {}", path, e.getMessage());
+        }
+      }
+      channel.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**Writes the blocks appended so far to the disk.*/
+  public void force() {
+    buffer.force();
+  }
+
+  public static boolean isSegment(Path path) {
+    return Files.isRegularFile(path) && path.getFileName().toString().endsWith(".mbts");
+  }
+}
@@ -0,0 +1,77 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.impl.ResponseTimeoutException;
+import org.junit.jupiter.api.Test;
+
+public class AdaptiveBatchSizeTest {
+  @Test
+  void testProbesBetweenAcceptedAndRejected() {
+    AdaptiveBatchSize sizes = new AdaptiveBatchSize();
+    assertThat(sizes.batchSize(1, ModbusType.holding, 125)).isEqualTo(125);
+    sizes.rejected(1, ModbusType.holding, 125);
+    assertThat(sizes.batchSize(1, ModbusType.holding, 125)).isEqualTo(62);
+    sizes.accepted(1, ModbusType.holding, 62);
+    assertThat(sizes.batchSize(1, ModbusType.holding, 125)).isEqualTo(93);
+    sizes.rejected(1, ModbusType.holding, 93);
+    assertThat(sizes.batchSize(1, ModbusType.holding, 125)).isEqualTo(77);
+    //a device that accepts up to 70 registers
+    sizes.rejected(1, ModbusType.holding, 77);
+    for (int i = 0; i < 10; i++) {
+      int size = sizes.batchSize(1, ModbusType.holding, 125);
+      if (size <= 70) {
+        sizes.accepted(1, ModbusType.holding, size);
+      } else {
+        sizes.rejected(1, ModbusType.holding, size);
+      }
+    }
+    assertThat(sizes.batchSize(1, ModbusType.holding, 125)).isEqualTo(70);
+    //other units and types are learned apart, and a smaller cap wins
+    assertThat(sizes.batchSize(2, ModbusType.holding, 125)).isEqualTo(125);
+    assertThat(sizes.batchSize(1, ModbusType.input, 125)).isEqualTo(125);
+    assertThat(sizes.batchSize(1, ModbusType.holding, 50)).isEqualTo(50);
+  }
+
+  @Test
+  void testOnlyIllegalAddressAndResponseTimeoutRejectAFrame() {
+    assertThat(ModbusClient.isFrameRejected(new ModbusSlaveException(Modbus.ILLEGAL_ADDRESS_EXCEPTION))).isTrue();
+    assertThat(ModbusClient.isFrameRejected(new ModbusSlaveException(Modbus.ILLEGAL_FUNCTION_EXCEPTION))).isFalse();
+    assertThat(ModbusClient.isFrameRejected(new ResponseTimeoutException("Timeout"))).isTrue();
+    assertThat(ModbusClient.isFrameRejected(new ModbusIOException("Cannot connect to gw:502: refused"))).isFalse();
+    assertThat(ModbusClient.isFrameRejected(new ModbusIOException("I/O failure on gw:502: reset"))).isFalse();
+  }
+
+  @Test
+  void testMissingAddressDoesNotShrinkTheBatches() throws Exception {
+    try (FakeDevice device = new FakeDevice();
+        ModbusClient client = new ModbusClient(device.config().transport, 1).withAdaptiveBatch(true)) {
+      device.maxRead = 40;
+      client.readBatch(new int[60], 0, ModbusType.holding, 0, 60);
+      //60 is learned as rejected once 30 are accepted at the same address
+      assertThat(client.batchSize(ModbusType.holding, null)).isEqualTo(45);
+      device.missing.add(70);
+      assertThatThrownBy(() -> client.readBatch(new int[10], 0, ModbusType.holding, 70, 10))
+        .hasCauseInstanceOf(ModbusSlaveException.class);
+      //10, 5, 2 and 1 registers were rejected at 70 without lowering the batch size
+      assertThat(device.reads.get()).isEqualTo(3 + 4);
+      assertThat(client.batchSize(ModbusType.holding, null)).isEqualTo(45);
+    }
+  }
+
+  @Test
+  void testResponseTimeoutIsNotRetriedOnANewConnection() throws Exception {
+    try (FakeDevice device = new FakeDevice();
+        ModbusClient client = new ModbusClient(device.config().transport, 1, 100)) {
+      device.hook = read -> Thread.sleep(300);
+      assertThatThrownBy(() -> client.readOnce(new int[1], 0, ModbusType.holding, 0, 1))
+        .hasCauseInstanceOf(ResponseTimeoutException.class);
+      assertThat(device.reads.get()).isEqualTo(1);
+    }
+  }
+}
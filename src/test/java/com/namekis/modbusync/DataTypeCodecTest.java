@@ -0,0 +1,50 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.namekis.modbusync.ModbusParam.ModbusDataType;
+import com.namekis.modbusync.ModbusParam.ModbusWordOrder;
+import org.junit.jupiter.api.Test;
+
+public class DataTypeCodecTest {
+  @Test
+  void testWordOrders() {
+    assertThat(decode(ModbusDataType.int32, ModbusWordOrder.ABCD, 0x1234, 0x5678)).isEqualTo(0x12345678);
+    assertThat(decode(ModbusDataType.int32, ModbusWordOrder.CDAB, 0x5678, 0x1234)).isEqualTo(0x12345678);
+    assertThat(decode(ModbusDataType.int32, ModbusWordOrder.BADC, 0x3412, 0x7856)).isEqualTo(0x12345678);
+    assertThat(decode(ModbusDataType.int32, ModbusWordOrder.DCBA, 0x7856, 0x3412)).isEqualTo(0x12345678);
+    assertThat(decode(ModbusDataType.int32, null, 0x1234, 0x5678)).isEqualTo(0x12345678);
+    for (ModbusWordOrder order : ModbusWordOrder.values()) {
+      int[] registers = new int[5];
+      DataTypeCodec.encode(ModbusDataType.float32, order, 230.1f, registers, 1);
+      assertThat(DataTypeCodec.decode(ModbusDataType.float32, order, registers, 1)).isEqualTo((double) 230.1f);
+      DataTypeCodec.encode(ModbusDataType.float64, order, -1.25e300, registers, 1);
+      assertThat(DataTypeCodec.decode(ModbusDataType.float64, order, registers, 1)).isEqualTo(-1.25e300);
+      DataTypeCodec.encode(ModbusDataType.int64, order, Long.MIN_VALUE + 3, registers, 1);
+      assertThat(DataTypeCodec.decode(ModbusDataType.int64, order, registers, 1)).isEqualTo(Long.MIN_VALUE + 3);
+    }
+  }
+
+  @Test
+  void testSignedAndUnsigned() {
+    assertThat(decode(ModbusDataType.int16, null, -2)).isEqualTo(-2);
+    assertThat(decode(null, null, -2)).isEqualTo(-2);
+    assertThat(decode(ModbusDataType.uint16, null, -2)).isEqualTo(65534);
+    assertThat(decode(ModbusDataType.int32, ModbusWordOrder.ABCD, -1, -2)).isEqualTo(-2);
+    assertThat(decode(ModbusDataType.uint32, ModbusWordOrder.ABCD, -1, -2)).isEqualTo(0xFFFFFFFEL);
+    assertThat(decode(ModbusDataType.uint32, ModbusWordOrder.ABCD, 0, -2)).isEqualTo(65534);
+    assertThat(decode(ModbusDataType.float32, ModbusWordOrder.CDAB, 0, 0x3FC0)).isEqualTo(1.5);
+    int[] registers = new int[1];
+    DataTypeCodec.encode(ModbusDataType.uint16, null, 65534, registers, 0);
+    assertThat(registers[0]).isEqualTo(-2);
+    assertThatThrownBy(() -> DataTypeCodec.encode(ModbusDataType.uint16, null, 65536, registers, 0))
+      .hasMessageContaining("does not fit in 16 bits");
+  }
+
+  private static Number decode(ModbusDataType dataType, ModbusWordOrder order, int... registers) {
+    Number res = DataTypeCodec.decode(dataType, order, registers, 0);
+    assertThat(DataTypeCodec.decodeDouble(dataType, order, registers, 0)).isEqualTo(res.doubleValue());
+    return res;
+  }
+}
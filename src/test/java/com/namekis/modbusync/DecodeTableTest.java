@@ -0,0 +1,74 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Random;
+
+import com.namekis.modbusync.ModbusParam.ModbusDataType;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusParam.ModbusWordOrder;
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+import org.junit.jupiter.api.Test;
+
+public class DecodeTableTest {
+  private static ModbusParam param(ModbusDataType dataType, ModbusWordOrder order, String scale, String offset) {
+    return ModbusParam.create().withType(ModbusType.holding).withAddress(0).withDataType(dataType)
+      .withWordOrder(order).withScale(scale == null ? null : new BigDecimal(scale))
+      .withOffset(offset == null ? null : new BigDecimal(offset)).withPrecision(1);
+  }
+
+  @Test
+  void testDecodesTheValuesOfTheCsv() {
+    List<ModbusParam> params = List.of(
+      param(null, null, null, null),
+      param(ModbusDataType.uint16, null, "0.1", "-40"),
+      param(ModbusDataType.int16, null, "0.01", null),
+      param(null, null, "3", "7"),
+      param(null, null, "0.333", "0.5"),
+      param(ModbusDataType.int32, ModbusWordOrder.CDAB, "0.001", null),
+      param(ModbusDataType.uint32, ModbusWordOrder.ABCD, "0.1", "1"),
+      param(ModbusDataType.int64, ModbusWordOrder.DCBA, "0.5", null),
+      param(ModbusDataType.float32, ModbusWordOrder.BADC, "2", "0.5"),
+      param(ModbusDataType.float64, null, null, null));
+    Random random = new Random(1);
+    RegisterImage image = new RegisterImage(new ModbusRead(ModbusType.holding, 0, 4));
+    int[] registers = new int[4];
+    for (ModbusParam param : params) {
+      DecodeTable table = DecodeTable.compile(List.of(param));
+      for (int n = 0; n < 2_000; n++) {
+        for (int j = 0; j < registers.length; j++) {
+          //the edges of a register and random ones
+          registers[j] = n < 4 ? new int[] { 0, -1, Short.MIN_VALUE, Short.MAX_VALUE }[n] : (short) random.nextInt();
+        }
+        image.update(ModbusType.holding, 0, registers, 0, registers.length);
+        ModbusParam expected = param.decode(registers, 0);
+        ModbusParam actual = table.toParam(0, image);
+        assertThat(actual.modbusValue).as("%s %s", param, n).isEqualTo(expected.modbusValue);
+        assertThat(actual.value).as("%s %s", param, n).isEqualTo(expected.value);
+        if (!Double.isNaN(expected.value.doubleValue())) {
+          assertThat(table.decode(0, image)).as("%s %s", param, n).isEqualTo(expected.value.doubleValue());
+        }
+      }
+    }
+  }
+
+  @Test
+  void testLaysOutTheRowsOfThePoll() {
+    ParamIndex all = ParamIndex.of(List.of(
+      ModbusParam.create().withType(ModbusType.holding).withAddress(1).withDataType(ModbusDataType.int32),
+      ModbusParam.create().withType(ModbusType.holding).withAddress(4).withDataType(ModbusDataType.int32)));
+    DecodeTable table = DecodeTable.compile(all, new ModbusRead(ModbusType.holding, 0, 5),
+      new ModbusRead(ModbusType.coil, 0, 2));
+    //the int32 at 4 does not fit in the read and is a bare register
+    assertThat(table.size()).isEqualTo(6);
+    assertThat(table.first(1)).isEqualTo(4);
+    assertThat(table.first(2)).isEqualTo(6);
+    assertThat(table.param(1).dataType).isEqualTo(ModbusDataType.int32);
+    assertThat(table.param(3).dataType).isNull();
+    assertThat(table.covering(0, 2)).isEqualTo(1);
+    assertThat(table.covering(0, 3)).isEqualTo(2);
+    assertThat(table.covering(1, 1)).isEqualTo(5);
+  }
+}
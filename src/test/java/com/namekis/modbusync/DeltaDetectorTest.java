@@ -0,0 +1,73 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import com.namekis.modbusync.DeltaDetector.Delta;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+import org.junit.jupiter.api.Test;
+
+public class DeltaDetectorTest {
+  @Test
+  void testOnlyChangesAreReported() {
+    DeltaDetector detector = new DeltaDetector(ParamIndex.empty(), new ModbusRead(ModbusType.holding, 10, 40));
+    int[] values = new int[40];
+    Delta first = detector.update(ModbusType.holding, 10, values, 0, 40);
+    assertThat(first.size()).isEqualTo(40);
+    assertThat(detector.update(ModbusType.holding, 10, values, 0, 40)).isNull();
+
+    values[0] = 1;
+    values[17] = -5;
+    values[39] = 7;
+    Delta delta = detector.update(ModbusType.holding, 10, values, 0, 40);
+    assertThat(delta.addresses()).containsExactly(10, 27, 49);
+    assertThat(delta.values()).containsExactly(1, -5, 7);
+    assertThat(detector.update(ModbusType.holding, 10, values, 0, 40)).isNull();
+  }
+
+  @Test
+  void testBatchesAndGapsBetweenReads() {
+    DeltaDetector detector = new DeltaDetector(ParamIndex.empty(), new ModbusRead(ModbusType.input, 0, 10),
+      new ModbusRead(ModbusType.input, 100, 10), new ModbusRead(ModbusType.coil, 0, 8));
+    int[] values = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+    assertThat(detector.update(ModbusType.input, 0, values, 0, 5).size()).isEqualTo(5);
+    assertThat(detector.update(ModbusType.input, 5, values, 5, 5).size()).isEqualTo(5);
+    assertThat(detector.update(ModbusType.input, 100, values, 0, 10).size()).isEqualTo(10);
+    assertThat(detector.update(ModbusType.coil, 0, new int[] { 1, 0, 1, 0, 1, 0, 1, 0 }, 0, 8).size()).isEqualTo(8);
+
+    values[6] = 70;
+    assertThat(detector.update(ModbusType.input, 100, values, 0, 10).addresses()).containsExactly(106);
+    assertThat(detector.update(ModbusType.input, 0, values, 0, 10).addresses()).containsExactly(6);
+    assertThat(detector.update(ModbusType.coil, 0, new int[] { 1, 1, 1, 0, 1, 0, 1, 0 }, 0, 8).addresses())
+      .containsExactly(1);
+  }
+
+  @Test
+  void testDeadbandFromStepAndPrecision() {
+    ModbusParam temperature = ModbusParam.create()
+      .withType(ModbusType.input)
+      .withAddress(0)
+      .withScale(new BigDecimal("0.1"))
+      .withStep("0.5");
+    ModbusParam pressure = ModbusParam.create()
+      .withType(ModbusType.input)
+      .withAddress(1)
+      .withScale(new BigDecimal("0.01"))
+      .withPrecision(1);
+    assertThat(DeltaDetector.deadband(temperature)).isEqualTo(5);
+    assertThat(DeltaDetector.deadband(pressure)).isEqualTo(10);
+    assertThat(DeltaDetector.deadband(ModbusParam.create().withType(ModbusType.input).withStep("n/a"))).isEqualTo(1);
+
+    DeltaDetector detector = new DeltaDetector(ParamIndex.of(List.of(temperature, pressure)),
+      new ModbusRead(ModbusType.input, 0, 3));
+    detector.update(ModbusType.input, 0, new int[] { 200, 100, 0 }, 0, 3);
+    assertThat(detector.update(ModbusType.input, 0, new int[] { 203, 109, 1 }, 0, 3).addresses()).containsExactly(2);
+    //the drift is compared with the last reported value
+    Delta delta = detector.update(ModbusType.input, 0, new int[] { 205, 110, 1 }, 0, 3);
+    assertThat(delta.addresses()).containsExactly(0, 1);
+    assertThat(delta.values()).containsExactly(205, 110);
+  }
+}
@@ -0,0 +1,137 @@
+package com.namekis.modbusync;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.namekis.modbusync.impl.ModbusTcpServer;
+
+/**
+ * A device with 100 coils and 100 holding registers answering F01, F03, F05, F06, F15 and F16 from memory. The writes
+ * are logged in order. A write to a read only address is acknowledged but not stored. A read past the end, of a
+ * missing address or of more than maxRead values fails with illegal data address. Any number of clients is served
+ * by ModbusTcpServer. With a hook a read takes its values at once and is answered after the hook returned, while the
+ * other requests are served.
+ */
+class FakeDevice implements AutoCloseable {
+  interface ReadHook {
+    /**Called for the n-th read before it is answered.*/
+    void beforeAnswer(int read) throws Exception;
+  }
+
+  final boolean[] coils = new boolean[100];
+  final int[] holding = new int[100];
+  final List<String> writes = new CopyOnWriteArrayList<>();
+  final Set<Integer> readOnly = ConcurrentHashMap.newKeySet();
+  final Set<Integer> missing = ConcurrentHashMap.newKeySet();
+  volatile int maxRead = 2000;
+  final AtomicInteger reads = new AtomicInteger();
+  volatile ReadHook hook;
+  private final ModbusTcpServer server;
+
+  FakeDevice() {
+    this.server = new ModbusTcpServer(new InetSocketAddress("localhost", 0), this::serve).start();
+  }
+
+  ModbusyncConfig config() {
+    return ModbusyncConfig.tcp("localhost", server.port(), 1);
+  }
+
+  int port() {
+    return server.port();
+  }
+
+  private byte[] serve(ModbusTcpServer.Exchange exchange, byte[] pdu) {
+    byte[] res = handle(pdu);
+    ReadHook hook = this.hook;
+    if (hook == null || (pdu[0] != 1 && pdu[0] != 3)) {
+      return res;
+    }
+    int read = reads.get();
+    Thread thread = new Thread(() -> {
+      try {
+        hook.beforeAnswer(read);
+      } catch (Exception e) {
+        //answered anyway
+      }
+      exchange.reply(res);
+    });
+    thread.setDaemon(true);
+    thread.start();
+    return null;
+  }
+
+  private synchronized byte[] handle(byte[] pdu) {
+    int function = pdu[0];
+    int address = word(pdu, 1);
+    int count = word(pdu, 3);
+    if (function == 1 || function == 3) {
+      reads.incrementAndGet();
+      if (count > maxRead || address + count > 100
+          || missing.stream().anyMatch(x -> x >= address && x < address + count)) {
+        return new byte[] { (byte) (0x80 | function), 2 };
+      }
+    }
+    byte[] res;
+    switch (function) {
+      case 1 -> {
+        res = new byte[2 + (count + 7) / 8];
+        res[1] = (byte) (res.length - 2);
+        for (int i = 0; i < count; i++) {
+          if (coils[address + i]) {
+            res[2 + i / 8] |= (byte) (1 << (i % 8));
+          }
+        }
+      }
+      case 3 -> {
+        res = new byte[2 + 2 * count];
+        res[1] = (byte) (2 * count);
+        for (int i = 0; i < count; i++) {
+          res[2 + 2 * i] = (byte) (holding[address + i] >> 8);
+          res[3 + 2 * i] = (byte) holding[address + i];
+        }
+      }
+      case 5, 6 -> {
+        write(function, address, new int[] { function == 5 ? (count == 0xFF00 ? 1 : 0) : count });
+        res = pdu.clone();
+      }
+      case 15, 16 -> {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+          values[i] = function == 15 ? pdu[6 + i / 8] >> (i % 8) & 1 : word(pdu, 6 + 2 * i);
+        }
+        write(function, address, values);
+        res = Arrays.copyOf(pdu, 5);
+      }
+      default -> {
+        return new byte[] { (byte) (0x80 | function), 1 };
+      }
+    }
+    res[0] = (byte) function;
+    return res;
+  }
+
+  private void write(int function, int address, int[] values) {
+    writes.add("F%s %s=%s".formatted(function, address, Arrays.toString(values)));
+    for (int i = 0; i < values.length; i++) {
+      if (function == 5 || function == 15) {
+        coils[address + i] = values[i] != 0;
+      } else if (!readOnly.contains(address + i)) {
+        holding[address + i] = values[i];
+      }
+    }
+  }
+
+  private static int word(byte[] bytes, int index) {
+    return (bytes[index] & 0xFF) << 8 | bytes[index + 1] & 0xFF;
+  }
+
+  @Override
+  public void close() {
+    server.close();
+  }
+}
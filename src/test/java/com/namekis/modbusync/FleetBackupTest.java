@@ -0,0 +1,69 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusyncConfig.Target;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.raisercostin.jedio.Locations;
+
+public class FleetBackupTest {
+  private static ModbusyncConfig config(Target... targets) {
+    ModbusyncConfig config = new ModbusyncConfig();
+    config.targets = targets;
+    config.parallel = 2;
+    return config;
+  }
+
+  @Test
+  void testGatewaysInParallelDevicesOfAGatewayInSequenceAndFailuresIsolated(@TempDir Path dir) throws Exception {
+    ModbusyncConfig config = config(new Target("a", 502, 1), new Target("a", 502, 2), new Target("a", 502, 3),
+      new Target("b", 502, 1), new Target("b", 502, 2), new Target("c", 502, 1), new Target("d", 502, 1));
+    config.path = Locations.path(dir.resolve("export.csv"));
+    Map<String, AtomicInteger> perGateway = new ConcurrentHashMap<>();
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    AtomicInteger maxPerGateway = new AtomicInteger();
+    FleetBackup.DeviceBackup fake = (device, all, sink) -> {
+      AtomicInteger gateway = perGateway.computeIfAbsent(device.transport.tcp.host, x -> new AtomicInteger());
+      maxPerGateway.accumulateAndGet(gateway.incrementAndGet(), Math::max);
+      maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+      try {
+        Thread.sleep(20);
+        if (device.transport.tcp.host.equals("c")) {
+          throw new RuntimeException("gateway unreachable");
+        }
+        sink.accept(List.of(ModbusParam.create().withType(ModbusType.holding).withAddress(device.unitId)
+          .withModbusValue(7)));
+      } finally {
+        running.decrementAndGet();
+        gateway.decrementAndGet();
+      }
+    };
+
+    assertThatThrownBy(() -> new FleetBackup(config, fake).execute())
+      .hasMessageContaining("Backup failed for 1 of 7 devices: c:502:1 gateway unreachable");
+    assertThat(maxPerGateway.get()).isEqualTo(1);
+    assertThat(maxRunning.get()).isBetween(1, 2);
+    for (String name : List.of("a-502-1", "a-502-2", "a-502-3", "b-502-1", "b-502-2", "d-502-1")) {
+      //the header and the row of the device
+      assertThat(Files.readAllLines(dir.resolve("export-" + name + ".csv"))).hasSize(2);
+    }
+  }
+
+  @Test
+  void testManyTargetsNeedAnOutput() {
+    ModbusyncConfig config = config(new Target("a", 502, 1), new Target("b", 502, 1));
+    assertThatThrownBy(() -> new FleetBackup(config, (device, all, sink) -> {
+    }).execute()).hasMessageContaining("needs --output");
+  }
+}
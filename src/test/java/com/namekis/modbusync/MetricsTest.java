@@ -0,0 +1,51 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.namekis.modbusync.impl.LatencyHistogram;
+import com.namekis.modbusync.impl.ResponseTimeoutException;
+import org.junit.jupiter.api.Test;
+
+public class MetricsTest {
+  @Test
+  void testPercentilesWithinBucketPrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000L);
+    }
+    assertThat(histogram.count()).isEqualTo(1000);
+    assertThat(histogram.percentile(100)).isEqualTo(1_000_000);
+    //buckets are at most 1/32 wide
+    assertThat(histogram.percentile(50)).isBetween(500_000L, 500_000L + 500_000L / 32);
+    assertThat(histogram.percentile(99)).isBetween(990_000L, 990_000L + 990_000L / 32);
+    assertThat(histogram.snapshot().mean()).isEqualTo(500_500.0);
+  }
+
+  @Test
+  void testTransactionsAndFailuresAreCountedPerDevice() {
+    Metrics metrics = new Metrics();
+    ModbusMetrics device = new ModbusMetrics(metrics, "gw:502:1", ModbusMetrics.Framing.tcp);
+    device.transaction(3, 100, 2_000_000, 5, 202);
+    device.failure(3, 100, 3_000_000, 5, new RuntimeException(new ModbusSlaveException(2)));
+    device.failure(4, 10, 5_000_000, 5,
+      new RuntimeException(new ResponseTimeoutException("Timeout after 1000ms waiting for gw:502")));
+    //a failure to connect is an error even if its message says timeout
+    device.failure(4, 10, 1_000_000, 5,
+      new RuntimeException(new ModbusIOException("Cannot connect to gw:502: connect timeout")));
+    device.retry();
+
+    assertThat(metrics.count("modbus.requests.device.gw:502:1")).isEqualTo(4);
+    assertThat(metrics.count("modbus.exceptions.device.gw:502:1.code2")).isEqualTo(1);
+    assertThat(metrics.count("modbus.timeouts.device.gw:502:1")).isEqualTo(1);
+    assertThat(metrics.count("modbus.errors.device.gw:502:1")).isEqualTo(1);
+    assertThat(metrics.count("modbus.retries.device.gw:502:1")).isEqualTo(1);
+    assertThat(metrics.count("modbus.bytesSent.device.gw:502:1")).isEqualTo(4 * (7 + 5));
+    assertThat(metrics.count("modbus.bytesReceived.device.gw:502:1")).isEqualTo(7 + 202 + 7 + 2);
+    assertThat(metrics.timer("modbus.latency.function.F03").count()).isEqualTo(2);
+    assertThat(metrics.timer("modbus.latency.size.64-127").count()).isEqualTo(2);
+    assertThat(metrics.timer("modbus.latency.function.F04").count()).isEqualTo(0);
+    assertThat(metrics.dump()).contains("modbus.latency.device.gw:502:1 count=2");
+  }
+}
@@ -0,0 +1,163 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.namekis.modbusync.impl.PipelinedTcpTransport;
+import org.junit.jupiter.api.Test;
+
+public class ModbusConnectionsTest {
+  /**A connection that never touches the network.*/
+  private static class FakeTransport extends PipelinedTcpTransport {
+    final boolean refuse;
+    volatile boolean closed;
+
+    FakeTransport(boolean refuse) {
+      super("fake", 502, 1_000, 1);
+      this.refuse = refuse;
+    }
+
+    @Override
+    public void open() throws ModbusIOException {
+      if (refuse) {
+        throw new ModbusIOException("Connection refused");
+      }
+    }
+
+    @Override
+    public boolean isHealthy() {
+      return !closed;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  @Test
+  void testLeaseWaitsForTheConnectionOfAFullGateway() throws Exception {
+    AtomicInteger created = new AtomicInteger();
+    ModbusConnections.TransportFactory factory = () -> {
+      created.incrementAndGet();
+      return new FakeTransport(false);
+    };
+    try (ModbusConnections connections = new ModbusConnections(1, 60_000, 3)) {
+      ModbusConnections.Lease first = connections.acquire("a", factory);
+      CompletableFuture<ModbusConnections.Lease> second = CompletableFuture
+        .supplyAsync(() -> connections.acquire("a", factory));
+      //other gateways are not blocked
+      try (ModbusConnections.Lease other = connections.acquire("b", factory)) {
+        assertThat(other.key).isEqualTo("b");
+      }
+      Thread.sleep(100);
+      assertThat(second.isDone()).isFalse();
+      first.close();
+      try (ModbusConnections.Lease lease = second.get(5, TimeUnit.SECONDS)) {
+        assertThat(lease.transport).isSameAs(first.transport);
+      }
+      assertThat(created.get()).isEqualTo(2);
+    }
+  }
+
+  @Test
+  void testAcquireFailsOnceClosed() throws Exception {
+    ModbusConnections connections = new ModbusConnections(1, 60_000, 3);
+    ModbusConnections.Lease first = connections.acquire("a", () -> new FakeTransport(false));
+    CompletableFuture<ModbusConnections.Lease> waiting = CompletableFuture
+      .supplyAsync(() -> connections.acquire("a", () -> new FakeTransport(false)));
+    Thread.sleep(100);
+    connections.close();
+    //the client waiting for the gateway fails instead of waiting for a connection that will not be reused
+    assertThatThrownBy(() -> waiting.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(IllegalStateException.class);
+    assertThatThrownBy(() -> connections.acquire("b", () -> new FakeTransport(false)))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessageContaining("closed");
+    first.close();
+    assertThat(((FakeTransport) first.transport).closed).isTrue();
+  }
+
+  @Test
+  void testInvalidatedConnectionIsClosedAndReplaced() {
+    try (ModbusConnections connections = new ModbusConnections(1, 60_000, 3)) {
+      FakeTransport broken;
+      try (ModbusConnections.Lease lease = connections.acquire("a", () -> new FakeTransport(false))) {
+        broken = (FakeTransport) lease.transport;
+        lease.invalidate();
+      }
+      assertThat(broken.closed).isTrue();
+      try (ModbusConnections.Lease lease = connections.acquire("a", () -> new FakeTransport(false))) {
+        assertThat(lease.transport).isNotSameAs(broken);
+      }
+    }
+  }
+
+  @Test
+  void testIdleConnectionsAreClosedWithoutNewLeases() throws Exception {
+    try (ModbusConnections connections = new ModbusConnections(1, 50, 3)) {
+      FakeTransport idle;
+      try (ModbusConnections.Lease lease = connections.acquire("a", () -> new FakeTransport(false))) {
+        idle = (FakeTransport) lease.transport;
+      }
+      assertThat(idle.closed).isFalse();
+      Thread.sleep(300);
+      assertThat(idle.closed).isTrue();
+    }
+  }
+
+  @Test
+  void testConnectBacksOffAndGivesUp() {
+    AtomicInteger attempts = new AtomicInteger();
+    try (ModbusConnections connections = new ModbusConnections(1, 60_000, 3)) {
+      long start = System.nanoTime();
+      //refused twice, waiting 100ms and 200ms
+      try (ModbusConnections.Lease lease = connections
+        .acquire("a", () -> new FakeTransport(attempts.incrementAndGet() <= 2))) {
+        assertThat(attempts.get()).isEqualTo(3);
+      }
+      assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isBetween(250L, 2_000L);
+
+      assertThatThrownBy(() -> connections.acquire("b", () -> new FakeTransport(true)))
+        .hasMessageContaining("Cannot connect to b after 3 attempts");
+      //the slot of the failed lease is free, and the next client waits for the backoff of the gateway
+      start = System.nanoTime();
+      try (ModbusConnections.Lease lease = connections.acquire("b", () -> new FakeTransport(false))) {
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isBetween(250L, 2_000L);
+      }
+    }
+  }
+
+  @Test
+  void testLeaseAppliesTheTimeoutAndDepthOfTheClient() throws Exception {
+    try (ServerSocket gateway = new ServerSocket(0); ModbusConnections connections = new ModbusConnections(1, 60_000,
+      1)) {
+      try (ModbusConnections.Lease lease = connections.acquire("localhost", gateway.getLocalPort(), 1_000, 1)) {
+        assertThat(lease.transport.timeout()).isEqualTo(1_000);
+      }
+      try (ModbusConnections.Lease lease = connections.acquire("localhost", gateway.getLocalPort(), 3_000, 4)) {
+        assertThat(lease.transport.timeout()).isEqualTo(3_000);
+        assertThat(lease.transport.depth()).isEqualTo(4);
+      }
+    }
+  }
+
+  @Test
+  void testHealthCheckFindsAConnectionClosedByTheGateway() throws Exception {
+    try (ServerSocket gateway = new ServerSocket(0);
+        PipelinedTcpTransport transport = new PipelinedTcpTransport("localhost", gateway.getLocalPort(), 2_000, 1)) {
+      transport.open();
+      try (Socket accepted = gateway.accept()) {
+        assertThat(transport.isHealthy()).isTrue();
+      }
+      Thread.sleep(50);
+      assertThat(transport.isHealthy()).isFalse();
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+import org.junit.jupiter.api.Test;
+
+public class ModbusProxyTest {
+  private static ModbusProxy proxy(FakeDevice device, ModbusConnections connections, ModbusRead... reads) {
+    ModbusClient client = new ModbusClient(device.config().transport, 1, 2_000, connections);
+    PollSchedule schedule = new PollSchedule(ParamIndex.empty(), 50, List.of(), reads);
+    return new ModbusProxy(client, new ReadPlanner(), schedule, new InetSocketAddress("localhost", 0));
+  }
+
+  @Test
+  void testGapsBetweenTheReadsAreIllegalAddresses() throws Exception {
+    try (FakeDevice device = new FakeDevice(); ModbusConnections connections = new ModbusConnections(1, 60_000, 1);
+        ModbusProxy proxy = proxy(device, connections, new ModbusRead(ModbusType.holding, 0, 10),
+          new ModbusRead(ModbusType.holding, 20, 10))) {
+      device.holding[21] = 7;
+      proxy.serve(1);
+      try (Socket socket = new Socket("localhost", proxy.port())) {
+        assertThat(exchange(socket, 1, 3, 21, 1)).containsExactly(3, 2, 0, 7);
+        assertThat(exchange(socket, 2, 3, 10, 1)).containsExactly(0x83, 2);
+        assertThat(exchange(socket, 3, 3, 8, 4)).containsExactly(0x83, 2);
+        assertThat(exchange(socket, 4, 3, 29, 2)).containsExactly(0x83, 2);
+      }
+    }
+  }
+
+  @Test
+  void testWritesAreForwardedInOrderAndReadsWaitForTheWritesBefore() throws Exception {
+    try (FakeDevice device = new FakeDevice(); ModbusConnections connections = new ModbusConnections(1, 60_000, 1);
+        ModbusProxy proxy = proxy(device, connections, new ModbusRead(ModbusType.holding, 0, 10))) {
+      proxy.serve(1);
+      try (Socket socket = new Socket("localhost", proxy.port())) {
+        //sent at once, before any answer
+        OutputStream out = socket.getOutputStream();
+        out.write(request(1, 6, 0, 1, 0, 5));
+        out.write(request(2, 16, 0, 1, 0, 2, 4, 0, 6, 0, 7));
+        out.write(request(3, 3, 0, 1, 0, 2));
+        assertThat(response(socket)).containsExactly(0, 1, 0, 0, 0, 6, 1, 6, 0, 1, 0, 5);
+        assertThat(response(socket)).containsExactly(0, 2, 0, 0, 0, 6, 1, 16, 0, 1, 0, 2);
+        assertThat(response(socket)).containsExactly(0, 3, 0, 0, 0, 7, 1, 3, 4, 0, 6, 0, 7);
+      }
+      assertThat(device.writes).containsExactly("F6 1=[5]", "F16 1=[6, 7]");
+    }
+  }
+
+  @Test
+  void testCycleDoesNotOverwriteAWriteMadeWhileItWasReading() throws Exception {
+    CountDownLatch reading = new CountDownLatch(1);
+    CountDownLatch written = new CountDownLatch(1);
+    //a second connection lets the write reach the device while the read of the cycle waits
+    try (FakeDevice device = new FakeDevice(); ModbusConnections connections = new ModbusConnections(2, 60_000, 1);
+        ModbusProxy proxy = proxy(device, connections, new ModbusRead(ModbusType.holding, 0, 10))) {
+      device.holding[3] = 1;
+      device.hook = read -> {
+        if (read == 2) {
+          //the second cycle read 1 before the write and is answered after the client saw the write
+          reading.countDown();
+          written.await(5, TimeUnit.SECONDS);
+        }
+      };
+      CompletableFuture<Void> serving = CompletableFuture.runAsync(() -> proxy.serve(2));
+      assertThat(reading.await(5, TimeUnit.SECONDS)).isTrue();
+      try (Socket socket = new Socket("localhost", proxy.port())) {
+        assertThat(exchange(socket, 1, 6, 3, 42)).containsExactly(6, 0, 3, 0, 42);
+        written.countDown();
+        serving.get(5, TimeUnit.SECONDS);
+        assertThat(exchange(socket, 2, 3, 3, 1)).containsExactly(3, 2, 0, 42);
+      }
+    }
+  }
+
+  private static byte[] request(int transactionId, int function, int... data) {
+    byte[] res = new byte[8 + data.length];
+    res[1] = (byte) transactionId;
+    res[5] = (byte) (2 + data.length);
+    res[6] = 1;
+    res[7] = (byte) function;
+    for (int i = 0; i < data.length; i++) {
+      res[8 + i] = (byte) data[i];
+    }
+    return res;
+  }
+
+  /**The response pdu of a request with an address and a count or value.*/
+  private static int[] exchange(Socket socket, int transactionId, int function, int address, int value)
+      throws IOException {
+    socket.getOutputStream().write(request(transactionId, function, address >> 8, address, value >> 8, value));
+    int[] response = response(socket);
+    assertThat(response[1]).isEqualTo(transactionId);
+    return Arrays.copyOfRange(response, 7, response.length);
+  }
+
+  private static int[] response(Socket socket) throws IOException {
+    socket.setSoTimeout(5_000);
+    DataInputStream in = new DataInputStream(socket.getInputStream());
+    byte[] header = new byte[6];
+    in.readFully(header);
+    byte[] rest = new byte[header[5]];
+    in.readFully(rest);
+    int[] res = new int[6 + rest.length];
+    for (int i = 0; i < res.length; i++) {
+      res[i] = (i < 6 ? header[i] : rest[i - 6]) & 0xFF;
+    }
+    return res;
+  }
+}
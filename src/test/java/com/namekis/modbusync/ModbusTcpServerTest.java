@@ -0,0 +1,92 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import com.namekis.modbusync.impl.ModbusTcpServer;
+import org.junit.jupiter.api.Test;
+
+public class ModbusTcpServerTest {
+  @Test
+  void testImmediateAndDeferredResponsesOfManyClients() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    ModbusTcpServer.Handler handler = (exchange, pdu) -> {
+      if (pdu[0] == 6) {
+        //a slow write answered later by another thread
+        CompletableFuture.runAsync(() -> {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+          exchange.reply(pdu);
+        });
+        return null;
+      }
+      return new byte[] { pdu[0], 2, (byte) exchange.deferred(), pdu[4] };
+    };
+    try (ModbusTcpServer server = new ModbusTcpServer(new InetSocketAddress("localhost", 0), handler).start();
+        Socket first = new Socket("localhost", server.port());
+        Socket second = new Socket("localhost", server.port())) {
+      //a request split across two packets
+      byte[] read = request(1, 3, 0, 0, 0, 7);
+      first.getOutputStream().write(read, 0, 4);
+      first.getOutputStream().flush();
+      Thread.sleep(50);
+      first.getOutputStream().write(read, 4, read.length - 4);
+      assertThat(response(first)).containsExactly(0, 1, 0, 0, 0, 5, 9, 3, 2, 0, 7);
+
+      OutputStream out = first.getOutputStream();
+      out.write(concat(request(2, 6, 0, 1, 0, 42), request(3, 3, 0, 1, 0, 1)));
+      assertThat(response(first)).containsExactly(0, 3, 0, 0, 0, 5, 9, 3, 2, 1, 1);
+      //the other client is not blocked by the pending write
+      second.getOutputStream().write(request(4, 3, 0, 0, 0, 2));
+      assertThat(response(second)).containsExactly(0, 4, 0, 0, 0, 5, 9, 3, 2, 0, 2);
+      release.countDown();
+      assertThat(response(first)).containsExactly(0, 2, 0, 0, 0, 6, 9, 6, 0, 1, 0, 42);
+    }
+  }
+
+  private static byte[] request(int transactionId, int function, int... data) {
+    byte[] res = new byte[8 + data.length];
+    res[1] = (byte) transactionId;
+    res[5] = (byte) (2 + data.length);
+    res[6] = 9;
+    res[7] = (byte) function;
+    for (int i = 0; i < data.length; i++) {
+      res[8 + i] = (byte) data[i];
+    }
+    return res;
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    byte[] res = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, res, a.length, b.length);
+    return res;
+  }
+
+  private static int[] response(Socket socket) throws Exception {
+    socket.setSoTimeout(5_000);
+    DataInputStream in = new DataInputStream(socket.getInputStream());
+    byte[] header = new byte[6];
+    in.readFully(header);
+    byte[] rest = new byte[header[5]];
+    in.readFully(rest);
+    return Arrays.stream(new int[][] { toInts(header), toInts(rest) }).flatMapToInt(Arrays::stream).toArray();
+  }
+
+  private static int[] toInts(byte[] bytes) {
+    int[] res = new int[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      res[i] = bytes[i] & 0xFF;
+    }
+    return res;
+  }
+}
@@ -0,0 +1,80 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import com.namekis.modbusync.ModbusParam.ModbusDataType;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.impl.CsvRowWriter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.raisercostin.jedio.Locations;
+import org.raisercostin.jedio.path.PathLocation;
+import org.slf4j.LoggerFactory;
+
+public class ModbusyncAppTest {
+  private static ModbusParam param(ModbusType type, int address, int modbusValue) {
+    return ModbusParam.create().withType(type).withAddress(address).setModbusValue(modbusValue);
+  }
+
+  /**A backup as written by the app.*/
+  private static PathLocation backup(Path dir, List<ModbusParam> params) {
+    Path res = dir.resolve("backup.csv");
+    try (CsvRowWriter<ModbusParam> writer = CsvRowWriter.open(res, ModbusParam.class, ModbusParam.rowMapper)) {
+      writer.write(params);
+    }
+    return Locations.path(res);
+  }
+
+  @Test
+  void testRestoreWritesOnlyTheChangedParamsWithNeighboursTogether(@TempDir Path dir) throws Exception {
+    PathLocation backup = backup(dir, List.of(param(ModbusType.holding, 0, 0), param(ModbusType.holding, 1, 1),
+      param(ModbusType.holding, 2, 20), param(ModbusType.holding, 3, 30), param(ModbusType.holding, 4, 40),
+      param(ModbusType.holding, 5, 5), param(ModbusType.holding, 6, 60),
+      param(ModbusType.holding, 8, 0x10002).withDataType(ModbusDataType.int32), param(ModbusType.coil, 0, 0),
+      param(ModbusType.coil, 1, 1), param(ModbusType.coil, 2, 1), param(ModbusType.coil, 3, 0),
+      param(ModbusType.input, 0, 5)));
+    try (FakeDevice device = new FakeDevice(); ModbusyncApp app = new ModbusyncApp(device.config())) {
+      for (int i = 0; i < 8; i++) {
+        device.holding[i] = i;
+      }
+      List<ModbusParam> restored = app.restore(backup);
+      //the input register is read only and the unchanged params are not written
+      assertThat(device.writes).containsExactlyInAnyOrder("F16 2=[20, 30, 40]", "F6 6=[60]", "F16 8=[1, 2]",
+        "F15 1=[1, 1]");
+      assertThat(restored).hasSize(7);
+      assertThat(device.holding).startsWith(0, 1, 20, 30, 40, 5, 60, 7, 1, 2);
+      //a second restore finds nothing to write
+      device.writes.clear();
+      assertThat(app.restore(backup)).isEmpty();
+      assertThat(device.writes).isEmpty();
+    }
+  }
+
+  @Test
+  void testRestoreWarnsWhenTheDeviceReportsAnotherValue(@TempDir Path dir) throws Exception {
+    PathLocation backup = backup(dir, List.of(param(ModbusType.holding, 2, 20), param(ModbusType.holding, 3, 30)));
+    Logger logger = (Logger) LoggerFactory.getLogger(ModbusyncApp.class);
+    ListAppender<ILoggingEvent> appender = new ListAppender<>();
+    appender.start();
+    logger.addAppender(appender);
+    try (FakeDevice device = new FakeDevice(); ModbusyncApp app = new ModbusyncApp(device.config())) {
+      device.readOnly.add(2);
+      List<ModbusParam> restored = app.restore(backup);
+      assertThat(device.writes).containsExactly("F16 2=[20, 30]");
+      assertThat(restored).extracting(x -> x.address, x -> x.modbusValue.intValue())
+        .containsExactly(tuple(2, 0), tuple(3, 30));
+    } finally {
+      logger.detachAppender(appender);
+    }
+    assertThat(appender.list).filteredOn(x -> x.getLevel() == Level.WARN).hasSize(1)
+      .allMatch(x -> x.getFormattedMessage().startsWith("restored ") && x.getFormattedMessage().contains("address=2"));
+  }
+}
@@ -0,0 +1,136 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.namekis.modbusync.ModbusParam.Level;
+import com.namekis.modbusync.ModbusParam.ModbusDataType;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ParamDiff.Change;
+import com.namekis.modbusync.ParamDiff.Row;
+import com.namekis.modbusync.impl.CsvRowWriter;
+import com.namekis.modbusync.impl.ExternalSort;
+import com.namekis.modbusync.impl.ExternalSort.SortedRows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.raisercostin.jedio.Locations;
+
+public class ParamDiffTest {
+  public static class Item {
+    public int key;
+    public String text;
+
+    public Item() {
+    }
+
+    Item(int key, String text) {
+      this.key = key;
+      this.text = text;
+    }
+  }
+
+  private static ModbusParam param(ModbusType type, int address, int value) {
+    return ModbusParam.create().withType(type).withAddress(address).withModbusValue(value);
+  }
+
+  @Test
+  void testMergeJoin() {
+    List<ModbusParam> left = List.of(param(ModbusType.coil, 1, 1), param(ModbusType.holding, 1, 10),
+      param(ModbusType.holding, 2, 20), param(ModbusType.holding, 2, 21), param(ModbusType.holding, 4, 40));
+    List<ModbusParam> right = List.of(param(ModbusType.coil, 1, 1), param(ModbusType.holding, 2, 21),
+      param(ModbusType.holding, 3, 30), param(ModbusType.holding, 4, 41), param(ModbusType.input, 0, 5));
+    List<Row> rows = new ArrayList<>();
+    assertThat(ParamDiff.diff(left.iterator(), right.iterator(), rows::add)).isEqualTo(4);
+    assertThat(rows).extracting(x -> x.change, x -> x.type, x -> x.address, x -> x.leftModbusValue,
+      x -> x.rightModbusValue)
+      .containsExactly(tuple(Change.removed, ModbusType.holding, 1, 10, null),
+        tuple(Change.added, ModbusType.holding, 3, null, 30),
+        tuple(Change.changed, ModbusType.holding, 4, 40, 41),
+        tuple(Change.added, ModbusType.input, 0, null, 5));
+  }
+
+  @Test
+  void testExternalSortIsStableAcrossChunks() {
+    List<Item> items = IntStream.range(0, 100).mapToObj(i -> new Item((i * 37) % 10, "item" + i)).toList();
+    List<Item> sorted = new ArrayList<>();
+    try (SortedRows<Item> rows = ExternalSort.sort(items.iterator(), (a, b) -> Integer.compare(a.key, b.key), 7,
+      Item.class, new CsvMapper())) {
+      rows.forEachRemaining(sorted::add);
+    }
+    List<Item> expected = new ArrayList<>(items);
+    expected.sort((a, b) -> Integer.compare(a.key, b.key));
+    assertThat(sorted).extracting(x -> x.text).containsExactlyElementsOf(expected.stream().map(x -> x.text).toList());
+  }
+
+  @Test
+  void testExternalSortSpillsParamsAsTheyWereRead() {
+    Level[] levels = Level.values();
+    List<ModbusParam> params = IntStream.range(0, 10)
+      .mapToObj(i -> ModbusParam.create().withType(ModbusType.holding).withAddress(i * 7 % 10)
+        .withLevel(levels[i % levels.length]).withDataType(ModbusDataType.int32).withScale(new BigDecimal("0.1"))
+        .setModbusValue(i * 385))
+      .toList();
+    List<ModbusParam> sorted = new ArrayList<>();
+    //spilled in chunks of 3 and read back with the mapper of the backups
+    try (SortedRows<ModbusParam> rows = ExternalSort.sort(params.iterator(), ParamDiff.ORDER, 3, ModbusParam.class,
+      ModbusParam.rowMapper)) {
+      rows.forEachRemaining(sorted::add);
+    }
+    List<ModbusParam> expected = new ArrayList<>(params);
+    expected.sort(ParamDiff.ORDER);
+    assertThat(sorted).extracting(x -> x.address, x -> x.level, x -> x.dataType, x -> x.modbusValue)
+      .containsExactlyElementsOf(
+        expected.stream().map(x -> tuple(x.address, x.level, x.dataType, x.modbusValue)).toList());
+  }
+
+  @Test
+  void testDiffLiveKeepsAnAddressInOneChunk() throws Exception {
+    //holding 1 is twice across the end of the first chunk of 2, the last one is compared
+    List<ModbusParam> sorted = List.of(param(ModbusType.holding, 0, 0), param(ModbusType.holding, 1, 10),
+      param(ModbusType.holding, 1, 11), param(ModbusType.holding, 2, 20));
+    try (FakeDevice device = new FakeDevice(); ModbusyncApp app = new ModbusyncApp(device.config())) {
+      device.holding[1] = 11;
+      device.holding[2] = 20;
+      List<Row> rows = new ArrayList<>();
+      assertThat(ParamDiff.diffLive(app, sorted.iterator(), 2, rows::add)).isZero();
+      device.holding[2] = 21;
+      assertThat(ParamDiff.diffLive(app, sorted.iterator(), 2, rows::add)).isEqualTo(1);
+      assertThat(rows).extracting(x -> x.change, x -> x.address, x -> x.rightModbusValue)
+        .containsExactly(tuple(Change.changed, 2, 21));
+    }
+  }
+
+  @Test
+  void testDiffWithTheDevice(@TempDir Path dir) throws Exception {
+    Path backup = dir.resolve("backup.csv");
+    try (CsvRowWriter<ModbusParam> writer = CsvRowWriter.open(backup, ModbusParam.class, ModbusParam.rowMapper)) {
+      writer.write(IntStream.of(4, 3, 2, 1, 0)
+        .mapToObj(i -> ModbusParam.create().withType(ModbusType.holding).withAddress(i).withLevel(Level.Installer)
+          .setModbusValue(10 * i))
+        .toList());
+    }
+    try (FakeDevice device = new FakeDevice()) {
+      for (int i = 0; i < 5; i++) {
+        device.holding[i] = 10 * i;
+      }
+      device.holding[1] = 11;
+      device.holding[3] = 31;
+      DiffSubcommand diff = new DiffSubcommand();
+      diff.parent = device.config();
+      diff.parent.path = Locations.path(dir.resolve("diff.csv"));
+      diff.left = Locations.path(backup);
+      assertThat(diff.call()).isEqualTo(1);
+    }
+    assertThat(Files.readAllLines(dir.resolve("diff.csv"))).containsExactly(
+      "change,type,address,param,name,unit,leftModbusValue,leftValue,rightModbusValue,rightValue",
+      "changed,holding,1,,,,10,10,11,11", "changed,holding,3,,,,30,30,31,31");
+  }
+}
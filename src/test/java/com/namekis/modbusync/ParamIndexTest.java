@@ -0,0 +1,63 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.namekis.modbusync.ModbusParam.Level;
+import com.namekis.modbusync.ModbusParam.ModbusDataType;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.raisercostin.jedio.Locations;
+
+public class ParamIndexTest {
+  private static final String CSV = """
+      "mapping sheet"
+      "exported"
+      "Param","Name","Level","Type","Address","Scale","Offset","Precision","DataType","ModbusValue","Value"
+      "P2111","Fixed outgoing water set point","I","holding","7","0.1","","","uint16","500","50"
+      "P0100","Return water temperature","U","input","0","","","","","40","40"
+      "P2110","Heating zone2 enable","","coil","3","","","","bool","0","0"
+      """;
+
+  @Test
+  void testLoadFromCsvThenFromSidecar(@TempDir Path dir) throws IOException {
+    Path csv = dir.resolve("params.csv");
+    Files.writeString(csv, CSV);
+
+    ParamIndex parsed = ParamIndex.load(Locations.path(csv));
+    assertThat(dir.resolve("params.csv.index")).exists();
+    ParamIndex cached = ParamIndex.load(Locations.path(csv));
+
+    assertThat(cached.size()).isEqualTo(3);
+    List<String> expected = new ArrayList<>();
+    parsed.forEach(x -> expected.add(x.toString()));
+    assertThat(cached).extracting(ModbusParam::toString).containsExactlyElementsOf(expected);
+    ModbusParam param = cached.get(ModbusType.holding, 7);
+    assertThat(param.param).isEqualTo("P2111");
+    assertThat(param.scale).isEqualTo(new BigDecimal("0.1"));
+    assertThat(param.level).isEqualTo(Level.Installer);
+    assertThat(param.dataType).isEqualTo(ModbusDataType.uint16);
+    assertThat(cached.get(ModbusType.coil, 3).level).isEqualTo(Level.User);
+    assertThat(param.setModbusValue(385).value).isEqualTo(new BigDecimal("38.5"));
+    assertThat(cached.get(ModbusType.holding, 6)).isNull();
+    assertThat(cached.getOrCreate(ModbusType.discrete, 1).address).isEqualTo(1);
+  }
+
+  @Test
+  void testChangedCsvIsParsedAgain(@TempDir Path dir) throws IOException {
+    Path csv = dir.resolve("params.csv");
+    Files.writeString(csv, CSV);
+    ParamIndex.load(Locations.path(csv));
+
+    Files.writeString(csv, CSV.replace("\"P0100\"", "\"P0101\""));
+
+    assertThat(ParamIndex.load(Locations.path(csv)).get(ModbusType.input, 0).param).isEqualTo("P0101");
+  }
+}
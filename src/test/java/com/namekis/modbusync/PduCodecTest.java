@@ -0,0 +1,34 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.impl.PduCodec;
+import org.junit.jupiter.api.Test;
+
+public class PduCodecTest {
+  @Test
+  void testRegistersAreSignedBigEndian() {
+    ByteBuffer pdu = ByteBuffer.wrap(new byte[] { 3, 6, 0x12, 0x34, (byte) 0xFF, (byte) 0xFE, (byte) 0x80, 0 });
+    int[] buffer = new int[4];
+    PduCodec.decodeRead(pdu, ModbusType.holding, 3, buffer, 1);
+    assertThat(buffer).containsExactly(0, 0x1234, -2, -32768);
+  }
+
+  @Test
+  void testBitsMatchBitByBitDecodingAcrossWords() {
+    int count = 2000 - 3;
+    byte[] bytes = new byte[2 + PduCodec.byteCount(ModbusType.coil, count)];
+    new Random(1).nextBytes(bytes);
+    int[] buffer = new int[count];
+    PduCodec.decodeRead(ByteBuffer.wrap(bytes), ModbusType.coil, count, buffer, 0);
+    int[] expected = new int[count];
+    for (int i = 0; i < count; i++) {
+      expected[i] = (bytes[2 + i / 8] >> (i % 8)) & 1;
+    }
+    assertThat(buffer).containsExactly(expected);
+  }
+}
@@ -0,0 +1,198 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ReadPlanner.ReadBatch;
+import com.namekis.modbusync.impl.PipelinedTcpTransport;
+import org.junit.jupiter.api.Test;
+
+public class PipelinedTcpTransportTest {
+  /**A device on a local port answering the requests of one connection as told by a script.*/
+  private static class FakeDevice implements AutoCloseable {
+    interface Script {
+      void run(DataInputStream in, OutputStream out) throws Exception;
+    }
+
+    final ServerSocket server;
+    final Thread thread;
+    volatile Throwable failure;
+
+    FakeDevice(Script script) throws IOException {
+      this.server = new ServerSocket(0);
+      this.thread = new Thread(() -> {
+        try (Socket socket = server.accept()) {
+          script.run(new DataInputStream(socket.getInputStream()), socket.getOutputStream());
+          //wait for the client to close
+          socket.getInputStream().read();
+        } catch (Throwable e) {
+          failure = e;
+        }
+      });
+      thread.start();
+    }
+
+    /**The transaction id, address and count of the next request.*/
+    static int[] request(DataInputStream in) throws IOException {
+      byte[] request = new byte[12];
+      in.readFully(request);
+      return new int[] { word(request, 0), word(request, 8), word(request, 10) };
+    }
+
+    /**The registers of a holding read, address * 10 for each address.*/
+    static void answer(OutputStream out, int[] request) throws IOException {
+      int count = request[2];
+      byte[] response = new byte[9 + 2 * count];
+      header(response, request[0], 3 + 2 * count);
+      response[7] = 3;
+      response[8] = (byte) (2 * count);
+      for (int i = 0; i < count; i++) {
+        int value = (request[1] + i) * 10;
+        response[9 + 2 * i] = (byte) (value >> 8);
+        response[10 + 2 * i] = (byte) value;
+      }
+      out.write(response);
+      out.flush();
+    }
+
+    static void exception(OutputStream out, int transactionId, int code) throws IOException {
+      exception(out, transactionId, 3, code);
+    }
+
+    static void exception(OutputStream out, int transactionId, int function, int code) throws IOException {
+      byte[] response = new byte[9];
+      header(response, transactionId, 3);
+      response[7] = (byte) (0x80 | function);
+      response[8] = (byte) code;
+      out.write(response);
+      out.flush();
+    }
+
+    private static void header(byte[] response, int transactionId, int length) {
+      response[0] = (byte) (transactionId >> 8);
+      response[1] = (byte) transactionId;
+      response[5] = (byte) length;
+      response[6] = 1;
+    }
+
+    private static int word(byte[] bytes, int index) {
+      return (bytes[index] & 0xFF) << 8 | bytes[index + 1] & 0xFF;
+    }
+
+    @Override
+    public void close() throws Exception {
+      thread.join(5_000);
+      server.close();
+      if (failure != null) {
+        throw new AssertionError("fake device failed", failure);
+      }
+    }
+  }
+
+  private static List<ReadBatch> batches(int... addresses) {
+    return IntStream.of(addresses).mapToObj(x -> new ReadBatch(ModbusType.holding, x, 2)).toList();
+  }
+
+  @Test
+  void testOutOfOrderAndStaleResponsesWithWindowSmallerThanBatches() throws Exception {
+    List<Integer> inFlight = new ArrayList<>();
+    try (FakeDevice device = new FakeDevice((in, out) -> {
+      for (int group : new int[] { 2, 2, 1 }) {
+        List<int[]> requests = new ArrayList<>();
+        for (int i = 0; i < group; i++) {
+          requests.add(FakeDevice.request(in));
+        }
+        Thread.sleep(50);
+        //nothing more is sent while the window is full
+        inFlight.add(group + in.available() / 12);
+        FakeDevice.exception(out, 0x7777, 4);
+        Collections.reverse(requests);
+        for (int[] request : requests) {
+          FakeDevice.answer(out, request);
+        }
+      }
+    }); PipelinedTcpTransport transport = new PipelinedTcpTransport("localhost", device.server.getLocalPort(), 2_000,
+      2)) {
+      int[] buffer = new int[10];
+      transport.read(1, batches(0, 2, 4, 6, 8), buffer, 0);
+      assertThat(buffer).containsExactly(0, 10, 20, 30, 40, 50, 60, 70, 80, 90);
+    }
+    assertThat(inFlight).containsExactly(2, 2, 1);
+  }
+
+  @Test
+  void testExceptionResponseDrainsTheRequestsInFlight() throws Exception {
+    List<Integer> sentBeforeDrained = new ArrayList<>();
+    try (FakeDevice device = new FakeDevice((in, out) -> {
+      int[] first = FakeDevice.request(in);
+      int[] second = FakeDevice.request(in);
+      int[] third = FakeDevice.request(in);
+      FakeDevice.exception(out, first[0], 2);
+      FakeDevice.answer(out, second);
+      Thread.sleep(50);
+      //the client still waits for the last response instead of sending its next request
+      sentBeforeDrained.add(in.available());
+      FakeDevice.answer(out, third);
+      //the next call gets the answer to its own request
+      FakeDevice.answer(out, FakeDevice.request(in));
+    }); PipelinedTcpTransport transport = new PipelinedTcpTransport("localhost", device.server.getLocalPort(), 2_000,
+      3)) {
+      int[] buffer = new int[6];
+      assertThatThrownBy(() -> transport.read(1, batches(0, 2, 4), buffer, 0))
+        .isInstanceOf(ModbusSlaveException.class);
+      int[] single = new int[2];
+      transport.read(1, ModbusType.holding, 20, 2, single, 0);
+      assertThat(single).containsExactly(200, 210);
+    }
+    assertThat(sentBeforeDrained).containsExactly(0);
+  }
+
+  @Test
+  void testWritesShareTheConnectionOfTheReads() throws Exception {
+    List<String> requests = new ArrayList<>();
+    try (FakeDevice device = new FakeDevice((in, out) -> {
+      //F06 echoed
+      byte[] single = new byte[12];
+      in.readFully(single);
+      requests.add(Arrays.toString(single));
+      out.write(single);
+      //F15 of 10 coils answered with its address and count
+      byte[] many = new byte[15];
+      in.readFully(many);
+      requests.add(Arrays.toString(many));
+      byte[] response = Arrays.copyOf(many, 12);
+      response[5] = 6;
+      out.write(response);
+      //F16 rejected
+      byte[] rejected = new byte[17];
+      in.readFully(rejected);
+      FakeDevice.exception(out, FakeDevice.word(rejected, 0), 16, 2);
+      //and a read on the same connection
+      FakeDevice.answer(out, FakeDevice.request(in));
+    }); PipelinedTcpTransport transport = new PipelinedTcpTransport("localhost", device.server.getLocalPort(), 2_000,
+      1)) {
+      assertThat(transport.writeOne(1, ModbusType.holding, 5, -2)).isEqualTo(0xFFFE);
+      transport.writeMany(1, ModbusType.coil, 3, new int[] { 9, 1, 0, 1, 1, 0, 0, 0, 0, 0, 1, 9 }, 1, 10);
+      assertThatThrownBy(() -> transport.writeMany(1, ModbusType.holding, 7, new int[] { 1, 2 }, 0, 2))
+        .isInstanceOf(ModbusSlaveException.class);
+      int[] buffer = new int[2];
+      transport.read(1, ModbusType.holding, 30, 2, buffer, 0);
+      assertThat(buffer).containsExactly(300, 310);
+    }
+    assertThat(requests).containsExactly("[0, 0, 0, 0, 0, 6, 1, 6, 0, 5, -1, -2]",
+      "[0, 1, 0, 0, 0, 9, 1, 15, 0, 3, 0, 10, 2, 13, 2]");
+  }
+}
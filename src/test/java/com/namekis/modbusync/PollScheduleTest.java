@@ -0,0 +1,42 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+
+import com.namekis.modbusync.ModbusParam.Level;
+import com.namekis.modbusync.ModbusParam.ModbusDataType;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+import com.namekis.modbusync.PollSchedule.Field;
+import com.namekis.modbusync.PollSchedule.Rule;
+import org.junit.jupiter.api.Test;
+
+public class PollScheduleTest {
+  @Test
+  void testIntervalsFromColumnRulesAndPeriod() {
+    ParamIndex params = ParamIndex.of(List.of(
+      ModbusParam.create().withType(ModbusType.holding).withAddress(0).withLevel(Level.Installer),
+      ModbusParam.create().withType(ModbusType.holding).withAddress(1).withLevel(Level.Installer).withPollMillis(500L),
+      ModbusParam.create().withType(ModbusType.holding).withAddress(2).withGroup("Heat pump unit"),
+      ModbusParam.create().withType(ModbusType.holding).withAddress(4).withLevel(Level.Service)
+        .withDataType(ModbusDataType.float32)));
+    List<Rule> rules = List.of(new Rule(4000, Field.level, "I"), new Rule(3900, Field.group, "heat pump unit"),
+      new Rule(60000, Field.level, "Service"));
+    PollSchedule schedule = new PollSchedule(params, 1000, rules, new ModbusRead(ModbusType.holding, 0, 6));
+
+    assertThat(schedule.intervalMillis(0, 0)).isEqualTo(4000);
+    assertThat(schedule.intervalMillis(0, 1)).isEqualTo(1000);
+    assertThat(schedule.intervalMillis(0, 2)).isEqualTo(4000);
+    assertThat(schedule.intervalMillis(0, 3)).isEqualTo(1000);
+    //the second register of the float follows the param
+    assertThat(schedule.intervalMillis(0, 5)).isEqualTo(60000);
+
+    assertThat(schedule.due(schedule.dueMask(-1, 0), 0)).containsExactly(0, 1, 2, 3, 4, 5);
+    assertThat(schedule.due(schedule.dueMask(0, 1), 0)).containsExactly(1, 3);
+    assertThat(schedule.due(schedule.dueMask(3, 4), 0)).containsExactly(0, 1, 2, 3);
+    //a skipped due cycle is read by the next polled cycle
+    assertThat(schedule.due(schedule.dueMask(2, 5), 0)).containsExactly(0, 1, 2, 3);
+    assertThat(schedule.due(schedule.dueMask(59, 60), 0)).containsExactly(0, 1, 2, 3, 4, 5);
+  }
+}
@@ -0,0 +1,67 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+import org.junit.jupiter.api.Test;
+
+public class PollerTest {
+  private static class Cycles implements Poller.Listener {
+    final List<Long> cycles = new ArrayList<>();
+    final List<Long> skipped = new ArrayList<>();
+
+    @Override
+    public void onCycle(long cycle, int[][] values) {
+      cycles.add(cycle);
+    }
+
+    @Override
+    public void onOverrun(long cycle, long durationNanos, long skippedCycles) {
+      skipped.add(skippedCycles);
+    }
+  }
+
+  @Test
+  void testOverrunSkipsTheMissedCyclesButRunsAllThePolls() throws Exception {
+    try (FakeDevice device = new FakeDevice();
+        ModbusClient client = new ModbusClient(device.config().transport, 1)) {
+      //the second poll takes more than two periods
+      device.hook = read -> Thread.sleep(read == 2 ? 250 : 0);
+      Poller poller = new Poller(client, new ReadPlanner(), 100, new ModbusRead(ModbusType.holding, 0, 10));
+      Cycles listener = new Cycles();
+      long start = System.nanoTime();
+      poller.run(5, listener);
+      long millis = (System.nanoTime() - start) / 1_000_000;
+
+      assertThat(device.reads.get()).isEqualTo(5);
+      assertThat(poller.overruns()).isEqualTo(1);
+      assertThat(listener.skipped).containsExactly(2L);
+      //the schedule stays aligned on the start: cycles 2 and 3 are skipped
+      assertThat(listener.cycles).containsExactly(0L, 1L, 4L, 5L, 6L);
+      assertThat(millis).isBetween(550L, 1_500L);
+    }
+  }
+
+  @Test
+  void testCyclesDoNotDrift() throws Exception {
+    try (FakeDevice device = new FakeDevice();
+        ModbusClient client = new ModbusClient(device.config().transport, 1)) {
+      //each poll takes a third of the period
+      device.hook = read -> Thread.sleep(20);
+      Poller poller = new Poller(client, new ReadPlanner(), 60, new ModbusRead(ModbusType.holding, 0, 10));
+      Cycles listener = new Cycles();
+      long start = System.nanoTime();
+      poller.run(10, listener);
+      long millis = (System.nanoTime() - start) / 1_000_000;
+
+      assertThat(device.reads.get()).isEqualTo(10);
+      assertThat(poller.overruns()).isZero();
+      //the last cycle starts at 9 periods and not at 9 periods plus the duration of the polls
+      assertThat(millis).isBetween(9 * 60L, 9 * 60L + 150);
+    }
+  }
+}
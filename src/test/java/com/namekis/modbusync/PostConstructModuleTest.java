@@ -0,0 +1,67 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.deser.DefaultDeserializationContext;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.impl.CsvRowReader;
+import com.namekis.modbusync.impl.PostConstructConverter;
+import com.namekis.modbusync.impl.PostConstructConverter.PostConstruct;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PostConstructModuleTest {
+  public static class Bean {
+    public int value;
+    public int doubled;
+
+    @PostConstruct
+    private void postConstruct() {
+      doubled = 2 * value;
+    }
+  }
+
+  @Test
+  void testMapperWithTheModuleCallsTheCachedPostConstructMethod() throws Exception {
+    CsvMapper mapper = ModbusParam.configureMapper(new CsvMapper());
+    List<Bean> beans = mapper.readerFor(Bean.class).with(CsvSchema.emptySchema().withHeader())
+      .<Bean>readValues("value\n1\n2\n").readAll();
+    assertThat(beans).extracting(x -> x.doubled).containsExactly(2, 4);
+    //the deserializer calls the method handle looked up once for the class
+    DefaultDeserializationContext context = ((DefaultDeserializationContext) mapper.getDeserializationContext())
+      .createInstance(mapper.getDeserializationConfig(), null, null);
+    JsonDeserializer<Object> deserializer = context.findRootValueDeserializer(mapper.constructType(Bean.class));
+    assertThat(deserializer).extracting("method").isSameAs(PostConstructConverter.postConstructOf(Bean.class));
+  }
+
+  @Test
+  void testRowsOfTheRowMapperArePostConstructed(@TempDir Path dir) throws Exception {
+    Path backup = dir.resolve("backup.csv");
+    Files.writeString(backup, "type,address,scale,value\nholding,3,0.1,38.5\n");
+    List<ModbusParam> params = new ArrayList<>();
+    try (CsvRowReader<ModbusParam> rows = CsvRowReader.open(backup, ModbusParam.class, ModbusParam.rowMapper)) {
+      rows.forEachRemaining(params::add);
+    }
+    assertThat(params).extracting(x -> x.type, x -> x.address, x -> x.modbusValue)
+      .containsExactly(tuple(ModbusType.holding, 3, 385));
+  }
+
+  @Test
+  void testReaderRefusesAMapperWithoutTheModule(@TempDir Path dir) throws Exception {
+    Path backup = dir.resolve("backup.csv");
+    Files.writeString(backup, "type,address,value\nholding,3,38\n");
+    assertThatThrownBy(() -> CsvRowReader.open(backup, ModbusParam.class, new CsvMapper()))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessageContaining("should register PostConstructModule");
+  }
+}
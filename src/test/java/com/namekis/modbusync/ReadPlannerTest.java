@@ -0,0 +1,46 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ReadPlanner.ReadBatch;
+import org.junit.jupiter.api.Test;
+
+public class ReadPlannerTest {
+  ReadPlanner planner = new ReadPlanner();
+
+  @Test
+  void testFarAddressesAreNotMerged() {
+    assertThat(planner.plan(ModbusType.holding, new int[] { 0, 9000 }, 125))
+      .containsExactly(new ReadBatch(ModbusType.holding, 0, 1), new ReadBatch(ModbusType.holding, 9000, 1));
+  }
+
+  @Test
+  void testSmallGapsAreMerged() {
+    assertThat(planner.plan(ModbusType.holding, new int[] { 0, 2, 10, 40 }, 125))
+      .containsExactly(new ReadBatch(ModbusType.holding, 0, 41));
+    assertThat(planner.plan(ModbusType.holding, new int[] { 0, 2, 10, 60 }, 125))
+      .containsExactly(new ReadBatch(ModbusType.holding, 0, 11), new ReadBatch(ModbusType.holding, 60, 1));
+    assertThat(planner.plan(ModbusType.coil, new int[] { 0, 500 }, 2000))
+      .containsExactly(new ReadBatch(ModbusType.coil, 0, 501));
+  }
+
+  @Test
+  void testBatchesAreCappedByMaxCount() {
+    int[] addresses = new int[300];
+    for (int i = 0; i < addresses.length; i++) {
+      addresses[i] = i;
+    }
+    assertThat(planner.plan(ModbusType.input, addresses, 125))
+      .containsExactly(new ReadBatch(ModbusType.input, 0, 125), new ReadBatch(ModbusType.input, 125, 125),
+        new ReadBatch(ModbusType.input, 250, 50));
+    assertThat(planner.plan(ModbusType.input, new int[] { 0, 5, 9 }, 5))
+      .containsExactly(new ReadBatch(ModbusType.input, 0, 1), new ReadBatch(ModbusType.input, 5, 5));
+  }
+
+  @Test
+  void testMultiRegisterValuesAreNotSplit() {
+    assertThat(planner.plan(ModbusType.holding, new int[] { 0, 2, 4, 5 }, new int[] { 2, 4, 6, 6 }, 5))
+      .containsExactly(new ReadBatch(ModbusType.holding, 0, 4), new ReadBatch(ModbusType.holding, 4, 2));
+  }
+}
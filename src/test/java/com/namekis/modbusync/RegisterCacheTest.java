@@ -0,0 +1,127 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import org.junit.jupiter.api.Test;
+
+public class RegisterCacheTest {
+  /**Reads address + 100 as the value of each address, or throws failure, and counts the requests.*/
+  private static class Device implements RegisterCache.Reader {
+    final AtomicInteger requests = new AtomicInteger();
+    final CountDownLatch release = new CountDownLatch(1);
+    volatile Throwable failure;
+
+    @Override
+    public int[] read(ModbusType type, int address, int count) {
+      requests.incrementAndGet();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      if (failure instanceof RuntimeException e) {
+        throw e;
+      }
+      if (failure instanceof Error e) {
+        throw e;
+      }
+      return IntStream.range(address, address + count).map(x -> x + 100).toArray();
+    }
+  }
+
+  @Test
+  void testConcurrentMissesOfNeighboursShareOneRead() throws Exception {
+    RegisterCache cache = new RegisterCache(100, 16, 60_000);
+    Device device = new Device();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<int[]>> reads = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        int address = 16 + i;
+        reads.add(executor.submit(() -> cache.read("gw:502:1", device, ModbusType.holding, address, 1)));
+      }
+      while (cache.hits() + cache.misses() < 8) {
+        Thread.sleep(1);
+      }
+      device.release.countDown();
+      for (int i = 0; i < 8; i++) {
+        assertThat(reads.get(i).get()).containsExactly(116 + i);
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(device.requests.get()).isEqualTo(1);
+    //a value spanning two blocks reads the second one
+    assertThat(cache.read("gw:502:1", device, ModbusType.holding, 31, 2)).containsExactly(131, 132);
+    assertThat(device.requests.get()).isEqualTo(2);
+  }
+
+  @Test
+  void testWaitersGetTheirOwnExceptionAroundTheFailureOfTheSharedRead() throws Exception {
+    for (Throwable failure : List.of(new RuntimeException("reset"), new AssertionError("broken"))) {
+      RegisterCache cache = new RegisterCache(100, 16, 60_000);
+      Device device = new Device();
+      device.failure = failure;
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try {
+        Future<int[]> owner = executor.submit(() -> cache.read("a", device, ModbusType.holding, 0, 1));
+        while (cache.misses() < 1) {
+          Thread.sleep(1);
+        }
+        Future<int[]> waiter = executor.submit(() -> cache.read("a", device, ModbusType.holding, 1, 1));
+        while (cache.hits() < 1) {
+          Thread.sleep(1);
+        }
+        device.release.countDown();
+        assertThat(catchThrowable(owner::get).getCause()).isSameAs(failure);
+        Throwable waited = catchThrowable(waiter::get).getCause();
+        assertThat(waited).isExactlyInstanceOf(RuntimeException.class)
+          .hasMessageContaining("Shared read of block 0 of holdings of a failed");
+        assertThat(waited.getCause()).isSameAs(failure);
+      } finally {
+        executor.shutdown();
+      }
+      //the failed read is not cached
+      device.failure = null;
+      assertThat(cache.read("a", device, ModbusType.holding, 1, 1)).containsExactly(101);
+    }
+  }
+
+  @Test
+  void testTtlInvalidationAndEviction() {
+    RegisterCache cache = new RegisterCache(2, 16, 60_000).withTtl(ModbusType.input, 0);
+    Device device = new Device();
+    device.release.countDown();
+    cache.read("a", device, ModbusType.holding, 3, 1);
+    cache.read("a", device, ModbusType.holding, 4, 1);
+    assertThat(device.requests.get()).isEqualTo(1);
+    cache.read("a", device, ModbusType.input, 3, 1);
+    cache.read("a", device, ModbusType.input, 3, 1);
+    assertThat(device.requests.get()).isEqualTo(3);
+
+    cache.invalidate("a", ModbusType.holding, 15, 2);
+    cache.read("a", device, ModbusType.holding, 4, 1);
+    assertThat(device.requests.get()).isEqualTo(4);
+
+    //the same addresses of another device are other blocks, evicting the least recently used
+    cache.read("b", device, ModbusType.holding, 4, 1);
+    assertThat(cache.size()).isEqualTo(2);
+    cache.read("a", device, ModbusType.holding, 4, 1);
+    assertThat(device.requests.get()).isEqualTo(5);
+    cache.read("a", device, ModbusType.input, 3, 1);
+    assertThat(device.requests.get()).isEqualTo(6);
+    cache.read("b", device, ModbusType.holding, 4, 1);
+    assertThat(device.requests.get()).isEqualTo(7);
+  }
+}
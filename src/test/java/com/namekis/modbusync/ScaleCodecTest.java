@@ -0,0 +1,95 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class ScaleCodecTest {
+  private static final String[] SCALES = { null, "1", "10", "1E+1", "0", "0.1", "0.5", "0.01", "1.0", "-0.1", "2.50",
+      "0.000001", "123456.789" };
+  private static final String[] OFFSETS = { null, "0", "-40", "0.5", "-273.15", "1.000", "1E+2" };
+
+  @Test
+  void testScaleIsTheSameAsBigDecimal() {
+    Random random = new Random(1);
+    for (String scale : SCALES) {
+      for (String offset : OFFSETS) {
+        ScaleCodec codec = ScaleCodec.of(decimal(scale), decimal(offset));
+        for (int i = 0; i < 2000; i++) {
+          int value = i < 1000 ? i - 500 : random.nextInt();
+          Object expected = result(() -> referenceScale(value, decimal(scale), decimal(offset)));
+          assertThat(result(() -> codec.scale(value))).as("%s * %s + %s", value, scale, offset).isEqualTo(expected);
+        }
+      }
+    }
+  }
+
+  @Test
+  void testUnscaleIsTheSameAsBigDecimal() {
+    Random random = new Random(1);
+    for (String scale : SCALES) {
+      for (String offset : OFFSETS) {
+        ScaleCodec codec = ScaleCodec.of(decimal(scale), decimal(offset));
+        for (int i = 0; i < 2000; i++) {
+          Number value = i < 1000 ? Integer.valueOf(i - 500) : i < 1500 ? random.nextLong() : random.nextInt();
+          Object expected = result(() -> referenceUnscale(value, decimal(scale), decimal(offset)));
+          assertThat(result(() -> codec.unscale(value))).as("(%s - %s) / %s", value, offset, scale)
+            .isEqualTo(expected);
+        }
+      }
+    }
+  }
+
+  @Test
+  void testHeatPumpValues() {
+    ScaleCodec codec = ScaleCodec.of(new BigDecimal("0.1"), null);
+    assertThat(codec.scale(385)).isEqualTo(new BigDecimal("38.5"));
+    assertThat(codec.scale(500)).isEqualTo(50);
+    assertThat(codec.unscale(39)).isEqualTo(390);
+    assertThat(codec.unscale(new BigDecimal("38.5"))).isEqualTo(385);
+    assertThatThrownBy(() -> ScaleCodec.of(new BigDecimal("2"), null).unscale(3))
+      .isInstanceOf(ArithmeticException.class);
+  }
+
+  private static BigDecimal decimal(String value) {
+    return value == null ? null : new BigDecimal(value);
+  }
+
+  /**The value or the class of the exception.*/
+  private static Object result(java.util.function.Supplier<Object> supplier) {
+    try {
+      return supplier.get();
+    } catch (ArithmeticException e) {
+      return ArithmeticException.class;
+    }
+  }
+
+  private static Number referenceScale(int value, BigDecimal scale, BigDecimal offset) {
+    BigDecimal res = new BigDecimal(value);
+    if (scale != null) {
+      res = res.multiply(scale);
+    }
+    if (offset != null) {
+      res = res.add(offset);
+    }
+    if (res.stripTrailingZeros().scale() <= 0) {
+      return res.intValueExact();
+    }
+    return res;
+  }
+
+  private static Integer referenceUnscale(Number value, BigDecimal scale, BigDecimal offset) {
+    BigDecimal res = new BigDecimal(value.toString());
+    if (offset != null) {
+      res = res.subtract(offset);
+    }
+    if (scale != null) {
+      res = res.divide(scale);
+    }
+    return res.intValueExact();
+  }
+}
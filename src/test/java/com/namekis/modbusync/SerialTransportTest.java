@@ -0,0 +1,275 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.impl.JSerialCommLine;
+import com.namekis.modbusync.impl.SerialLine;
+import com.namekis.modbusync.impl.SerialTransport;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SerialTransportTest {
+  /**A device answering on the other end of the line. Holding register i has the value i * 10 - 100.*/
+  static class FakeDevice implements SerialLine {
+    final boolean ascii;
+    final ArrayDeque<Byte> received = new ArrayDeque<>();
+    boolean corrupt;
+
+    FakeDevice(boolean ascii) {
+      this.ascii = ascii;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      byte[] request = ascii ? fromAscii(bytes, offset, length) : slice(bytes, offset, length - 2);
+      byte[] response = respond(request);
+      byte[] frame = ascii ? toAscii(response) : withCrc(response);
+      if (corrupt) {
+        frame[frame.length - 3] ^= 1;
+      }
+      for (byte b : frame) {
+        received.add(b);
+      }
+    }
+
+    static byte[] respond(byte[] request) {
+      int function = request[1];
+      int address = (request[2] & 0xFF) << 8 | request[3] & 0xFF;
+      int count = (request[4] & 0xFF) << 8 | request[5] & 0xFF;
+      if (function == 3 && address + count <= 100) {
+        byte[] res = new byte[3 + 2 * count];
+        res[0] = request[0];
+        res[1] = 3;
+        res[2] = (byte) (2 * count);
+        for (int i = 0; i < count; i++) {
+          int value = (address + i) * 10 - 100;
+          res[3 + 2 * i] = (byte) (value >> 8);
+          res[4 + 2 * i] = (byte) value;
+        }
+        return res;
+      }
+      if (function == 6 || function == 16) {
+        return slice(request, 0, 6);
+      }
+      return new byte[] { request[0], (byte) (function | 0x80), 2 };
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length, long timeoutNanos) {
+      int done = 0;
+      while (done < length && !received.isEmpty()) {
+        bytes[offset + done++] = received.poll();
+      }
+      return done;
+    }
+
+    @Override
+    public void discardInput() {
+      received.clear();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  @Test
+  void testTimingFromLineSettings() {
+    long charNanos = SerialTransport.charNanos(9600, 8, 1, "even");
+    //start, 8 data, parity and stop bits
+    assertThat(charNanos).isEqualTo(1_145_834);
+    assertThat(SerialTransport.silenceNanos(9600, charNanos)).isEqualTo(4_010_419);
+    assertThat(SerialTransport.silenceNanos(115200, SerialTransport.charNanos(115200, 8, 1, "none")))
+      .isEqualTo(1_750_000);
+
+    SerialTransport rtu = new SerialTransport(new FakeDevice(false), 9600, 8, 1, "even", false, 100);
+    //8 bytes request and 5 + 2 * 125 bytes response for 125 registers
+    assertThat(rtu.responseTimeoutNanos(5, 2 + 250)).isEqualTo(100_000_000 + (8 + 255) * charNanos + 4_010_419);
+  }
+
+  @Test
+  void testRtu() throws Exception {
+    FakeDevice device = new FakeDevice(false);
+    SerialTransport rtu = new SerialTransport(device, 115200, 8, 1, "none", false, 100);
+    int[] buffer = new int[12];
+    rtu.read(1, ModbusType.holding, 5, 10, buffer, 2);
+    assertThat(buffer).containsExactly(0, 0, -50, -40, -30, -20, -10, 0, 10, 20, 30, 40);
+    assertThat(rtu.writeOne(1, ModbusType.holding, 7, 385)).isEqualTo(385);
+    rtu.writeMany(1, ModbusType.holding, 7, new int[] { 1, 2, 3 }, 0, 3);
+
+    assertThatThrownBy(() -> rtu.read(1, ModbusType.holding, 99, 2, buffer, 0))
+      .isInstanceOf(ModbusSlaveException.class);
+    device.corrupt = true;
+    assertThatThrownBy(() -> rtu.read(1, ModbusType.holding, 0, 1, buffer, 0))
+      .isInstanceOf(ModbusIOException.class)
+      .hasMessageContaining("CRC");
+    assertThat(device.received).isEmpty();
+  }
+
+  @Test
+  void testAscii() throws Exception {
+    FakeDevice device = new FakeDevice(true);
+    SerialTransport ascii = new SerialTransport(device, 9600, 7, 1, "even", true, 100);
+    int[] buffer = new int[3];
+    ascii.read(17, ModbusType.holding, 20, 3, buffer, 0);
+    assertThat(buffer).containsExactly(100, 110, 120);
+    device.corrupt = true;
+    assertThatThrownBy(() -> ascii.read(17, ModbusType.holding, 20, 3, buffer, 0))
+      .isInstanceOf(ModbusIOException.class);
+  }
+
+  @Test
+  void testTimeoutWhenNobodyAnswers() {
+    SerialLine silent = new FakeDevice(false) {
+      @Override
+      public void write(byte[] bytes, int offset, int length) {
+      }
+    };
+    SerialTransport rtu = new SerialTransport(silent, 115200, 8, 1, "none", false, 10);
+    assertThatThrownBy(() -> rtu.read(1, ModbusType.holding, 0, 1, new int[1], 0))
+      .isInstanceOf(ModbusIOException.class)
+      .hasMessageContaining("Timeout");
+  }
+
+  @Test
+  void testLateAnswerIsNotTakenForTheNextResponse() throws Exception {
+    //the answer to the first request arrives 50ms later, after its deadline and before the next request
+    FakeDevice late = new FakeDevice(false) {
+      final ArrayDeque<Byte> delayed = new ArrayDeque<>();
+      long arrival = Long.MAX_VALUE;
+
+      private void arrive() {
+        if (System.nanoTime() >= arrival) {
+          received.addAll(delayed);
+          delayed.clear();
+        }
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) {
+        arrive();
+        super.write(bytes, offset, length);
+        if (arrival == Long.MAX_VALUE) {
+          arrival = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+          delayed.addAll(received);
+          received.clear();
+        }
+      }
+
+      @Override
+      public int read(byte[] bytes, int offset, int length, long timeoutNanos) {
+        arrive();
+        return super.read(bytes, offset, length, timeoutNanos);
+      }
+
+      @Override
+      public void discardInput() {
+        arrive();
+        super.discardInput();
+      }
+    };
+    SerialTransport rtu = new SerialTransport(late, 115200, 8, 1, "none", false, 10);
+    int[] buffer = new int[2];
+    assertThatThrownBy(() -> rtu.read(1, ModbusType.holding, 0, 2, buffer, 0))
+      .isInstanceOf(ModbusIOException.class)
+      .hasMessageContaining("Timeout");
+    Thread.sleep(60);
+    rtu.read(1, ModbusType.holding, 20, 2, buffer, 0);
+    assertThat(buffer).containsExactly(100, 110);
+    assertThat(late.received).isEmpty();
+  }
+
+  /**Needs socat: a pseudo terminal pair with the fake device answering on one end.*/
+  @Test
+  void testRtuOverPseudoTerminal(@TempDir Path dir) throws Exception {
+    assumeTrue(isSocatAvailable(), "socat is not installed");
+    Path master = dir.resolve("ttyMaster");
+    Path slave = dir.resolve("ttySlave");
+    Process socat = new ProcessBuilder("socat", "pty,raw,echo=0,link=" + master, "pty,raw,echo=0,link=" + slave)
+      .start();
+    try {
+      for (int i = 0; i < 50 && !(Files.exists(master) && Files.exists(slave)); i++) {
+        Thread.sleep(20);
+      }
+      try (JSerialCommLine deviceLine = new JSerialCommLine(slave.toString(), 9600, 8, 1, "none");
+          SerialTransport rtu = new SerialTransport(new JSerialCommLine(master.toString(), 9600, 8, 1, "none"),
+            9600, 8, 1, "none", false, 200)) {
+        Thread device = new Thread(() -> serve(deviceLine));
+        device.setDaemon(true);
+        device.start();
+        int[] buffer = new int[125];
+        rtu.read(1, ModbusType.holding, 0, 3, buffer, 0);
+        assertThat(buffer[2]).isEqualTo(-80);
+        rtu.read(1, ModbusType.holding, 0, 100, buffer, 0);
+        assertThat(buffer[99]).isEqualTo(890);
+      }
+    } finally {
+      socat.destroy();
+      socat.waitFor(1, TimeUnit.SECONDS);
+    }
+  }
+
+  private static void serve(SerialLine line) {
+    byte[] request = new byte[8];
+    try {
+      while (line.read(request, 0, 8, TimeUnit.SECONDS.toNanos(5)) == 8) {
+        byte[] response = withCrc(FakeDevice.respond(slice(request, 0, 6)));
+        line.write(response, 0, response.length);
+      }
+    } catch (IOException e) {
+      //line closed
+    }
+  }
+
+  private static boolean isSocatAvailable() {
+    try {
+      return new ProcessBuilder("socat", "-V").start().waitFor(5, TimeUnit.SECONDS);
+    } catch (IOException | InterruptedException e) {
+      return false;
+    }
+  }
+
+  private static byte[] slice(byte[] bytes, int offset, int length) {
+    byte[] res = new byte[length];
+    System.arraycopy(bytes, offset, res, 0, length);
+    return res;
+  }
+
+  private static byte[] withCrc(byte[] adu) {
+    byte[] res = new byte[adu.length + 2];
+    System.arraycopy(adu, 0, res, 0, adu.length);
+    int crc = SerialTransport.crc(adu, 0, adu.length);
+    res[adu.length] = (byte) crc;
+    res[adu.length + 1] = (byte) (crc >> 8);
+    return res;
+  }
+
+  private static byte[] toAscii(byte[] adu) {
+    StringBuilder res = new StringBuilder(":");
+    for (byte b : adu) {
+      res.append("%02X".formatted(b & 0xFF));
+    }
+    res.append("%02X".formatted(SerialTransport.lrc(adu, 0, adu.length) & 0xFF)).append("\r\n");
+    return res.toString().getBytes();
+  }
+
+  /**The adu of an ASCII frame without its LRC.*/
+  private static byte[] fromAscii(byte[] chars, int offset, int length) {
+    byte[] res = new byte[(length - 3) / 2 - 1];
+    for (int i = 0; i < res.length; i++) {
+      res[i] = (byte) Integer.parseInt(new String(chars, offset + 1 + 2 * i, 2), 16);
+    }
+    return res;
+  }
+}
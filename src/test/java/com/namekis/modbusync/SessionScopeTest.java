@@ -0,0 +1,50 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import com.namekis.modbusync.impl.SessionScope;
+import com.namekis.modbusync.impl.SessionScope.Threads;
+import org.junit.jupiter.api.Test;
+
+public class SessionScopeTest {
+  @Test
+  void testAtMostParallelSessionsRunTogether() throws Exception {
+    for (Threads threads : SessionScope.virtualThreadsAvailable() ? Threads.values()
+        : new Threads[] { Threads.auto, Threads.platform }) {
+      AtomicInteger running = new AtomicInteger();
+      AtomicInteger maxRunning = new AtomicInteger();
+      try (SessionScope<Integer> scope = new SessionScope<>(threads, 3, 20, "test")) {
+        List<Future<Integer>> forks = IntStream.range(0, 20).mapToObj(i -> scope.fork(() -> {
+          maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+          Thread.sleep(5);
+          running.decrementAndGet();
+          return i;
+        })).toList();
+        assertThat(scope.join(0)).isEqualTo(0);
+        assertThat(forks.get(19).get()).isEqualTo(19);
+      }
+      assertThat(maxRunning.get()).isLessThan(4);
+    }
+  }
+
+  @Test
+  void testSessionsAfterDeadlineAreCancelled() throws Exception {
+    try (SessionScope<String> scope = new SessionScope<>(Threads.auto, 2, 2, "test")) {
+      Future<String> fast = scope.fork(() -> "done");
+      Future<String> slow = scope.fork(() -> {
+        Thread.sleep(60_000);
+        return "late";
+      });
+      assertThat(scope.join(100)).isEqualTo(1);
+      assertThat(fast.get()).isEqualTo("done");
+      assertThatThrownBy(slow::get).isInstanceOf(CancellationException.class);
+    }
+  }
+}
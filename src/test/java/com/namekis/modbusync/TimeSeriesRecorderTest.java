@@ -0,0 +1,86 @@
+package com.namekis.modbusync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.namekis.modbusync.ModbusParam.ModbusType;
+import com.namekis.modbusync.ModbusyncConfig.ModbusRead;
+import com.namekis.modbusync.TimeSeriesRecorder.Series;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TimeSeriesRecorderTest {
+  private static final ModbusRead[] READS = { new ModbusRead(ModbusType.input, 0, 100),
+      new ModbusRead(ModbusType.coil, 10, 8) };
+  private static final long START = 1_708_214_400_000L;
+
+  /**Input 5 is a slow temperature, input 6 a signed counter and the rest never change.*/
+  private static int[][] cycle(int i) {
+    int[][] values = { new int[100], new int[8] };
+    values[0][5] = 200 + i / 10;
+    values[0][6] = (short) (i * 1000);
+    values[1][3] = i / 50 % 2;
+    return values;
+  }
+
+  @Test
+  void testRecordAndQuery(@TempDir Path dir) throws Exception {
+    try (TimeSeriesRecorder recorder = new TimeSeriesRecorder(dir, 60, 64 << 10, READS)) {
+      for (int i = 0; i < 1000; i++) {
+        //a second apart with some jitter
+        recorder.append(START + i * 1000 + i % 3, cycle(i));
+      }
+    }
+    Series temperature = TimeSeriesRecorder.query(dir, ModbusType.input, 5, Long.MIN_VALUE, Long.MAX_VALUE);
+    assertThat(temperature.size()).isEqualTo(1000);
+    for (int i = 0; i < 1000; i++) {
+      assertThat(temperature.times()[i]).isEqualTo(START + i * 1000 + i % 3);
+      assertThat(temperature.values()[i]).isEqualTo(200 + i / 10);
+    }
+    Series counter = TimeSeriesRecorder.query(dir, ModbusType.input, 6, START + 100_000, START + 199_999);
+    assertThat(counter.size()).isEqualTo(100);
+    assertThat(counter.values()[0]).isEqualTo((short) 100_000);
+    assertThat(counter.values()[99]).isEqualTo((short) 199_000);
+    //the registers of a two register param are read together
+    Series both = TimeSeriesRecorder.query(dir, ModbusType.input, 5, 2, START + 100_000, START + 199_999);
+    assertThat(both.times()).containsExactly(counter.times());
+    assertThat(both.columns()[0][0]).isEqualTo(210);
+    assertThat(both.columns()[1]).containsExactly(counter.values());
+    Series coil = TimeSeriesRecorder.query(dir, ModbusType.coil, 13, START + 49_000, START + 50_500);
+    assertThat(coil.values()).containsExactly(0, 1);
+    assertThat(TimeSeriesRecorder.query(dir, ModbusType.holding, 5, Long.MIN_VALUE, Long.MAX_VALUE).size())
+      .isEqualTo(0);
+
+    //108 columns and 1000 cycles, mostly unchanged
+    long size = 0;
+    for (Path segment : TimeSeriesRecorder.segments(dir)) {
+      size += Files.size(segment);
+    }
+    assertThat(size).isLessThan(40_000);
+  }
+
+  @Test
+  void testRestartContinuesTheLastSegment(@TempDir Path dir) throws Exception {
+    try (TimeSeriesRecorder recorder = new TimeSeriesRecorder(dir, 10, 1 << 20, READS)) {
+      for (int i = 0; i < 25; i++) {
+        recorder.append(START + i * 1000, cycle(i));
+      }
+    }
+    try (TimeSeriesRecorder recorder = new TimeSeriesRecorder(dir, 10, 1 << 20, READS)) {
+      for (int i = 25; i < 50; i++) {
+        recorder.append(START + i * 1000, cycle(i));
+      }
+    }
+    assertThat(TimeSeriesRecorder.segments(dir)).hasSize(1);
+    //other addresses go in a new segment
+    try (TimeSeriesRecorder recorder = new TimeSeriesRecorder(dir, 10, 1 << 20,
+      new ModbusRead(ModbusType.input, 5, 1))) {
+      recorder.append(START + 50_000, new int[][] { { 205 } });
+    }
+    assertThat(TimeSeriesRecorder.segments(dir)).hasSize(2);
+    Series temperature = TimeSeriesRecorder.query(dir, ModbusType.input, 5, START + 40_000, Long.MAX_VALUE);
+    assertThat(temperature.values()).containsExactly(204, 204, 204, 204, 204, 204, 204, 204, 204, 204, 205);
+  }
+}